@@ -33,6 +33,11 @@ public class FetcherPolicy implements Serializable {
     
     public static final int DEFAULT_MIN_RESPONSE_RATE = NO_MIN_RESPONSE_RATE;
     public static final int DEFAULT_MAX_CONTENT_SIZE = 64 * 1024;
+    public static final int NO_CONTENT_SPILL = Integer.MAX_VALUE;
+    public static final int NO_MAX_QUEUED_URLS = Integer.MAX_VALUE;
+    public static final long NO_MAX_QUEUED_BYTES = Long.MAX_VALUE;
+    public static final int DEFAULT_MAX_QUEUED_URLS = 100000;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 64 * 1024 * 1024L;
     public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
     public static final int DEFAULT_MAX_REDIRECTS = 20;
     public static final String DEFAULT_ACCEPT_LANGUAGE = "en-us,en-gb,en;q=0.7,*;q=0.3";
@@ -86,6 +91,7 @@ public class FetcherPolicy implements Serializable {
     private long _crawlEndTime;          // When we want the crawl to end
     private RedirectMode _redirectMode;     // What to do about redirects?
     private long _minPageFetchInterval = DEFAULT_MIN_PAGE_FETCH_INTERVAL;
+    private boolean _useVirtualThreads = false;   // Run fetch/robots tasks on virtual threads (if JDK supports it)
 
     // =========================================================
 
@@ -96,6 +102,9 @@ public class FetcherPolicy implements Serializable {
     private String _acceptLanguage;    // What to pass for the Accept-Language request header
     private Set<String> _validMimeTypes;    // Set of mime-types that we'll accept.
     private long _requestTimeout;           // Max time for any given set of URLs (termination timeout is based on this)
+    private int _contentSpillThreshold = NO_CONTENT_SPILL;  // Content bigger than this is stored on disk
+    private int _maxQueuedUrls = DEFAULT_MAX_QUEUED_URLS;    // Max # of URLs in fetch sets queued in memory
+    private long _maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES; // Max size of fetch sets queued in memory
 
     public FetcherPolicy() {
         this(DEFAULT_MIN_RESPONSE_RATE, DEFAULT_MAX_CONTENT_SIZE, DEFAULT_CRAWL_END_TIME, DEFAULT_CRAWL_DELAY, DEFAULT_MAX_REDIRECTS);
@@ -271,6 +280,82 @@ public class FetcherPolicy implements Serializable {
         return _minPageFetchInterval;
     }
     
+    /**
+     * Run each fetch (and robots) task on its own virtual thread, with the number of
+     * active tasks limited by the fetcher's max threads value. This only has an effect
+     * when running on a JDK that supports virtual threads, and lets you use a much
+     * higher max threads value without the memory cost of platform threads.
+     * 
+     * @param useVirtualThreads true to use virtual threads, if available.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        _useVirtualThreads = useVirtualThreads;
+    }
+    
+    public boolean isUseVirtualThreads() {
+        return _useVirtualThreads;
+    }
+    
+    /**
+     * Set the content size above which the fetcher writes the content to a local spill
+     * file while it's being read, instead of keeping it in memory. The content is only
+     * loaded into memory if something asks for the bytes, and otherwise is streamed from
+     * disk when it's serialized. This lets you use a large max content size (e.g. for PDFs)
+     * with many fetcher threads, without needing maxThreads * maxContentSize of heap.
+     * 
+     * @param contentSpillThreshold Size in bytes, or NO_CONTENT_SPILL to always keep content in memory.
+     */
+    public void setContentSpillThreshold(int contentSpillThreshold) {
+        if (contentSpillThreshold < 1) {
+            throw new InvalidParameterException("contentSpillThreshold must be > 0: " + contentSpillThreshold);
+        }
+        
+        _contentSpillThreshold = contentSpillThreshold;
+    }
+    
+    public int getContentSpillThreshold() {
+        return _contentSpillThreshold;
+    }
+    
+    /**
+     * Set the max number of URLs (in all fetch sets) that the fetcher keeps in memory,
+     * while waiting for their domains to be ready. Additional fetch sets are written to
+     * local disk.
+     * 
+     * @param maxQueuedUrls Number of URLs, or NO_MAX_QUEUED_URLS
+     */
+    public void setMaxQueuedUrls(int maxQueuedUrls) {
+        if (maxQueuedUrls < 1) {
+            throw new InvalidParameterException("maxQueuedUrls must be > 0: " + maxQueuedUrls);
+        }
+        
+        _maxQueuedUrls = maxQueuedUrls;
+    }
+    
+    public int getMaxQueuedUrls() {
+        return _maxQueuedUrls;
+    }
+    
+    /**
+     * Set the max size of the fetch sets that the fetcher keeps in memory, while waiting
+     * for their domains to be ready. The size of a fetch set is an estimate of its serialized
+     * size, which includes the URLs and their payloads. Additional fetch sets are written to
+     * local disk.
+     * 
+     * @param maxQueuedBytes Size in bytes, or NO_MAX_QUEUED_BYTES
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        if (maxQueuedBytes < 1) {
+            throw new InvalidParameterException("maxQueuedBytes must be > 0: " + maxQueuedBytes);
+        }
+        
+        _maxQueuedBytes = maxQueuedBytes;
+    }
+    
+    public long getMaxQueuedBytes() {
+        return _maxQueuedBytes;
+    }
+    
     /**
      * Calculate the maximum number of URLs that could be fetched in the remaining time.
      * 
@@ -312,16 +397,20 @@ public class FetcherPolicy implements Serializable {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((_acceptLanguage == null) ? 0 : _acceptLanguage.hashCode());
+        result = prime * result + _contentSpillThreshold;
         result = prime * result + (int) (_crawlDelay ^ (_crawlDelay >>> 32));
         result = prime * result + (int) (_crawlEndTime ^ (_crawlEndTime >>> 32));
         result = prime * result + ((_fetcherMode == null) ? 0 : _fetcherMode.hashCode());
         result = prime * result + _maxConnectionsPerHost;
         result = prime * result + _maxContentSize;
+        result = prime * result + (int) (_maxQueuedBytes ^ (_maxQueuedBytes >>> 32));
+        result = prime * result + _maxQueuedUrls;
         result = prime * result + _maxRedirects;
         result = prime * result + _maxRequestsPerConnection;
         result = prime * result + _minResponseRate;
         result = prime * result + ((_redirectMode == null) ? 0 : _redirectMode.hashCode());
         result = prime * result + (int) (_requestTimeout ^ (_requestTimeout >>> 32));
+        result = prime * result + (_useVirtualThreads ? 1231 : 1237);
         result = prime * result + ((_validMimeTypes == null) ? 0 : _validMimeTypes.hashCode());
         return result;
     }
@@ -340,6 +429,8 @@ public class FetcherPolicy implements Serializable {
                 return false;
         } else if (!_acceptLanguage.equals(other._acceptLanguage))
             return false;
+        if (_contentSpillThreshold != other._contentSpillThreshold)
+            return false;
         if (_crawlDelay != other._crawlDelay)
             return false;
         if (_crawlEndTime != other._crawlEndTime)
@@ -353,6 +444,10 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_maxContentSize != other._maxContentSize)
             return false;
+        if (_maxQueuedBytes != other._maxQueuedBytes)
+            return false;
+        if (_maxQueuedUrls != other._maxQueuedUrls)
+            return false;
         if (_maxRedirects != other._maxRedirects)
             return false;
         if (_maxRequestsPerConnection != other._maxRequestsPerConnection)
@@ -366,6 +461,8 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_requestTimeout != other._requestTimeout)
             return false;
+        if (_useVirtualThreads != other._useVirtualThreads)
+            return false;
         if (_validMimeTypes == null) {
             if (other._validMimeTypes != null)
                 return false;
@@ -21,6 +21,7 @@ import java.security.InvalidParameterException;
 import java.util.Set;
 
 import bixo.parser.BaseLinkExtractor;
+import bixo.parser.SamplingLanguageDetector;
 
 /**
  * Definition of policy for parsing.
@@ -33,8 +34,18 @@ public class ParserPolicy implements Serializable {
     
     public static final int DEFAULT_MAX_PARSE_DURATION = 30 * 1000;
     
+    public static final int DEFAULT_MAX_QUARANTINED_THREADS = 10;
+    
     private int _maxParseDuration;        // Max # of milliseconds to wait for parse to complete a document.
     
+    private int _maxQuarantinedThreads;   // Max # of hung parse threads that get replaced.
+    
+    private boolean _useDeclaredMimeType; // Pick the Tika parser from the Content-Type header.
+    
+    private int _maxLanguageSampleChars;  // Max # of chars to profile when detecting the language.
+    
+    private double _languageConfidenceThreshold; // Stop profiling once we're this confident.
+    
     private Set<String> _linkTags;
     
     private Set<String> _linkAttributeTypes;
@@ -64,6 +75,9 @@ public class ParserPolicy implements Serializable {
         _maxParseDuration = maxParseDuration;
         _linkAttributeTypes = linkAttributeTypes;
         _linkTags = linkTags;
+        _maxQuarantinedThreads = DEFAULT_MAX_QUARANTINED_THREADS;
+        _maxLanguageSampleChars = SamplingLanguageDetector.DEFAULT_MAX_CHARS;
+        _languageConfidenceThreshold = SamplingLanguageDetector.DEFAULT_CONFIDENCE_THRESHOLD;
     }
 
     public int getMaxParseDuration() {
@@ -74,6 +88,79 @@ public class ParserPolicy implements Serializable {
         _maxParseDuration = maxParseDuration;
     }
 
+    public int getMaxQuarantinedThreads() {
+        return _maxQuarantinedThreads;
+    }
+    
+    /**
+     * Set the max number of parse threads that will be replaced after they've hung (taken
+     * longer than the max parse duration). Hung threads can't be stopped, so this limits
+     * how many threads we leak. Once we've hit the limit, parsing fails until one of the
+     * hung threads finishes.
+     * 
+     * @param maxQuarantinedThreads max number of hung threads to replace
+     */
+    public void setMaxQuarantinedThreads(int maxQuarantinedThreads) {
+        if (maxQuarantinedThreads < 0) {
+            throw new InvalidParameterException("maxQuarantinedThreads can't be negative: " + maxQuarantinedThreads);
+        }
+        
+        _maxQuarantinedThreads = maxQuarantinedThreads;
+    }
+    
+    public boolean isUseDeclaredMimeType() {
+        return _useDeclaredMimeType;
+    }
+    
+    /**
+     * Set whether the parser should use the document's declared mime type (from the
+     * Content-Type header) to pick the Tika parser, versus running Tika's detectors
+     * on every document. If the content doesn't look like the declared type, or the
+     * parser for that type fails, the document is parsed again with auto-detection.
+     * 
+     * @param useDeclaredMimeType true to skip auto-detection when possible
+     */
+    public void setUseDeclaredMimeType(boolean useDeclaredMimeType) {
+        _useDeclaredMimeType = useDeclaredMimeType;
+    }
+    
+    public int getMaxLanguageSampleChars() {
+        return _maxLanguageSampleChars;
+    }
+    
+    /**
+     * Set the max number of characters of text that are profiled to detect the
+     * language of a document, when the document doesn't specify its language.
+     * 
+     * @param maxLanguageSampleChars max number of characters to profile
+     */
+    public void setMaxLanguageSampleChars(int maxLanguageSampleChars) {
+        if (maxLanguageSampleChars <= 0) {
+            throw new InvalidParameterException("maxLanguageSampleChars must be > 0: " + maxLanguageSampleChars);
+        }
+        
+        _maxLanguageSampleChars = maxLanguageSampleChars;
+    }
+    
+    public double getLanguageConfidenceThreshold() {
+        return _languageConfidenceThreshold;
+    }
+    
+    /**
+     * Set the confidence (0.0 - 1.0) in the detected language at which we stop profiling
+     * text, even if we haven't hit the max number of characters. Use 1.0 to always profile
+     * up to the max.
+     * 
+     * @param languageConfidenceThreshold confidence at which detection stops
+     */
+    public void setLanguageConfidenceThreshold(double languageConfidenceThreshold) {
+        if ((languageConfidenceThreshold < 0.0) || (languageConfidenceThreshold > 1.0)) {
+            throw new InvalidParameterException("languageConfidenceThreshold must be between 0.0 and 1.0: " + languageConfidenceThreshold);
+        }
+        
+        _languageConfidenceThreshold = languageConfidenceThreshold;
+    }
+    
     public Set<String> getLinkTags() {
         return _linkTags;
     }
@@ -97,6 +184,11 @@ public class ParserPolicy implements Serializable {
         result = prime * result + ((_linkAttributeTypes == null) ? 0 : _linkAttributeTypes.hashCode());
         result = prime * result + ((_linkTags == null) ? 0 : _linkTags.hashCode());
         result = prime * result + _maxParseDuration;
+        result = prime * result + _maxQuarantinedThreads;
+        result = prime * result + (_useDeclaredMimeType ? 1231 : 1237);
+        result = prime * result + _maxLanguageSampleChars;
+        long temp = Double.doubleToLongBits(_languageConfidenceThreshold);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
         return result;
     }
 
@@ -121,6 +213,14 @@ public class ParserPolicy implements Serializable {
             return false;
         if (_maxParseDuration != other._maxParseDuration)
             return false;
+        if (_maxQuarantinedThreads != other._maxQuarantinedThreads)
+            return false;
+        if (_useDeclaredMimeType != other._useDeclaredMimeType)
+            return false;
+        if (_maxLanguageSampleChars != other._maxLanguageSampleChars)
+            return false;
+        if (Double.doubleToLongBits(_languageConfidenceThreshold) != Double.doubleToLongBits(other._languageConfidenceThreshold))
+            return false;
         return true;
     }
 
@@ -129,6 +229,14 @@ public class ParserPolicy implements Serializable {
         StringBuilder result = new StringBuilder();
         result.append("Max parse duration: " + getMaxParseDuration());
         result.append('\r');
+        result.append("Max quarantined threads: " + getMaxQuarantinedThreads());
+        result.append('\r');
+        result.append("Use declared mime type: " + isUseDeclaredMimeType());
+        result.append('\r');
+        result.append("Max language sample chars: " + getMaxLanguageSampleChars());
+        result.append('\r');
+        result.append("Language confidence threshold: " + getLanguageConfidenceThreshold());
+        result.append('\r');
         result.append("Link tags: " + getLinkTags());
         result.append('\r');
         result.append("Link attribute types: " + getLinkAttributeTypes());
@@ -16,22 +16,43 @@
  */
 package bixo.datum;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import org.apache.hadoop.io.BinaryComparable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 
+import bixo.hadoop.DiskBytesWritable;
+
+/**
+ * Fetched content, which is either in memory or (for large responses) spilled to a
+ * temp file by the fetcher.
+ * 
+ * Whoever ends up with spilled content has to call dispose() once the content has been
+ * serialized or loaded, since nothing else deletes the temp file. FetchBuffer does this
+ * for tuples it collects, but code that calls BaseFetcher.get() directly has to do it
+ * itself (see FetchedDatum.disposeContent()).
+ */
 @SuppressWarnings("serial")
 public class ContentBytes extends BinaryComparable implements WritableComparable<BinaryComparable>, Serializable {
 
     private static final int LENGTH_BYTES = 4;
     private static final byte[] EMPTY_BYTES = {};
 
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    
     private byte[] bytes;
+    
+    // Content that was spilled to disk while being fetched. We only load
+    // it into memory if somebody asks for the bytes, and otherwise stream it
+    // directly from disk when we're serialized.
+    private transient DiskBytesWritable spilled;
 
     public ContentBytes() {
         this(EMPTY_BYTES);
@@ -41,25 +62,107 @@ public class ContentBytes extends BinaryComparable implements WritableComparable
         this.bytes = bytes;
     }
     
+    public ContentBytes(DiskBytesWritable spilled) {
+        this.bytes = null;
+        this.spilled = spilled;
+    }
+    
     public byte[] getBytes() {
+        if (bytes == null) {
+            try {
+                bytes = spilled.get();
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading spilled content", e);
+            }
+        }
+        
         return bytes;
       }
 
     @Override
     public int getLength() {
-        return bytes.length;
+        return bytes == null ? spilled.getSize() : bytes.length;
+    }
+    
+    /**
+     * Return true if the content is on disk, and hasn't been loaded into memory.
+     * 
+     * @return true if content is spilled to disk
+     */
+    public boolean isSpilled() {
+        return bytes == null;
+    }
+    
+    /**
+     * Return a stream of the content, which avoids loading spilled content into memory.
+     * 
+     * @return content stream
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        if (bytes == null) {
+            return spilled.getInputStream();
+        } else {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+    
+    /**
+     * Delete any spilled content from disk. This must only be called once the content
+     * has been serialized (or loaded into memory), as otherwise it's lost.
+     */
+    public void dispose() {
+        if (spilled != null) {
+            spilled.dispose();
+            if (bytes == null) {
+                bytes = EMPTY_BYTES;
+            }
+            
+            spilled = null;
+        }
     }
     
     public void readFields(DataInput in) throws IOException {
         int size = in.readInt();
         bytes = new byte[size];
         in.readFully(bytes, 0, size);
+        spilled = null;
       }
       
       // inherit javadoc
       public void write(DataOutput out) throws IOException {
-        out.writeInt(bytes.length);
-        out.write(bytes, 0, bytes.length);
+        if (bytes != null) {
+            out.writeInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else {
+            // Same format as in-memory content, but we don't need to load it all into memory.
+            int size = spilled.getSize();
+            out.writeInt(size);
+            
+            InputStream is = spilled.getInputStream();
+            
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int copied = 0;
+                while (copied < size) {
+                    int bytesRead = is.read(buffer, 0, Math.min(buffer.length, size - copied));
+                    if (bytesRead == -1) {
+                        throw new IOException("Spilled content is shorter than expected");
+                    }
+                    
+                    out.write(buffer, 0, bytesRead);
+                    copied += bytesRead;
+                }
+            } finally {
+                is.close();
+            }
+        }
+      }
+      
+      private void writeObject(ObjectOutputStream out) throws IOException {
+          // Java serialization doesn't know about spilled content, so load it.
+          getBytes();
+          out.defaultWriteObject();
       }
       
       public int hashCode() {
@@ -81,6 +184,7 @@ public class ContentBytes extends BinaryComparable implements WritableComparable
        * Generate the stream of bytes as hex pairs separated by ' '.
        */
       public String toString() {
+          byte[] bytes = getBytes();
           int size = bytes.length;
           StringBuffer sb = new StringBuffer(3*size);
           for (int idx = 0; idx < size; idx++) {
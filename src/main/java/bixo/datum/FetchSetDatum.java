@@ -81,6 +81,16 @@ public class FetchSetDatum extends BaseDatum {
         return result;
     }
     
+    /**
+     * Return the number of URLs in this fetch set, without the cost of
+     * creating the ScoredUrlDatums (as per getUrls().size()).
+     * 
+     * @return number of URLs
+     */
+    public int getUrlCount() {
+        return ((Tuple)_tupleEntry.getObject(URLS_FN)).size();
+    }
+    
     public void setUrls(List<ScoredUrlDatum> urls) {
         Tuple result = new Tuple();
         for (ScoredUrlDatum datum : urls) {
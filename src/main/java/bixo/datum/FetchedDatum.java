@@ -151,6 +151,14 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
         return ((ContentBytes)_tupleEntry.getObject(CONTENT_FN)).getLength();
     }
     
+    /**
+     * Delete any content that the fetcher spilled to disk. Code that calls BaseFetcher.get()
+     * directly owns the result, so it has to call this once it's done with the content.
+     */
+    public void disposeContent() {
+        ((ContentBytes)_tupleEntry.getObject(CONTENT_FN)).dispose();
+    }
+    
     public void setContent(ContentBytes content) {
         if (content == null) {
             throw new InvalidParameterException("content cannot be null");
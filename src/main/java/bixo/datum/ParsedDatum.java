@@ -38,9 +38,10 @@ public class ParsedDatum extends PayloadDatum {
     public static final String TITLE_FN = fieldName(ParsedDatum.class, "title");
     public static final String OUTLINKS_FN = fieldName(ParsedDatum.class, "outLinks");
     public static final String PARSED_META_FN = fieldName(ParsedDatum.class, "parsedMeta");
+    public static final String LANGUAGE_CONFIDENCE_FN = fieldName(ParsedDatum.class, "languageConfidence");
 
     public static final Fields FIELDS = new Fields(URL_FN, HOST_ADDRESS_FN, PARSED_TEXT_FN, LANGUAGE_FN, 
-                    TITLE_FN, OUTLINKS_FN, PARSED_META_FN).append(getSuperFields(ParsedDatum.class));
+                    TITLE_FN, OUTLINKS_FN, PARSED_META_FN, LANGUAGE_CONFIDENCE_FN).append(getSuperFields(ParsedDatum.class));
 
     /**
      * No argument constructor for use with FutureTask
@@ -55,12 +56,17 @@ public class ParsedDatum extends PayloadDatum {
     }
     
     public ParsedDatum(String url, String hostAddress, String parsedText, String language, String title, Outlink[] outlinks, Map<String, String> parsedMeta) {
+        this(url, hostAddress, parsedText, language, 0.0, title, outlinks, parsedMeta);
+    }
+    
+    public ParsedDatum(String url, String hostAddress, String parsedText, String language, double languageConfidence, String title, Outlink[] outlinks, Map<String, String> parsedMeta) {
         super(FIELDS);
         
         setUrl(url);
         setHostAddress(hostAddress);
         setParsedText(parsedText);
         setLanguage(language);
+        setLanguageConfidence(languageConfidence);
         setTitle(title);
         setOutlinks(outlinks);
         setParsedMeta(parsedMeta);
@@ -98,6 +104,18 @@ public class ParsedDatum extends PayloadDatum {
         _tupleEntry.setString(LANGUAGE_FN, language);
     }
 
+    /**
+     * @return confidence (0.0 - 1.0) in the language, which is 1.0 if the language was
+     * specified by the document or response headers, and 0.0 if it's unknown.
+     */
+    public double getLanguageConfidence() {
+        return _tupleEntry.getDouble(LANGUAGE_CONFIDENCE_FN);
+    }
+
+    public void setLanguageConfidence(double languageConfidence) {
+        _tupleEntry.setDouble(LANGUAGE_CONFIDENCE_FN, languageConfidence);
+    }
+
     public String getTitle() {
         return _tupleEntry.getString(TITLE_FN);
     }
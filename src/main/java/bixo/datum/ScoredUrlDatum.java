@@ -30,6 +30,12 @@ public class ScoredUrlDatum extends GroupedUrlDatum implements Serializable {
     public static final Fields FIELDS = new Fields(STATUS_FN, SCORE_FN).append(getSuperFields(ScoredUrlDatum.class));
     
     private static final double DEFAULT_SCORE = 1.0;
+    
+    // Payload keys for values from a previous fetch of this URL. If set, the fetcher
+    // will do a conditional GET. The ETag value is the header value as returned by the
+    // server. The Last-Modified value can be the header value, or a Long or Date.
+    public static final String ETAG_PAYLOAD_KEY = "bixo-etag";
+    public static final String LAST_MODIFIED_PAYLOAD_KEY = "bixo-last-modified";
 
     public ScoredUrlDatum() {
         super(FIELDS);
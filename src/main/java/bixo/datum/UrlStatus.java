@@ -53,6 +53,8 @@ public enum UrlStatus {
     ERROR_INVALID_URL,
     ERROR_IOEXCEPTION,
     
+    UNMODIFIED, // Not fetched because it hasn't changed (304 response to conditional GET)
+    
     FETCHED;    // Successfully fetched
 
 }
@@ -26,6 +26,8 @@ import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.BaseFetchException;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.SimpleHostResolver;
 
 @SuppressWarnings("serial")
 public abstract class BaseFetcher implements Serializable {
@@ -34,12 +36,14 @@ public abstract class BaseFetcher implements Serializable {
     protected FetcherPolicy _fetcherPolicy;
     protected UserAgent _userAgent;
     protected Map<String, Integer> _maxContentSizes;
+    protected BaseHostResolver _hostResolver;
     
     public BaseFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
         _maxThreads = maxThreads;
         _fetcherPolicy = fetcherPolicy;
         _userAgent = userAgent;
         _maxContentSizes = new HashMap<String, Integer>();
+        _hostResolver = new SimpleHostResolver();
     }
 
     public int getMaxThreads() {
@@ -54,6 +58,21 @@ public abstract class BaseFetcher implements Serializable {
         return _userAgent;
     }
     
+    public BaseHostResolver getHostResolver() {
+        return _hostResolver;
+    }
+    
+    /**
+     * Set the resolver used for host names, both when processing robots.txt and (for
+     * fetchers that support it) when opening connections. This must be called before
+     * the fetcher is used.
+     * 
+     * @param hostResolver resolver to use
+     */
+    public void setHostResolver(BaseHostResolver hostResolver) {
+        _hostResolver = hostResolver;
+    }
+    
     // TODO KKr Move into a _defaultMaxContentSize field when support is removed
     // from FetcherPolicy.
     //
@@ -83,7 +102,28 @@ public abstract class BaseFetcher implements Serializable {
         return result;
     }
 
-    // Return results of HTTP GET request
+    /**
+     * Return the number of times a response buffer was reused, for fetchers
+     * that pool their buffers.
+     * 
+     * @return buffer pool hit count
+     */
+    public long getBufferPoolHits() {
+        return 0;
+    }
+    
+    /**
+     * Return the number of times a response buffer had to be allocated, for
+     * fetchers that pool their buffers.
+     * 
+     * @return buffer pool miss count
+     */
+    public long getBufferPoolMisses() {
+        return 0;
+    }
+    
+    // Return results of HTTP GET request. The caller must call disposeContent() on
+    // the result when it's done, in case the content was spilled to disk.
     public abstract FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException;
     
     public abstract void abort();
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +33,7 @@ import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.hadoop.FetchCounters;
 import cascading.tuple.Tuple;
@@ -39,6 +41,11 @@ import cascading.tuple.Tuple;
 
 /**
  * Runnable instance for fetching a set of URLs from the same server, using keep-alive.
+ * 
+ * If we have to wait before fetching the next page (due to the fetcher policy's min
+ * page fetch interval), we don't sleep. Instead we hand ourselves back to the fetch
+ * manager, which runs us again once the delay has passed, so the thread can be used
+ * to fetch from some other server in the meantime.
  *
  */
 public class FetchTask implements Runnable {
@@ -49,6 +56,9 @@ public class FetchTask implements Runnable {
     private List<ScoredUrlDatum> _items;
     private String _ref;
     
+    // Null until we start running, and then the items we haven't fetched yet.
+    private Iterator<ScoredUrlDatum> _iter;
+    
     public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref) {
         _fetchMgr = fetchMgr;
         _httpFetcher = httpFetcher;
@@ -56,119 +66,179 @@ public class FetchTask implements Runnable {
         _ref = ref;
     }
 
+    public String getRef() {
+        return _ref;
+    }
+    
     @SuppressWarnings("rawtypes")
     @Override
     public void run() {
         LoggingFlowProcess process = _fetchMgr.getProcess();
-        process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
-        final long minPageFetchInterval = _httpFetcher.getFetcherPolicy().getMinPageFetchInterval();
+        if (_iter == null) {
+            process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+            _iter = _items.iterator();
+        }
+        
+        boolean delayed = false;
         
         try {
             // TODO KKr - when fetching the last item, send a Connection: close
             // header to let the server know it doesn't need to keep the socket open.
-            Iterator<ScoredUrlDatum> iter = _items.iterator();
-            while (!Thread.interrupted() && iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                
-                // We use status as an extra field on the end of of FetchedDatum that lets
-                // us generate a full status pipe, and also a content pipe that only has
-                // entries which were fetched. By keying off the type (string == OK,
-                // BaseFetchException == bad) the FetchPipe can do this magic.
-                Comparable status = null;
-
-                long fetchStartTime = System.currentTimeMillis();
+            while (!Thread.interrupted() && _iter.hasNext()) {
+                long delay = fetch(_iter.next(), process);
                 
-                try {
-                    process.increment(FetchCounters.URLS_FETCHING, 1);
-                    result = _httpFetcher.get(item);
-                    long deltaTime = System.currentTimeMillis() - fetchStartTime;
-
-                    process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
-                    process.increment(FetchCounters.URLS_FETCHED, 1);
-                    process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
-                    process.setStatus(Level.SLF4J_TRACE, "Fetched " + result);
-
-                    status = UrlStatus.FETCHED.toString();
-                    
-                    // TODO - check keep-alive response (if present), and close the connection/delay
-                    // for some amount of time if we exceed this limit.
-                } catch (AbortedFetchException e) {
-                    LOGGER.info("Aborted while fetching " + item.getUrl() + " due to " + e.getAbortReason());
-                    if (e.getAbortReason() == AbortedFetchReason.INTERRUPTED) {
-                        process.increment(FetchCounters.URLS_SKIPPED, 1);
-                        
-                        // Make sure our loop terminates.
-                        Thread.currentThread().interrupt();
-                    } else {
-                        process.increment(FetchCounters.URLS_FAILED, 1);
-                    }
-                    
-                    status = (Comparable)e;
-                } catch (BaseFetchException e) {
-                    LOGGER.info("Fetch exception while fetching " + item.getUrl(), e);
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-
-                    // We can do this because each of the concrete subclasses of BaseFetchException implements
-                    // WritableComparable/ But we need to clear out the cause of the exception if it's the
-                    // exception itself, as that can cause a circular reference for when we use Kryo (in local
-                    // mode) to serialize things.
-                    Throwable cause = e.getCause();
-                    if (cause == e) {
-                        e.initCause(null);
-                    }
-                    
-                    status = (Comparable)e;
-                } catch (Exception e) {
-                    LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
-
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-                    status = new IOFetchException(item.getUrl(), new IOException(e));
-                } finally {
-                    process.decrement(FetchCounters.URLS_FETCHING, 1);
-
-                    Tuple tuple = result.getTuple();
-                    tuple.add(status);
-                    _fetchMgr.collect(tuple);
-
-                    // Figure out how long it's been since the start of the request.
-                    long fetchInterval = System.currentTimeMillis() - fetchStartTime;
-
-                    // We want to avoid fetching faster than a max acceptable rate. Note that we always do
-                    // this, even if there's not another page, so that this setting will have impact even
-                    // if the next fetch set is ready right away.
-                    if (fetchInterval < minPageFetchInterval) {
-                        long delay = minPageFetchInterval - fetchInterval;
-                        LOGGER.trace(String.format("FetchTask: sleeping for %dms", delay));
-
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            LOGGER.warn("FetchTask interrupted!");
-                            Thread.currentThread().interrupt();
-                            continue;
-                        }
-                    }
+                // We want to avoid fetching faster than a max acceptable rate. Note that we always do
+                // this, even if there's not another page, so that this setting will have impact even
+                // if the next fetch set is ready right away.
+                if ((delay > 0) && !Thread.currentThread().isInterrupted()) {
+                    LOGGER.trace(String.format("FetchTask: delaying next fetch from %s for %dms", _ref, delay));
+                    _fetchMgr.resumeLater(this, delay);
+                    delayed = true;
+                    return;
                 }
             }
             
             // While we still have entries, we need to write them out to avoid losing them.
-            while (iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
+            skipItems(process);
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+        } finally {
+            if (!delayed) {
+                finish(process);
+            }
+        }
+    }
+
+    /**
+     * Skip all of the URLs we haven't fetched yet, and let the fetch manager know that
+     * we're done. This is called by the fetch manager (instead of run()) for a task that's
+     * waiting to be resumed, when fetching is being terminated.
+     */
+    @SuppressWarnings("rawtypes")
+    public void skipRemaining() {
+        LoggingFlowProcess process = _fetchMgr.getProcess();
+        if (_iter == null) {
+            process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+            _iter = _items.iterator();
+        }
+        
+        try {
+            skipItems(process);
+        } catch (Throwable t) {
+            LOGGER.error("Exception while skipping remaining URLs", t);
+        } finally {
+            finish(process);
+        }
+    }
+    
+    /**
+     * Fetch <item>, and collect the result.
+     * 
+     * @param item URL to fetch
+     * @param process flow process for counters and status
+     * @return time (in milliseconds) to wait before the next fetch, or 0
+     */
+    @SuppressWarnings("rawtypes")
+    private long fetch(ScoredUrlDatum item, LoggingFlowProcess process) {
+        FetchedDatum result = new FetchedDatum(item);
+        
+        // We use status as an extra field on the end of of FetchedDatum that lets
+        // us generate a full status pipe, and also a content pipe that only has
+        // entries which were fetched. By keying off the type (string == OK,
+        // BaseFetchException == bad) the FetchPipe can do this magic.
+        Comparable status = null;
+
+        long fetchStartTime = System.currentTimeMillis();
+        
+        try {
+            process.increment(FetchCounters.URLS_FETCHING, 1);
+            result = _httpFetcher.get(item);
+            long deltaTime = System.currentTimeMillis() - fetchStartTime;
+
+            process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
+            process.increment(FetchCounters.URLS_FETCHED, 1);
+            process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+            process.setStatus(Level.SLF4J_TRACE, "Fetched " + result);
+
+            status = UrlStatus.FETCHED.toString();
+            
+            // TODO - check keep-alive response (if present), and close the connection/delay
+            // for some amount of time if we exceed this limit.
+        } catch (AbortedFetchException e) {
+            LOGGER.info("Aborted while fetching " + item.getUrl() + " due to " + e.getAbortReason());
+            if (e.getAbortReason() == AbortedFetchReason.INTERRUPTED) {
                 process.increment(FetchCounters.URLS_SKIPPED, 1);
-                AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
                 
-                Tuple tuple = result.getTuple();
-                tuple.add(status);
-               _fetchMgr.collect(tuple);
+                // Make sure our loop terminates.
+                Thread.currentThread().interrupt();
+            } else {
+                process.increment(FetchCounters.URLS_FAILED, 1);
             }
-        } catch (Throwable t) {
-            LOGGER.error("Exception while fetching", t);
+            
+            status = (Comparable)e;
+        } catch (BaseFetchException e) {
+            if (isNotModified(e)) {
+                // Conditional GET for a page that hasn't changed, so not an error. We
+                // keep the response headers, as they can have an updated ETag, etc.
+                LOGGER.debug("Not modified: " + item.getUrl());
+                process.increment(FetchCounters.URLS_UNMODIFIED, 1);
+                result.setHeaders(((HttpFetchException)e).getHttpHeaders());
+                status = UrlStatus.UNMODIFIED.toString();
+            } else {
+                LOGGER.info("Fetch exception while fetching " + item.getUrl(), e);
+                process.increment(FetchCounters.URLS_FAILED, 1);
+
+                // We can do this because each of the concrete subclasses of BaseFetchException implements
+                // WritableComparable/ But we need to clear out the cause of the exception if it's the
+                // exception itself, as that can cause a circular reference for when we use Kryo (in local
+                // mode) to serialize things.
+                Throwable cause = e.getCause();
+                if (cause == e) {
+                    e.initCause(null);
+                }
+
+                status = (Comparable)e;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
+
+            process.increment(FetchCounters.URLS_FAILED, 1);
+            status = new IOFetchException(item.getUrl(), new IOException(e));
         } finally {
-            _fetchMgr.finished(_ref);
-            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            process.decrement(FetchCounters.URLS_FETCHING, 1);
+
+            Tuple tuple = result.getTuple();
+            tuple.add(status);
+            _fetchMgr.collect(tuple);
+        }
+        
+        // Figure out how long it's been since the start of the request.
+        long fetchInterval = System.currentTimeMillis() - fetchStartTime;
+        return Math.max(0, _httpFetcher.getFetcherPolicy().getMinPageFetchInterval() - fetchInterval);
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private void skipItems(LoggingFlowProcess process) {
+        while (_iter.hasNext()) {
+            ScoredUrlDatum item = _iter.next();
+            FetchedDatum result = new FetchedDatum(item);
+            process.increment(FetchCounters.URLS_SKIPPED, 1);
+            AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
+            
+            Tuple tuple = result.getTuple();
+            tuple.add(status);
+           _fetchMgr.collect(tuple);
         }
     }
+    
+    @SuppressWarnings("rawtypes")
+    private void finish(LoggingFlowProcess process) {
+        _fetchMgr.finished(_ref);
+        process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+    }
+    
+    private static boolean isNotModified(BaseFetchException e) {
+        return (e instanceof HttpFetchException) && (((HttpFetchException)e).getHttpStatus() == HttpStatus.SC_NOT_MODIFIED);
+    }
 
 }
@@ -21,13 +21,14 @@ import java.security.InvalidParameterException;
 import com.scaleunlimited.cascading.Payload;
 
 
+import bixo.datum.ContentBytes;
 import bixo.datum.HttpHeaders;
 
 public class FetchedResult {
     private final String _baseUrl;
     private final String _fetchedUrl;
     private final long _fetchTime;
-    private final byte[] _content;
+    private final ContentBytes _content;
     private final String _contentType;
     private final int _responseRate;
     private final HttpHeaders _headers;
@@ -48,6 +49,21 @@ public class FetchedResult {
 	                        String newBaseUrl,
 	                        int numRedirects,
 	                        String hostAddress){
+        this(baseUrl, redirectedUrl, fetchTime, headers, content == null ? null : new ContentBytes(content),
+             contentType, responseRate, payload, newBaseUrl, numRedirects, hostAddress);
+    }
+    
+    public FetchedResult(   String baseUrl,
+                            String redirectedUrl,
+                            long fetchTime,
+                            HttpHeaders headers, 
+                            ContentBytes content,
+                            String contentType,
+                            int responseRate,
+                            Payload payload,
+                            String newBaseUrl,
+                            int numRedirects,
+                            String hostAddress){
         _payload = payload;
 		
 		if (baseUrl == null) {
@@ -107,7 +123,11 @@ public class FetchedResult {
 	}
 
 	public byte[] getContent() {
-		return _content;
+		return _content.getBytes();
+	}
+
+	public ContentBytes getContentBytes() {
+	    return _content;
 	}
 
 	public String getContentType() {
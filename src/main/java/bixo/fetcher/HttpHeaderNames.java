@@ -41,6 +41,12 @@ public interface HttpHeaderNames {
     public final static String CONTENT_TYPE = "Content-Type";
 
     public final static String LAST_MODIFIED = "Last-Modified";
+    
+    public final static String ETAG = "ETag";
+    
+    public final static String IF_MODIFIED_SINCE = "If-Modified-Since";
+    
+    public final static String IF_NONE_MATCH = "If-None-Match";
 
     public final static String LOCATION = "Location";
 
@@ -31,4 +31,13 @@ public interface IFetchMgr {
     
     public void finished(String ref);
     
+    /**
+     * Run <task> again once <delay> milliseconds have passed, so that it can fetch
+     * its next URL without tying up a thread while it waits.
+     * 
+     * @param task fetch task with more work to do
+     * @param delay time to wait, in milliseconds
+     */
+    public void resumeLater(FetchTask task, long delay);
+    
 }
@@ -0,0 +1,824 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.RedirectException;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scaleunlimited.cascading.Payload;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.config.UserAgent;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.exceptions.UrlFetchException;
+import bixo.utils.EncodingUtils;
+import bixo.utils.EncodingUtils.ExpandedResult;
+import bixo.utils.HttpUtils;
+
+/**
+ * Fetcher that uses HttpAsyncClient, so that socket I/O for all in-flight requests
+ * is multiplexed over a small number of reactor threads, instead of each request
+ * tying up a blocked socket read.
+ *
+ * This is a drop-in replacement for {@link SimpleHttpFetcher}, with the same handling of
+ * redirects, mime-type filtering, minimum response rate, and content truncation.
+ *
+ * The calling thread still waits for the result of each get() call, so the FetchBuffer's
+ * threading model is unchanged, and the number of requests in flight is still limited by
+ * the number of fetch threads. The reactor threads replace per-request socket reads, but
+ * that only pays off when there are many more fetch threads than processors, which means
+ * using virtual threads (see {@link FetcherPolicy#setUseVirtualThreads(boolean)}) with a
+ * high max threads value. With a handful of platform threads, this is no faster than
+ * {@link SimpleHttpFetcher}.
+ *
+ * By default the connection pool is the same size as max threads, since that's as many
+ * requests as can be active at once. Use {@link #setMaxConnections(int)} to keep more idle
+ * keep-alive connections around when fetching from lots of hosts.
+ */
+@SuppressWarnings("serial")
+public class NioHttpFetcher extends BaseFetcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioHttpFetcher.class);
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+
+    private static final int DEFAULT_MAX_THREADS = 1;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+
+    // Keys used to access data in the HTTP execution context.
+    private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
+    private static final String REDIRECT_COUNT_CONTEXT_KEY = "redirect-count";
+    private static final String LAST_LOCATION_CONTEXT_KEY = "last-location";
+    private static final String HOST_ADDRESS = "host-address";
+
+    private static final String SSL_CONTEXT_NAMES[] = {
+        "TLS",
+        "Default",
+        "SSL",
+    };
+
+    private static final String TEXT_MIME_TYPES[] = {
+        "text/html",
+        "application/x-asp",
+        "application/xhtml+xml",
+        "application/vnd.wap.xhtml+xml",
+    };
+
+    private int _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int _ioThreads = Runtime.getRuntime().availableProcessors();
+    private int _maxConnections = 0;
+    private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+
+    // Volatile since close() can null this out while other threads are fetching.
+    transient private volatile CloseableHttpAsyncClient _httpClient;
+    transient private volatile Set<Future<ResponseConsumer>> _pendingRequests;
+
+    /**
+     * Exception thrown from inside of the response consumer, which causes the
+     * request to be terminated. The consumer state tells us what to do with it.
+     */
+    private static class ConsumerAbortException extends IOException {
+
+        private BaseFetchException _fetchException;
+
+        public ConsumerAbortException(BaseFetchException fetchException) {
+            super(fetchException.getMessage());
+            _fetchException = fetchException;
+        }
+
+        public BaseFetchException getFetchException() {
+            return _fetchException;
+        }
+    }
+
+    /**
+     * Exception thrown from inside of the response consumer when we've received
+     * as much content as we want. The response is still valid.
+     */
+    private static class ContentLimitException extends IOException {
+
+        public ContentLimitException() {
+            super("Reached target content length");
+        }
+    }
+
+    private static class MyRedirectException extends RedirectException {
+
+        private URI _uri;
+        private RedirectExceptionReason _reason;
+
+        public MyRedirectException(String message, URI uri, RedirectExceptionReason reason) {
+            super(message);
+            _uri = uri;
+            _reason = reason;
+        }
+
+        public URI getUri() {
+            return _uri;
+        }
+
+        public RedirectExceptionReason getReason() {
+            return _reason;
+        }
+    }
+
+    /**
+     * Redirect strategy that records the redirect count, last permanent redirect,
+     * and last location in the context, and enforces our redirect mode.
+     *
+     */
+    private static class MyRedirectStrategy extends DefaultRedirectStrategy {
+
+        private RedirectMode _redirectMode;
+
+        public MyRedirectStrategy(RedirectMode redirectMode) {
+            super();
+
+            _redirectMode = redirectMode;
+        }
+
+        @Override
+        public URI getLocationURI(HttpRequest request, HttpResponse response, HttpContext context) throws ProtocolException {
+            URI result = super.getLocationURI(request, response, context);
+
+            // HACK - see SimpleHttpFetcher for why we strip out an explicit default port.
+            if (result.getScheme().equalsIgnoreCase("http") && (result.getPort() == 80)) {
+                try {
+                    result = new URI(result.getScheme(), result.getUserInfo(), result.getHost(), -1, result.getPath(), result.getQuery(), result.getFragment());
+                } catch (URISyntaxException e) {
+                    LOGGER.warn("Unexpected exception removing port from URI", e);
+                }
+            }
+
+            Integer count = (Integer)context.getAttribute(REDIRECT_COUNT_CONTEXT_KEY);
+            if (count == null) {
+                count = new Integer(0);
+            }
+
+            context.setAttribute(REDIRECT_COUNT_CONTEXT_KEY, count + 1);
+            context.setAttribute(LAST_LOCATION_CONTEXT_KEY, result);
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            boolean isPermRedirect = statusCode == HttpStatus.SC_MOVED_PERMANENTLY;
+            if (isPermRedirect) {
+                context.setAttribute(PERM_REDIRECT_CONTEXT_KEY, result);
+            }
+
+            if ((_redirectMode == RedirectMode.FOLLOW_NONE) ||
+                ((_redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+                RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED :
+                    RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+                throw new MyRedirectException("RedirectMode disallowed redirect: " + _redirectMode, result, reason);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Interceptor to record host address in context.
+     *
+     */
+    private static class MyRequestInterceptor implements HttpRequestInterceptor {
+
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            if (connection instanceof HttpInetConnection) {
+                context.setAttribute(HOST_ADDRESS, ((HttpInetConnection)connection).getRemoteAddress().getHostAddress());
+            }
+        }
+    }
+
+    /**
+     * Consumer that gets called back by the I/O reactor as response data arrives. All of
+     * the checks that SimpleHttpFetcher does in its read loop happen here, and any
+     * of them can terminate the request early by throwing an IOException.
+     */
+    private class ResponseConsumer extends AsyncByteConsumer<ResponseConsumer> {
+
+        private String _url;
+        private long _readStartTime;
+
+        private HttpHeaders _headers = new HttpHeaders();
+        private String _contentType = "";
+        private String _mimeType = "";
+        private int _maxContentSize;
+        private int _targetLength;
+        private boolean _truncated = false;
+
+        private ByteArrayOutputStream _out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
+        private int _totalRead = 0;
+        private int _readRequests = 0;
+        private long _readRate = 0;
+        private boolean _responseReceived = false;
+
+        public ResponseConsumer(String url, long readStartTime) {
+            super(BUFFER_SIZE);
+
+            _url = url;
+            _readStartTime = readStartTime;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+            _responseReceived = true;
+
+            for (Header header : response.getAllHeaders()) {
+                _headers.add(header.getName(), header.getValue());
+            }
+
+            int httpStatus = response.getStatusLine().getStatusCode();
+            if ((httpStatus < 200) || (httpStatus >= 300)) {
+                throw new ConsumerAbortException(new HttpFetchException(_url, "Error fetching " + _url, httpStatus, _headers));
+            }
+
+            Header cth = response.getFirstHeader(HttpHeaderNames.CONTENT_TYPE);
+            if (cth != null) {
+                _contentType = cth.getValue();
+            }
+
+            // Same mime-type filtering logic as SimpleHttpFetcher.
+            _mimeType = HttpUtils.getMimeTypeFromContentType(_contentType);
+            Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
+            if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+                if (!mimeTypes.contains(_mimeType)) {
+                    throw new ConsumerAbortException(new AbortedFetchException(_url, "Invalid mime-type: " + _mimeType, AbortedFetchReason.INVALID_MIMETYPE));
+                }
+            }
+
+            _maxContentSize = getMaxContentSize(_mimeType);
+            _targetLength = _maxContentSize;
+            String contentLengthStr = _headers.getFirst(HttpHeaderNames.CONTENT_LENGTH);
+            if (contentLengthStr != null) {
+                try {
+                    int contentLength = Integer.parseInt(contentLengthStr);
+                    if (contentLength > _targetLength) {
+                        _truncated = true;
+                    } else {
+                        _targetLength = contentLength;
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid content length in header: " + contentLengthStr);
+                }
+            }
+
+            if (_truncated && !isTextMimeType(_mimeType)) {
+                throw new ConsumerAbortException(new AbortedFetchException(_url, "Truncated image", AbortedFetchReason.CONTENT_SIZE));
+            }
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+            int bytesAvailable = buf.remaining();
+            int bytesToCopy = Math.min(bytesAvailable, _targetLength - _totalRead);
+            if (bytesToCopy > 0) {
+                byte[] chunk = new byte[bytesToCopy];
+                buf.get(chunk);
+                _out.write(chunk, 0, bytesToCopy);
+                _totalRead += bytesToCopy;
+            }
+
+            _readRequests += 1;
+
+            // Assume read time is at least one millisecond, to avoid DBZ exception.
+            long totalReadTime = Math.max(1, System.currentTimeMillis() - _readStartTime);
+            _readRate = (_totalRead * 1000L) / totalReadTime;
+
+            if (bytesToCopy < bytesAvailable) {
+                // The server sent more than we want (more than the content limit, or more
+                // than its Content-Length), so stop reading and flag it as truncated.
+                _truncated = true;
+                throw new ContentLimitException();
+            } else if (_truncated && (_totalRead >= _targetLength)) {
+                // The Content-Length told us the response is bigger than the limit, and
+                // we've got as much as we want, so don't wait around for the rest.
+                throw new ContentLimitException();
+            }
+
+            // Otherwise let the response complete normally, even if we've read exactly
+            // _targetLength bytes, so that the connection can be reused.
+
+            // Don't bail on the first read cycle, as we can get a hiccup starting out.
+            int minResponseRate = _fetcherPolicy.getMinResponseRate();
+            if ((_readRequests > 1) && (_readRate < minResponseRate)) {
+                throw new ConsumerAbortException(new AbortedFetchException(_url, "Slow response rate of " + _readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE));
+            }
+        }
+
+        @Override
+        protected ResponseConsumer buildResult(HttpContext context) throws Exception {
+            return this;
+        }
+
+        public boolean isResponseReceived() {
+            return _responseReceived;
+        }
+
+        public HttpHeaders getHeaders() {
+            return _headers;
+        }
+
+        public String getContentType() {
+            return _contentType;
+        }
+
+        public String getMimeType() {
+            return _mimeType;
+        }
+
+        public int getContentSizeLimit() {
+            return _maxContentSize;
+        }
+
+        public boolean isTruncated() {
+            return _truncated;
+        }
+
+        public byte[] getContent() {
+            return _out.toByteArray();
+        }
+
+        public long getReadRate() {
+            return _readRate;
+        }
+    }
+
+    public NioHttpFetcher(UserAgent userAgent) {
+        this(DEFAULT_MAX_THREADS, userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, UserAgent userAgent) {
+        this(maxThreads, new FetcherPolicy(), userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        // Just to be explicit, we rely on lazy initialization of this so that
+        // we don't have to worry about serializing it.
+        _httpClient = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_httpClient == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after HttpAsyncClient has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_httpClient == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after HttpAsyncClient has been initialized");
+        }
+    }
+
+    public int getIoThreads() {
+        return _ioThreads;
+    }
+
+    /**
+     * Set the number of I/O reactor threads used to service all connections.
+     *
+     * @param ioThreads number of reactor threads (defaults to number of processors)
+     */
+    public void setIoThreads(int ioThreads) {
+        if (_httpClient == null) {
+            _ioThreads = ioThreads;
+        } else {
+            throw new IllegalStateException("Can't change I/O thread count after HttpAsyncClient has been initialized");
+        }
+    }
+
+    public int getMaxConnections() {
+        return _maxConnections > 0 ? _maxConnections : _maxThreads;
+    }
+
+    /**
+     * Set the total number of connections in the pool, including idle keep-alive
+     * connections. This can't usefully be less than max threads, since each thread
+     * has at most one active request.
+     *
+     * @param maxConnections max pooled connections, or 0 to use max threads
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (_httpClient == null) {
+            _maxConnections = maxConnections;
+        } else {
+            throw new IllegalStateException("Can't change max connections after HttpAsyncClient has been initialized");
+        }
+    }
+
+    public String getAcceptEncoding() {
+        return _acceptEncoding;
+    }
+
+    public void setAcceptEncoding(String acceptEncoding) {
+        if (_httpClient == null) {
+            _acceptEncoding = acceptEncoding;
+        } else {
+            throw new IllegalStateException("Can't change accept encoding after HttpAsyncClient has been initialized");
+        }
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        init();
+
+        String url = scoredUrl.getUrl();
+        try {
+            FetchedResult result = doRequest(url, scoredUrl.getPayload());
+            FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
+                            result.getHeaders(), result.getContentBytes(), result.getContentType(),
+                            result.getResponseRate());
+            datum.setNewBaseUrl(result.getNewBaseUrl());
+            datum.setNumRedirects(result.getNumRedirects());
+            datum.setHostAddress(result.getHostAddress());
+            datum.setPayload(result.getPayload());
+            return datum;
+        } catch (AbortedFetchException e) {
+            // Don't bother reporting that we bailed because the mime-type wasn't one that we wanted.
+            if (e.getAbortReason() != AbortedFetchReason.INVALID_MIMETYPE) {
+                LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+            throw e;
+        } catch (HttpFetchException e) {
+            if (LOGGER.isTraceEnabled() && (e.getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+                LOGGER.trace(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+            throw e;
+        } catch (BaseFetchException e) {
+            LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            throw e;
+        }
+    }
+
+    private FetchedResult doRequest(String url, Payload payload) throws BaseFetchException {
+        LOGGER.trace("Fetching " + url);
+
+        HttpGet request;
+        try {
+            request = new HttpGet(new URI(url));
+        } catch (URISyntaxException e) {
+            throw new UrlFetchException(url, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new UrlFetchException(url, e.getMessage());
+        }
+
+        // If the fetcher gets closed while we're fetching, treat it like an abort.
+        CloseableHttpAsyncClient httpClient = _httpClient;
+        if (httpClient == null) {
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+
+        HttpContext localContext = new BasicHttpContext();
+        ResponseConsumer consumer = new ResponseConsumer(url, System.currentTimeMillis());
+        Future<ResponseConsumer> future;
+        try {
+            future = httpClient.execute(HttpAsyncMethods.create(request), consumer, localContext, null);
+        } catch (IllegalStateException e) {
+            // The client was closed after we got it.
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+
+        _pendingRequests.add(future);
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+
+            // Preserve interrupted status for the FetchTask.
+            Thread.currentThread().interrupt();
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } catch (CancellationException e) {
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } catch (ExecutionException e) {
+            mapException(url, e.getCause(), localContext);
+        } finally {
+            _pendingRequests.remove(future);
+        }
+
+        if (!consumer.isResponseReceived()) {
+            throw new IOFetchException(url, new IOException("No response received"));
+        }
+
+        String redirectedUrl = url;
+        URI lastLocation = (URI)localContext.getAttribute(LAST_LOCATION_CONTEXT_KEY);
+        if (lastLocation != null) {
+            redirectedUrl = toUrlString(url, lastLocation);
+        }
+
+        String newBaseUrl = null;
+        URI permRedirectUri = (URI)localContext.getAttribute(PERM_REDIRECT_CONTEXT_KEY);
+        if (permRedirectUri != null) {
+            newBaseUrl = toUrlString(url, permRedirectUri);
+        }
+
+        int numRedirects = 0;
+        Integer redirects = (Integer)localContext.getAttribute(REDIRECT_COUNT_CONTEXT_KEY);
+        if (redirects != null) {
+            numRedirects = redirects.intValue();
+        }
+
+        String hostAddress = (String)(localContext.getAttribute(HOST_ADDRESS));
+        if (hostAddress == null) {
+            throw new UrlFetchException(url, "Host address not saved in context");
+        }
+
+        byte[] content = consumer.getContent();
+        HttpHeaders headerMap = consumer.getHeaders();
+        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+            try {
+                ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, consumer.getContentSizeLimit());
+                if (expandedResult.isTruncated() && !isTextMimeType(consumer.getMimeType())) {
+                    throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
+                }
+
+                content = expandedResult.getExpanded();
+            } catch (IOException e) {
+                throw new IOFetchException(url, e);
+            }
+        }
+
+        return new FetchedResult(   url,
+                                    redirectedUrl,
+                                    System.currentTimeMillis(),
+                                    headerMap,
+                                    content,
+                                    consumer.getContentType(),
+                                    (int)consumer.getReadRate(),
+                                    payload,
+                                    newBaseUrl,
+                                    numRedirects,
+                                    hostAddress);
+    }
+
+    /**
+     * Map the exception that terminated an async request to the appropriate fetch exception. This
+     * returns normally only if the request was terminated because we had all the content we wanted.
+     */
+    private void mapException(String url, Throwable t, HttpContext localContext) throws BaseFetchException {
+        // The exception we threw might be wrapped by the async client, so walk the chain.
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ContentLimitException) {
+                return;
+            } else if (cause instanceof ConsumerAbortException) {
+                throw ((ConsumerAbortException)cause).getFetchException();
+            } else if (cause instanceof MyRedirectException) {
+                MyRedirectException mre = (MyRedirectException)cause;
+                throw new RedirectFetchException(url, toUrlString(url, mre.getUri()), mre.getReason());
+            } else if (cause instanceof RedirectException) {
+                URI lastLocation = (URI)localContext.getAttribute(LAST_LOCATION_CONTEXT_KEY);
+                String redirectUrl = (lastLocation == null) ? url : toUrlString(url, lastLocation);
+                throw new RedirectFetchException(url, redirectUrl, RedirectExceptionReason.TOO_MANY_REDIRECTS);
+            }
+        }
+
+        if (t instanceof IOException) {
+            throw new IOFetchException(url, (IOException)t);
+        } else {
+            throw new IOFetchException(url, new IOException(t));
+        }
+    }
+
+    private static String toUrlString(String url, URI uri) {
+        try {
+            return uri.toURL().toExternalForm();
+        } catch (MalformedURLException e) {
+            LOGGER.warn("Invalid URI saved during redirect handling: " + uri);
+            return url;
+        } catch (IllegalArgumentException e) {
+            // Relative URI, resolve against the original URL
+            try {
+                return new URL(new URL(url), uri.toString()).toExternalForm();
+            } catch (MalformedURLException e2) {
+                LOGGER.warn("Invalid URI saved during redirect handling: " + uri);
+                return url;
+            }
+        }
+    }
+
+    private static boolean isTextMimeType(String mimeType) {
+        for (String textContentType : TEXT_MIME_TYPES) {
+            if (textContentType.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void init() {
+        if (_httpClient == null) {
+            IOReactorConfig ioConfig = IOReactorConfig.custom()
+                .setIoThreadCount(_ioThreads)
+                .setConnectTimeout(_connectionTimeout)
+                .setSoTimeout(_socketTimeout)
+                .build();
+
+            RequestConfig.Builder requestConfig = RequestConfig.custom()
+                .setConnectTimeout(_connectionTimeout)
+                .setSocketTimeout(_socketTimeout)
+                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setAuthenticationEnabled(false);
+
+            if (_fetcherPolicy.getMaxRedirects() == 0) {
+                requestConfig.setRedirectsEnabled(false);
+            } else {
+                requestConfig.setRedirectsEnabled(true);
+                requestConfig.setMaxRedirects(_fetcherPolicy.getMaxRedirects());
+            }
+
+            List<Header> defaultHeaders = new ArrayList<Header>();
+            defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage()));
+            defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET));
+            defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT, DEFAULT_ACCEPT));
+            if (_acceptEncoding != null) {
+                defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT_ENCODING, _acceptEncoding));
+            }
+
+            SSLContext sslContext = null;
+            for (String contextName : SSL_CONTEXT_NAMES) {
+                try {
+                    sslContext = SSLContext.getInstance(contextName);
+                    sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
+                    break;
+                } catch (NoSuchAlgorithmException e) {
+                    LOGGER.debug("SSLContext algorithm not available: " + contextName);
+                    sslContext = null;
+                } catch (Exception e) {
+                    LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
+                    sslContext = null;
+                }
+            }
+
+            SchemeIOSessionStrategy sslStrategy;
+            if (sslContext != null) {
+                sslStrategy = new SSLIOSessionStrategy(sslContext, new AllowAllHostnameVerifier());
+            } else {
+                LOGGER.warn("No valid SSLContext found for https");
+                sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+            }
+
+            Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslStrategy)
+                .build();
+
+            // We need our own connection manager so that host names get resolved by our
+            // resolver, the same as with SimpleHttpFetcher.
+            PoolingNHttpClientConnectionManager cm;
+            try {
+                cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig),
+                    ManagedNHttpClientConnectionFactory.INSTANCE, sessionStrategies, _hostResolver);
+            } catch (IOReactorException e) {
+                throw new RuntimeException("Can't create I/O reactor", e);
+            }
+
+            cm.setMaxTotal(getMaxConnections());
+            cm.setDefaultMaxPerRoute(_fetcherPolicy.getMaxConnectionsPerHost());
+
+            HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(cm)
+                .setDefaultRequestConfig(requestConfig.build())
+                .setUserAgent(_userAgent.getUserAgentString())
+                .setDefaultHeaders(defaultHeaders)
+                .setRedirectStrategy(new MyRedirectStrategy(_fetcherPolicy.getRedirectMode()))
+                .addInterceptorLast(new MyRequestInterceptor())
+                .disableCookieManagement();
+
+            // Only publish the client once it's ready to use, since doRequest() doesn't lock.
+            CloseableHttpAsyncClient httpClient = builder.build();
+            httpClient.start();
+            _pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<Future<ResponseConsumer>, Boolean>());
+            _httpClient = httpClient;
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (_pendingRequests == null) {
+            return;
+        }
+
+        for (Future<ResponseConsumer> future : _pendingRequests) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Shut down the I/O reactor and release all connections. The fetcher will
+     * lazily create a new client if it's used again.
+     */
+    public synchronized void close() {
+        CloseableHttpAsyncClient httpClient = _httpClient;
+        if (httpClient != null) {
+            // Clear it first, so new requests don't use a client that's being closed.
+            _httpClient = null;
+
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                LOGGER.warn("Exception closing HttpAsyncClient", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of byte arrays used to read in response bodies, so that we're not
+ * allocating (and then garbage collecting) a new buffer for every fetch.
+ *
+ * Buffers are kept in a fixed number of slots. A thread starts looking for a free
+ * buffer in a slot picked by its thread id, so threads rarely contend for the
+ * same slot. This works the same way for pooled and virtual threads, unlike
+ * a ThreadLocal.
+ *
+ * Buffers bigger than the max retained size are never returned to the pool,
+ * so one huge response doesn't pin a lot of memory.
+ *
+ */
+public class ResponseBufferPool {
+
+    // How many slots we check when acquiring or releasing a buffer.
+    private static final int MAX_PROBES = 4;
+
+    private final AtomicReferenceArray<byte[]> _slots;
+    private final int _slotMask;
+    private final int _initialSize;
+    private final int _maxRetainedSize;
+
+    private final AtomicLong _hits;
+    private final AtomicLong _misses;
+
+    /**
+     * @param numThreads Number of threads that will be using the pool
+     * @param initialSize Size of newly allocated buffers
+     * @param maxRetainedSize Largest buffer that we'll keep in the pool
+     */
+    public ResponseBufferPool(int numThreads, int initialSize, int maxRetainedSize) {
+        if (numThreads < 1) {
+            throw new InvalidParameterException("ResponseBufferPool needs at least one thread");
+        }
+
+        if ((initialSize < 1) || (maxRetainedSize < initialSize)) {
+            throw new InvalidParameterException("ResponseBufferPool sizes are invalid");
+        }
+
+        // Round up to a power of two, so that we can mask to get the slot index.
+        int numSlots = 1;
+        while ((numSlots < numThreads) && (numSlots < (1 << 16))) {
+            numSlots <<= 1;
+        }
+
+        _slots = new AtomicReferenceArray<byte[]>(numSlots);
+        _slotMask = numSlots - 1;
+        _initialSize = initialSize;
+        _maxRetainedSize = maxRetainedSize;
+
+        _hits = new AtomicLong();
+        _misses = new AtomicLong();
+    }
+
+    /**
+     * Return a buffer from the pool if one is available, otherwise a newly allocated
+     * buffer. The buffer will be at least as big as the initial size, or <maxSize>
+     * if that's smaller. The contents of the buffer are undefined.
+     *
+     * @param maxSize Max number of bytes the caller will need.
+     * @return buffer to use
+     */
+    public byte[] acquire(int maxSize) {
+        int start = getStartSlot();
+        for (int i = 0; i < MAX_PROBES; i++) {
+            byte[] result = _slots.getAndSet((start + i) & _slotMask, null);
+            if (result != null) {
+                _hits.incrementAndGet();
+                return result;
+            }
+        }
+
+        _misses.incrementAndGet();
+        return new byte[Math.max(1, Math.min(_initialSize, maxSize))];
+    }
+
+    /**
+     * Return a buffer that's at least twice as big as <buffer> (but no bigger than
+     * <maxSize>), with the first <length> bytes copied from <buffer>. The caller
+     * should pass the new buffer to release() when it's done.
+     *
+     * @param buffer Current buffer
+     * @param length Number of valid bytes in <buffer>
+     * @param maxSize Max number of bytes the caller will need.
+     * @return bigger buffer
+     */
+    public byte[] grow(byte[] buffer, int length, int maxSize) {
+        int newSize = (int)Math.max(buffer.length, Math.min(maxSize, 2L * buffer.length));
+        byte[] result = new byte[newSize];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Put <buffer> back into the pool, unless it's too big or the pool is full.
+     * The caller must not use <buffer> after calling this method.
+     *
+     * @param buffer Buffer previously returned from acquire() or grow()
+     */
+    public void release(byte[] buffer) {
+        if ((buffer == null) || (buffer.length > _maxRetainedSize)) {
+            return;
+        }
+
+        int start = getStartSlot();
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (_slots.compareAndSet((start + i) & _slotMask, null, buffer)) {
+                return;
+            }
+        }
+
+        // Pool is full, so let it get garbage collected.
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    private int getStartSlot() {
+        long id = Thread.currentThread().getId();
+
+        // Mix the bits, since thread ids are sequential.
+        int hash = (int)(id ^ (id >>> 32));
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash & _slotMask;
+    }
+}
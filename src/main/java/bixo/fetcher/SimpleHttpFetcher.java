@@ -16,21 +16,27 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -63,9 +69,10 @@ import org.apache.http.client.params.ClientParamBean;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ClientConnectionOperator;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -75,6 +82,7 @@ import org.apache.http.cookie.params.CookieSpecParamBean;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultRedirectHandler;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
@@ -105,8 +113,9 @@ import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
 import bixo.exceptions.UrlFetchException;
+import bixo.hadoop.DiskBytesWritable;
+import bixo.utils.BaseHostResolver;
 import bixo.utils.EncodingUtils;
-import bixo.utils.EncodingUtils.ExpandedResult;
 import bixo.utils.HttpUtils;
 
 
@@ -130,14 +139,15 @@ public class SimpleHttpFetcher extends BaseFetcher {
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final int DEFAULT_MAX_RETRY_COUNT = 10;
     
+    // Size of newly allocated response buffers, and the largest buffer that we'll
+    // keep around for reuse.
     private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_BYTEARRAY_SIZE = 1024 * 1024;
     
-    // Use the same values as Firefox (except that we don't accept deflate,
-    // which we're not sure is implemented correctly - see the notes in
-    // EncodingUtils/EncodingUtilsTest for more details).
+    // Use the same values as Firefox.
     private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
     private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
-    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip, deflate";
 
     // Keys used to access data in the HTTP execution context.
     private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
@@ -164,6 +174,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
     private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
     
     transient private DefaultHttpClient _httpClient;
+    transient private ResponseBufferPool _bufferPool;
+    transient private Set<HttpRequestBase> _pendingRequests;
     
     private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
         private int _maxRetryCount;
@@ -277,6 +289,48 @@ public class SimpleHttpFetcher extends BaseFetcher {
     	}
     }
     
+    /**
+     * Connection operator that resolves host names using our host resolver.
+     *
+     */
+    private static class MyConnectionOperator extends DefaultClientConnectionOperator {
+        
+        private volatile BaseHostResolver _resolver;
+        
+        public MyConnectionOperator(SchemeRegistry schemeRegistry) {
+            super(schemeRegistry);
+        }
+        
+        public void setResolver(BaseHostResolver resolver) {
+            _resolver = resolver;
+        }
+        
+        @Override
+        protected InetAddress[] resolveHostname(String host) throws UnknownHostException {
+            BaseHostResolver resolver = _resolver;
+            return resolver == null ? super.resolveHostname(host) : resolver.resolve(host);
+        }
+    }
+    
+    /**
+     * Connection manager that uses MyConnectionOperator. The operator gets created by the
+     * super constructor, so we have to set its resolver afterwards.
+     *
+     */
+    private static class MyClientConnManager extends ThreadSafeClientConnManager {
+        
+        public MyClientConnManager(SchemeRegistry schemeRegistry, BaseHostResolver resolver) {
+            super(schemeRegistry);
+            
+            ((MyConnectionOperator)connOperator).setResolver(resolver);
+        }
+        
+        @Override
+        protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemeRegistry) {
+            return new MyConnectionOperator(schemeRegistry);
+        }
+    }
+    
     /**
      * Interceptor to record host address in context.
      *
@@ -393,7 +447,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
     
     private static FetchedDatum convert(FetchedResult result) {
     	FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
-    	                result.getHeaders(), new ContentBytes(result.getContent()), result.getContentType(),
+    	                result.getHeaders(), result.getContentBytes(), result.getContentType(),
     	                result.getResponseRate());
     	datum.setNewBaseUrl(result.getNewBaseUrl());
     	datum.setNumRedirects(result.getNumRedirects());
@@ -404,7 +458,37 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     @Override
     public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
-        return convert(request(new HttpGet(), scoredUrl));
+        HttpGet request = new HttpGet();
+        addConditionalHeaders(request, scoredUrl.getPayload());
+        return convert(request(request, scoredUrl));
+    }
+
+    /**
+     * If the payload has an ETag and/or Last-Modified value from a previous fetch, set up
+     * <request> to be a conditional GET. If the page hasn't changed, the server will
+     * return a 304, which we turn into an HttpFetchException that maps to UrlStatus.UNMODIFIED.
+     * 
+     * @param request Request to modify
+     * @param payload Payload for URL being fetched (can be null)
+     */
+    private static void addConditionalHeaders(HttpRequestBase request, Payload payload) {
+        if (payload == null) {
+            return;
+        }
+        
+        Object etag = payload.get(ScoredUrlDatum.ETAG_PAYLOAD_KEY);
+        if ((etag != null) && (etag.toString().length() > 0)) {
+            request.setHeader(HttpHeaderNames.IF_NONE_MATCH, etag.toString());
+        }
+        
+        Object lastModified = payload.get(ScoredUrlDatum.LAST_MODIFIED_PAYLOAD_KEY);
+        if (lastModified instanceof Date) {
+            request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, DateUtils.formatDate((Date)lastModified));
+        } else if (lastModified instanceof Long) {
+            request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, DateUtils.formatDate(new Date((Long)lastModified)));
+        } else if ((lastModified != null) && (lastModified.toString().length() > 0)) {
+            request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified.toString());
+        }
     }
 
     private FetchedResult request(HttpRequestBase request, ScoredUrlDatum scoredUrl) throws BaseFetchException {
@@ -413,8 +497,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
         try {
             return doRequest(request, scoredUrl.getUrl(), scoredUrl.getPayload());
         } catch (HttpFetchException e) {
-            // Don't bother generating a trace for a 404 (not found)
-            if (LOGGER.isTraceEnabled() && (e.getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+            // Don't bother generating a trace for a 404 (not found) or 304 (not modified)
+            if (LOGGER.isTraceEnabled() && (e.getHttpStatus() != HttpStatus.SC_NOT_FOUND) && (e.getHttpStatus() != HttpStatus.SC_NOT_MODIFIED)) {
                 LOGGER.trace(String.format("Exception fetching %s (%s)", scoredUrl.getUrl(), e.getMessage()));
             }
             
@@ -448,7 +532,20 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
+    /**
+     * Do the request, while keeping track of it so that abort() can terminate it.
+     */
     private FetchedResult doRequest(HttpRequestBase request, String url, Payload payload) throws BaseFetchException {
+        _pendingRequests.add(request);
+        
+        try {
+            return doTrackedRequest(request, url, payload);
+        } finally {
+            _pendingRequests.remove(request);
+        }
+    }
+    
+    private FetchedResult doTrackedRequest(HttpRequestBase request, String url, Payload payload) throws BaseFetchException {
         LOGGER.trace("Fetching " + url);
 
         HttpResponse response;
@@ -540,6 +637,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
         } catch (ClientProtocolException e) {
             // Oleg guarantees that no abort is needed in the case of an IOException (which is is a subclass of)
             needAbort = false;
+            checkAborted(url, request);
 
             // If the root case was a "too many redirects" error, we want to map this to a specific
             // exception that contains the final redirect.
@@ -562,6 +660,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
         } catch (IOException e) {
             // Oleg guarantees that no abort is needed in the case of an IOException
             needAbort = false;
+            checkAborted(url, request);
             
             if (e instanceof ConnectionPoolTimeoutException) {
                 // Should never happen, so let's dump some info about the connection pool.
@@ -586,12 +685,23 @@ public class SimpleHttpFetcher extends BaseFetcher {
             safeAbort(needAbort, request);
         }
         
+        // If the content is compressed, we decode it as we read it, so any limit
+        // is on the size of the decoded content.
+        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        boolean isEncoded = EncodingUtils.isSupportedEncoding(contentEncoding);
+        if ((contentEncoding != null) && LOGGER.isTraceEnabled()) {
+            fetchTrace.append("; Content-Encoding: " + contentEncoding);
+        }
+        
         // Figure out how much data we want to try to fetch.
         int maxContentSize = getMaxContentSize(mimeType);
         int targetLength = maxContentSize;
         boolean truncated = false;
         String contentLengthStr = headerMap.getFirst(HttpHeaderNames.CONTENT_LENGTH);
-        if (contentLengthStr != null) {
+        
+        // The content length is for the encoded content, so it doesn't tell us how much
+        // decoded content we'll get.
+        if ((contentLengthStr != null) && !isEncoded) {
             try {
                 int contentLength = Integer.parseInt(contentLengthStr);
                 if (contentLength > targetLength) {
@@ -607,20 +717,27 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
         // Now finally read in response body, up to targetLength bytes.
         // Note that entity might be null, for zero length responses.
-        byte[] content = new byte[0];
+        ContentBytes content = new ContentBytes();
         long readRate = 0;
         HttpEntity entity = response.getEntity();
         needAbort = true;
 
         if (entity != null) {
+            InputStream rawIn = null;
             InputStream in = null;
+            byte[] buffer = null;
+            DiskBytesWritable spilled = null;
 
             try {
-                in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
+                rawIn = entity.getContent();
+                in = EncodingUtils.getDecodingStream(rawIn, contentEncoding);
+                
+                // We read directly into a pooled buffer, which we grow as needed.
+                buffer = _bufferPool.acquire(targetLength);
+                int bufferLength = 0;
                 int bytesRead = 0;
                 int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
+                int spillThreshold = _fetcherPolicy.getContentSpillThreshold();
 
                 int readRequests = 0;
                 int minResponseRate = _fetcherPolicy.getMinResponseRate();
@@ -629,11 +746,31 @@ public class SimpleHttpFetcher extends BaseFetcher {
                 // metrics support for how to do this. Once we fix this, fix
                 // the test to read a smaller (< 20K)
                 // chuck of data.
-                while ((totalRead < targetLength)
-                    && ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
+                while (totalRead < targetLength) {
+                    if (bufferLength == buffer.length) {
+                        if ((spilled != null) || (bufferLength >= spillThreshold)) {
+                            // Content is too big to keep in memory, so flush the buffer to disk.
+                            if (spilled == null) {
+                                spilled = new DiskBytesWritable();
+                            }
+                            
+                            spilled.append(buffer, 0, bufferLength);
+                            bufferLength = 0;
+                        } else {
+                            buffer = _bufferPool.grow(buffer, bufferLength, Math.min(targetLength, spillThreshold));
+                        }
+                    }
+                    
+                    // Limit the size of each read, so that we check the response rate regularly.
+                    int readLength = Math.min(BUFFER_SIZE, Math.min(buffer.length - bufferLength, targetLength - totalRead));
+                    bytesRead = readContent(in, buffer, bufferLength, readLength, isEncoded);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    
                     readRequests += 1;
+                    bufferLength += bytesRead;
                     totalRead += bytesRead;
-                    out.write(buffer, 0, bytesRead);
 
                     // Assume read time is at least one millisecond, to avoid DBZ exception.
                     long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
@@ -651,60 +788,55 @@ public class SimpleHttpFetcher extends BaseFetcher {
                     }
                 }
 
-                content = out.toByteArray();
-                needAbort = truncated || (in.available() > 0);
+                // Since we don't know the decoded length up front, see if there's more
+                // decoded content that we didn't read.
+                if (isEncoded && (totalRead >= targetLength) && hasMoreContent(in)) {
+                    truncated = true;
+                }
+                
+                if (spilled != null) {
+                    spilled.append(buffer, 0, bufferLength);
+                    content = new ContentBytes(spilled);
+                    
+                    if (LOGGER.isTraceEnabled()) {
+                        fetchTrace.append("; spilled " + totalRead + " bytes to disk");
+                    }
+                } else {
+                    // This is the one and only copy of the content.
+                    content = new ContentBytes(Arrays.copyOf(buffer, bufferLength));
+                }
+                
+                needAbort = truncated || (rawIn.available() > 0);
+                
+                if (isEncoded && LOGGER.isTraceEnabled()) {
+                    fetchTrace.append("; decoded to " + totalRead + " bytes");
+                }
             } catch (IOException e) {
                 // We don't need to abort if there's an IOException
+                checkAborted(url, request);
                 throw new IOFetchException(url, e);
             } finally {
+                // If we spilled, but didn't get to the point of creating the content,
+                // then clean up the spill file.
+                if ((spilled != null) && !content.isSpilled()) {
+                    spilled.dispose();
+                }
+                
+
                 safeAbort(needAbort, request);
                 safeClose(in);
+                safeClose(rawIn);
+                _bufferPool.release(buffer);
             }
         }
         
         // Toss truncated image content.
         if  (   (truncated)
             &&  (!isTextMimeType(mimeType))) {
+            content.dispose();
             throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
         }
 
-        // Now see if we need to uncompress the content.
-        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
-        if (contentEncoding != null) {
-            if (LOGGER.isTraceEnabled()) {
-                fetchTrace.append("; Content-Encoding: " + contentEncoding);
-            }
-
-            // TODO KKr We might want to just decompress a truncated gzip
-            // containing text (since we have a max content size to save us
-            // from any gzip corruption). We might want to break the following 
-            // out into a separate method, by the way (if not refactor this 
-            // entire monolithic method).
-            //
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
-                    truncated |= expandedResult.isTruncated();
-                    if  (   (truncated)
-                                    &&  (!isTextMimeType(mimeType))) {
-                        throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
-                    } else {
-                        content = expandedResult.getExpanded();
-                        if (LOGGER.isTraceEnabled()) {
-                            fetchTrace.append("; unzipped to " + content.length + " bytes");
-                        }
-                    }
-                    //                    } else if ("deflate".equals(contentEncoding)) {
-                    //                        content = EncodingUtils.processDeflateEncoded(content);
-                    //                        if (LOGGER.isTraceEnabled()) {
-                    //                            fetchTrace.append("; inflated to " + content.length + " bytes");
-                    //                        }
-                }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
-            }
-        }
-
         // Finally dump out the trace msg we've been building.
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(fetchTrace.toString());
@@ -750,6 +882,61 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
+    /**
+     * Read up to <length> bytes from <in> into <buffer>. If <in> is decoding compressed
+     * content, then treat corrupt or prematurely ended data as the end of the content,
+     * so we keep whatever we've decoded up to that point.
+     * 
+     * @return number of bytes read, or -1 for end of content
+     * @throws IOException
+     */
+    private static int readContent(InputStream in, byte[] buffer, int offset, int length, boolean isEncoded) throws IOException {
+        try {
+            return in.read(buffer, offset, length);
+        } catch (ZipException e) {
+            if (isEncoded) {
+                LOGGER.trace("Exception decoding content", e);
+                return -1;
+            } else {
+                throw e;
+            }
+        } catch (EOFException e) {
+            if (isEncoded) {
+                LOGGER.trace("Premature end of encoded content", e);
+                return -1;
+            } else {
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Return true if there's more decoded content in <in>.
+     * 
+     * @throws IOException
+     */
+    private static boolean hasMoreContent(InputStream in) throws IOException {
+        try {
+            return in.read() != -1;
+        } catch (ZipException e) {
+            return false;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public long getBufferPoolHits() {
+        ResponseBufferPool pool = _bufferPool;
+        return pool == null ? 0 : pool.getHits();
+    }
+    
+    @Override
+    public long getBufferPoolMisses() {
+        ResponseBufferPool pool = _bufferPool;
+        return pool == null ? 0 : pool.getMisses();
+    }
+    
     private static void safeClose(Closeable o) {
         if (o != null) {
             try {
@@ -760,6 +947,18 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
     
+    /**
+     * If we got an IOException because abort() terminated <request>, report that
+     * the fetch was interrupted, versus some problem with the server.
+     * 
+     * @throws AbortedFetchException
+     */
+    private static void checkAborted(String url, HttpRequestBase request) throws AbortedFetchException {
+        if (request.isAborted()) {
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+    }
+    
     private static void safeAbort(boolean needAbort, HttpRequestBase request) {
         if (needAbort && (request != null)) {
             try {
@@ -772,15 +971,11 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     private synchronized void init() {
         if (_httpClient == null) {
+            _bufferPool = new ResponseBufferPool(_maxThreads, DEFAULT_BYTEARRAY_SIZE, MAX_POOLED_BYTEARRAY_SIZE);
+            
             // Create and initialize HTTP parameters
             HttpParams params = new BasicHttpParams();
 
-            // TODO KKr - w/4.1, switch to new api (ThreadSafeClientConnManager)
-            // cm.setMaxTotalConnections(_maxThreads);
-            // cm.setDefaultMaxPerRoute(Math.max(10, _maxThreads/10));
-            // And get rid of deprecation warnings here.
-            ConnManagerParams.setMaxTotalConnections(params, _maxThreads);
-            
             // Set the maximum time we'll wait for a spare connection in the connection pool. We
             // shouldn't actually hit this, as we make sure (in FetcherManager) that the max number
             // of active requests doesn't exceed the value returned by getMaxThreads() here.
@@ -795,11 +990,6 @@ public class SimpleHttpFetcher extends BaseFetcher {
             // and disabling this check improves performance.
             HttpConnectionParams.setStaleCheckingEnabled(params, false);
             
-            // FUTURE - set this on a per-route (host) basis when we have per-host policies for
-            // doing partner crawls. We could define a BixoConnPerRoute class that supports this.
-            ConnPerRouteBean connPerRoute = new ConnPerRouteBean(_fetcherPolicy.getMaxConnectionsPerHost());
-            ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
-
             HttpProtocolParams.setVersion(params, _httpVersion);
             HttpProtocolParams.setUserAgent(params, _userAgent.getUserAgentString());
             HttpProtocolParams.setContentCharset(params, "UTF-8");
@@ -836,7 +1026,14 @@ public class SimpleHttpFetcher extends BaseFetcher {
             }
 
             // Use ThreadSafeClientConnManager since more than one thread will be using the HttpClient.
-            ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, schemeRegistry);
+            // Host names get resolved by our resolver, so they can be cached across requests.
+            ThreadSafeClientConnManager cm = new MyClientConnManager(schemeRegistry, _hostResolver);
+            cm.setMaxTotal(_maxThreads);
+            
+            // FUTURE - set this on a per-route (host) basis when we have per-host policies for
+            // doing partner crawls.
+            cm.setDefaultMaxPerRoute(_fetcherPolicy.getMaxConnectionsPerHost());
+            
             _httpClient = new DefaultHttpClient(cm, params);
             _httpClient.setHttpRequestRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
             _httpClient.setRedirectHandler(new MyRedirectHandler(_fetcherPolicy.getRedirectMode()));
@@ -864,12 +1061,26 @@ public class SimpleHttpFetcher extends BaseFetcher {
             defaultHeaders.add(new BasicHeader(HttpHeaderNames.ACCEPT, DEFAULT_ACCEPT));
             
             clientParams.setDefaultHeaders(defaultHeaders);
+            
+            _pendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<HttpRequestBase, Boolean>());
         }
     }
 
+    /**
+     * Abort all active requests. This closes their connections, so threads that are
+     * blocked reading from a socket fail right away (with an AbortedFetchException
+     * for INTERRUPTED), versus waiting for the socket timeout.
+     */
     @Override
     public void abort() {
-        // TODO Actually try to abort
+        if (_pendingRequests == null) {
+            return;
+        }
+        
+        for (HttpRequestBase request : _pendingRequests) {
+            LOGGER.debug("Aborting request for " + request.getURI());
+            safeAbort(true, request);
+        }
     }
     
     // Some robots.txt files are > 64K, amazingly enough.
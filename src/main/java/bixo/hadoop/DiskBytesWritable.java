@@ -16,12 +16,17 @@
  */
 package bixo.hadoop;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 
 import org.apache.hadoop.io.WritableComparable;
 
@@ -37,27 +42,51 @@ public class DiskBytesWritable implements WritableComparable {
     private FileOutputStream _diskOut;
     private int _diskSize;
 
+    public DiskBytesWritable() {
+        this(new byte[0]);
+    }
+    
     public DiskBytesWritable(byte[] bytes) {
         _bytes = bytes;
         _memSize = bytes.length;
     }
     
     public void append(byte[] bytes) throws IOException {
-        if (_memSize + bytes.length <= _bytes.length) {
-            System.arraycopy(bytes, 0, _bytes, _memSize, bytes.length);
-            _memSize += bytes.length;
+        append(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Append <length> bytes from <bytes>, starting at <offset>. Whatever doesn't
+     * fit in the in-memory buffer gets written to the backing store on disk.
+     * 
+     * @param bytes data to append
+     * @param offset offset of first byte to append
+     * @param length number of bytes to append
+     * @throws IOException
+     */
+    public void append(byte[] bytes, int offset, int length) throws IOException {
+        if (_diskSize > 0) {
+            // Once we've started spilling, everything has to go to disk to keep it in order.
+            copyToDisk(bytes, offset, length);
+        } else if (_memSize + length <= _bytes.length) {
+            System.arraycopy(bytes, offset, _bytes, _memSize, length);
+            _memSize += length;
         } else {
             // Copy what we can into memory.
             int memBytes = _bytes.length - _memSize;
-            System.arraycopy(bytes, 0, _bytes, _memSize, memBytes);
+            System.arraycopy(bytes, offset, _bytes, _memSize, memBytes);
             _memSize += memBytes;
             
             // Spill the remainder to disk
-            copyToDisk(bytes, memBytes, bytes.length - memBytes);
+            copyToDisk(bytes, offset + memBytes, length - memBytes);
         }
     }
     
     private void copyToDisk(byte[] src, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        
         if (_backingStore == null) {
             _backingStore = File.createTempFile(DiskBytesWritable.class.getSimpleName() + "-backingstore-", null);
             _diskOut = new FileOutputStream(_backingStore);
@@ -68,6 +97,53 @@ public class DiskBytesWritable implements WritableComparable {
         _diskSize += length;
     }
     
+    /**
+     * Return true if some of the data is in the backing store on disk.
+     * 
+     * @return true if spilled to disk
+     */
+    public boolean isSpilled() {
+        return _diskSize > 0;
+    }
+    
+    /**
+     * Return a stream of all of the data (memory, then disk), without
+     * loading it all into memory.
+     * 
+     * @return stream of data
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        InputStream memIn = new ByteArrayInputStream(_bytes, 0, _memSize);
+        if (_diskSize == 0) {
+            return memIn;
+        }
+        
+        _diskOut.flush();
+        return new SequenceInputStream(memIn, new BufferedInputStream(new FileInputStream(_backingStore)));
+    }
+    
+    /**
+     * Release the backing store, if any. The data that was on disk is lost.
+     * 
+     * This has to be called once the data isn't needed, since nothing else
+     * deletes the temp file.
+     */
+    public void dispose() {
+        if (_backingStore != null) {
+            try {
+                _diskOut.close();
+            } catch (IOException e) {
+                // Ignore, we're tossing the file anyway.
+            }
+            
+            _backingStore.delete();
+            _backingStore = null;
+            _diskOut = null;
+            _diskSize = 0;
+        }
+    }
+    
     /**
      * Get the data from the BytesWritable.
      * @return The data is only valid between 0 and getSize() - 1.
@@ -82,9 +158,14 @@ public class DiskBytesWritable implements WritableComparable {
         byte[] result = new byte[_memSize + _diskSize];
         System.arraycopy(_bytes, 0, result, 0, _memSize);
         
-        FileInputStream fis = new FileInputStream(_backingStore);
-        fis.read(result, _memSize, _diskSize);
-        fis.close();
+        _diskOut.flush();
+        DataInputStream dis = new DataInputStream(new FileInputStream(_backingStore));
+        
+        try {
+            dis.readFully(result, _memSize, _diskSize);
+        } finally {
+            dis.close();
+        }
         
         return result;
     }
@@ -166,6 +247,8 @@ public class DiskBytesWritable implements WritableComparable {
 
     @Override
     public void readFields(DataInput in) throws IOException {
+        dispose();
+        
         _memSize = in.readInt();
         int diskBytes = in.readInt();
         _bytes = new byte[_memSize];
@@ -174,7 +257,7 @@ public class DiskBytesWritable implements WritableComparable {
         int writeOffset = 0;
         byte[] buffer = new byte[8096];
         while (writeOffset < diskBytes) {
-            int bytesToRead = Math.min(buffer.length, _diskSize - writeOffset);
+            int bytesToRead = Math.min(buffer.length, diskBytes - writeOffset);
             in.readFully(buffer, 0, bytesToRead);
             copyToDisk(buffer, 0, bytesToRead);
             writeOffset += bytesToRead;
@@ -188,18 +271,21 @@ public class DiskBytesWritable implements WritableComparable {
         out.write(_bytes, 0, _memSize);
         
         if (_diskSize > 0) {
-            FileInputStream fis = new FileInputStream(_backingStore);
+            _diskOut.flush();
+            DataInputStream dis = new DataInputStream(new FileInputStream(_backingStore));
             
-            byte[] buffer = new byte[8096];
-            int readOffset = 0;
-            while (readOffset < _diskSize) {
-                int bytesToRead = Math.min(buffer.length, _diskSize - readOffset);
-                fis.read(buffer, 0, bytesToRead);
-                out.write(buffer, 0, bytesToRead);
-                readOffset += bytesToRead;
+            try {
+                byte[] buffer = new byte[8096];
+                int readOffset = 0;
+                while (readOffset < _diskSize) {
+                    int bytesToRead = Math.min(buffer.length, _diskSize - readOffset);
+                    dis.readFully(buffer, 0, bytesToRead);
+                    out.write(buffer, 0, bytesToRead);
+                    readOffset += bytesToRead;
+                }
+            } finally {
+                dis.close();
             }
-            
-            fis.close();
         }
     }
 
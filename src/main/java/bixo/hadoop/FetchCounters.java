@@ -30,12 +30,15 @@ public enum FetchCounters {
     URLS_DEFERRED,      // URLs we deferred, because domain was deferred
     URLS_REJECTED,      // URLS we rejected, because domain was rejected
     URLS_BLOCKED,       // URLS we blocked, because of robots.txt
+    ROBOTS_CACHE_HITS,   // Domains where we used cached robots.txt rules
+    ROBOTS_CACHE_MISSES, // Domains where we had to fetch robots.txt
     
     // During URL fetching
     URLS_FETCHING,
     URLS_FETCHED,
     URLS_SKIPPED,           // (incl. URLS_SKIPPED_PER_SERVER_LIMIT)
     URLS_FAILED,
+    URLS_UNMODIFIED,        // Conditional GET returned 304 (not modified)
 
     URLS_SKIPPED_PER_SERVER_LIMIT, // UrlStatus.SKIPPED_PER_SERVER_LIMIT
     
@@ -46,4 +49,11 @@ public enum FetchCounters {
     FETCHSETS_QUEUED,       // Number of fetch sets in the disk queue
     URLS_QUEUED,            // Number of URLs in the disk queue
 
+    BUFFER_POOL_HITS,       // Number of fetches that reused a pooled response buffer
+    BUFFER_POOL_MISSES,     // Number of fetches that had to allocate a response buffer
+
+    DNS_CACHE_HITS,         // Number of host name lookups handled from the resolver's cache
+    DNS_CACHE_MISSES,       // Number of host name lookups that weren't in the resolver's cache
+    DNS_LOOKUP_TIME,        // Total time (in milliseconds) spent doing DNS lookups
+
 }
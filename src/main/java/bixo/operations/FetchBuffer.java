@@ -16,12 +16,21 @@
  */
 package bixo.operations;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +39,7 @@ import org.slf4j.LoggerFactory;
 import bixo.config.BixoPlatform;
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
+import bixo.datum.ContentBytes;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
@@ -38,7 +48,7 @@ import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.FetchTask;
 import bixo.fetcher.IFetchMgr;
 import bixo.hadoop.FetchCounters;
-import bixo.utils.DiskQueue;
+import bixo.utils.BaseHostResolver;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
@@ -60,58 +70,149 @@ import com.scaleunlimited.cascading.NullContext;
 public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<NullContext>, IFetchMgr {
     private static Logger LOGGER = LoggerFactory.getLogger(FetchBuffer.class);
 
-    private class QueuedFetchSetsComparator implements Comparator<FetchSetDatum> {
+    /**
+     * Politeness state for a grouping ref. A ref with no state is idle, and can be
+     * fetched at any time. An active ref is being fetched now, and the next fetch time
+     * is when the following fetch set can be fetched (or 0 if this was the last one).
+     * A pending ref isn't being fetched, but can't be fetched again before the next
+     * fetch time.
+     * 
+     * These are immutable, and state changes are done by atomically replacing the
+     * ref's current state in the map, so no locking is needed.
+     */
+    private static class RefState {
+        private final boolean _active;
+        private final long _nextFetchTime;
+        
+        public RefState(boolean active, long nextFetchTime) {
+            _active = active;
+            _nextFetchTime = nextFetchTime;
+        }
+        
+        public boolean isActive() {
+            return _active;
+        }
+        
+        public long getNextFetchTime() {
+            return _nextFetchTime;
+        }
+    }
+    
+    /**
+     * Ready times for the scheduler, based on our active/pending ref state.
+     */
+    private class RefReadyTimes implements FetchSetScheduler.ReadyTimeSource {
 
-        private long getFetchTime(String groupingRef) {
-            if (_activeRefs.get(groupingRef) == null) {
-                Long nextFetchTime = _pendingRefs.get(groupingRef);
-                if (nextFetchTime == null) {
-                    return(0);
-                } else {
-                    return(nextFetchTime);
-                }
-            } else {
+        @Override
+        public long getReadyTime(String groupingRef) {
+            RefState state = _refStates.get(groupingRef);
+            if (state == null) {
+                return(0);
+            } else if (state.isActive()) {
                 // fetch set is active, so sort at end
                 return(Long.MAX_VALUE);
+            } else {
+                return(state.getNextFetchTime());
             }
         }
+    }
+    
+    /**
+     * A fetch task that's waiting for its page fetch delay to pass, before it can
+     * fetch the next URL from its fetch set.
+     */
+    private static class DelayedFetch implements Delayed {
+        private final FetchTask _task;
+        private final long _resumeTime;
+        
+        public DelayedFetch(FetchTask task, long resumeTime) {
+            _task = task;
+            _resumeTime = resumeTime;
+        }
+        
+        public FetchTask getTask() {
+            return _task;
+        }
         
         @Override
-        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
-            long o1FetchTime = getFetchTime(o1.getGroupingRef());
-            long o2FetchTime = getFetchTime(o2.getGroupingRef());
-            
-            // The entry that's ready sooner sorts sooner. If both
-            // are ready, return the one with the bigger fetch set.
-            if (o1FetchTime < o2FetchTime) {
-                return -1;
-            } else if (o1FetchTime > o2FetchTime) {
-                return 1;
-            } else if (o1.getUrls().size() > o2.getUrls().size()) {
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(_resumeTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long otherTime = ((DelayedFetch)o)._resumeTime;
+            if (_resumeTime < otherTime) {
                 return -1;
-            } else if (o1.getUrls().size() < o2.getUrls().size()) {
+            } else if (_resumeTime > otherTime) {
                 return 1;
             } else {
                 return 0;
             }
         }
-        
+    }
+    
+    /**
+     * Single thread that writes queued output tuples to the collector in batches, so that
+     * fetcher threads don't all have to synchronize on the (non-thread-safe) collector.
+     */
+    private class OutputWriter implements Runnable {
+
+        @Override
+        public void run() {
+            List<Tuple> batch = new ArrayList<Tuple>(MAX_OUTPUT_BATCH_SIZE);
+            
+            try {
+                while (true) {
+                    Tuple tuple = _outputQueue.poll(OUTPUT_POLL_TIME, TimeUnit.MILLISECONDS);
+                    if (tuple == null) {
+                        if (_stopOutput && _outputQueue.isEmpty()) {
+                            break;
+                        }
+                        
+                        continue;
+                    }
+                    
+                    batch.add(tuple);
+                    _outputQueue.drainTo(batch, MAX_OUTPUT_BATCH_SIZE - 1);
+                    
+                    TupleEntryCollector collector = _collector;
+                    for (Tuple outputTuple : batch) {
+                        collector.add(outputTuple);
+                        
+                        // Once it's been collected, we no longer need any content that was spilled to disk.
+                        disposeContent(outputTuple);
+                    }
+                    
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("FetchBuffer output writer interrupted, with " + _outputQueue.size() + " queued tuples");
+                _outputError = e;
+                discardOutput(batch);
+            } catch (Throwable t) {
+                LOGGER.error("Exception while writing FetchBuffer output", t);
+                _outputError = t;
+                discardOutput(batch);
+            }
+        }
     }
     
     private class QueuedValues {
-        // TODO - make this part of CrawlPolicy. We'd like to contrain by total # of URLs, actually, not FetchSetDatums
-        private static final int MAX_ELEMENTS_IN_MEMORY = 10000;
-        
         private static final int MAX_FETCHSETS_TO_QUEUE_PER_DELAY = 100;
         
-        private DiskQueue<FetchSetDatum> _queue;
+        private FetchSetScheduler _queue;
         private Iterator<TupleEntry> _values;
         private boolean _iteratorDone;
+        private boolean _hitQueueLimit;
         
         public QueuedValues(Iterator<TupleEntry> values) {
             _values = values;
             _iteratorDone = false;
-            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY, new QueuedFetchSetsComparator());
+            _hitQueueLimit = false;
+            FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+            _queue = new FetchSetScheduler(new RefReadyTimes(), Integer.MAX_VALUE, fetcherPolicy.getMaxQueuedUrls(), fetcherPolicy.getMaxQueuedBytes());
+            _scheduler = _queue;
         }
         
         /**
@@ -131,98 +232,103 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
         
         private boolean readyToFetch(String ref) {
-            if (_activeRefs.get(ref) == null) {
-                Long nextFetchTime = _pendingRefs.get(ref);
-                if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
-                    return true;
-                }
-            }
-            
-            return false;
+            RefState state = _refStates.get(ref);
+            return (state == null) || (!state.isActive() && (state.getNextFetchTime() <= System.currentTimeMillis()));
         }
         
         public FetchSetDatum nextOrNull(FetcherMode mode) {
             
             int fetchSetsQueued = 0;
+            _hitQueueLimit = false;
             
             // Loop until we have something to return, or there's nothing that we can return, or we've
             // queued up as many fetchsets as we want without any delay.
             while (!isEmpty() && (fetchSetsQueued < MAX_FETCHSETS_TO_QUEUE_PER_DELAY)) {
-                // First see if we've got something in the queue, and if so, then check if it's ready
-                // to be processed.
-                final FetchSetDatum queueDatum = removeFromQueue();
-                
+                // First see if we've got something in the queue that's ready to be processed. In
+                // impolite mode, everything is ready.
+                FetchSetDatum queueDatum = (mode == FetcherMode.IMPOLITE) ? removeFromQueue() : removeReadyFromQueue();
                 if (queueDatum != null) {
-                    String ref = queueDatum.getGroupingRef();
-                    if (readyToFetch(ref) || (mode == FetcherMode.IMPOLITE)) {
-                        List<ScoredUrlDatum> urls = queueDatum.getUrls();
-                        trace("Returning %d urls via queue from %s (e.g. %s)", urls.size(), ref, urls.get(0).getUrl());
-                        return queueDatum;
-                    }
+                    trace("Returning %d urls via queue from %s", queueDatum.getUrlCount(), queueDatum.getGroupingRef());
+                    return queueDatum;
                 }
 
-                // Nothing ready from the top of the queue or nothing in the queue, let's see about the iterator.
+                // Nothing ready in the queue, let's see about the iterator.
                 if (safeHasNext()) {
-                    // Re-add the thing from the top of the queue, since we're going to want to keep it around.
-                    // This is safe to call with a null datum.
-                    addToQueue(queueDatum);
-                    
                     // Now get our next FetchSet from the Hadoop iterator.
                     FetchSetDatum iterDatum = new FetchSetDatum(new TupleEntry(_values.next()));
-                    List<ScoredUrlDatum> urls = iterDatum.getUrls();
                     String ref = iterDatum.getGroupingRef();
                     
                     if (iterDatum.isSkipped()) {
+                        List<ScoredUrlDatum> urls = iterDatum.getUrls();
                         trace("Skipping %d urls via iterator from %s (e.g. %s)", urls.size(), ref, urls.get(0).getUrl());
                         skipUrls(urls, UrlStatus.SKIPPED_PER_SERVER_LIMIT, null);
                         continue;
                     }
 
-                    if ((mode == FetcherMode.IMPOLITE) || readyToFetch(ref)) {
-                        trace("Returning %d urls via iterator from %s (e.g. %s)", urls.size(), ref, urls.get(0).getUrl());
+                    // We can't jump ahead of fetch sets for the same ref that are already queued.
+                    if ((mode == FetcherMode.IMPOLITE) || (readyToFetch(ref) && !_queue.hasQueued(ref))) {
+                        trace("Returning %d urls via iterator from %s", iterDatum.getUrlCount(), ref);
                         return iterDatum;
                     }
 
                     // We've got a datum from the iterator that's not ready to be processed, so we'll stuff it into the queue.
-                    trace("Queuing %d urls via iterator from %s (e.g. %s)", urls.size(), iterDatum.getGroupingRef(), urls.get(0).getUrl());
+                    trace("Queuing %d urls via iterator from %s", iterDatum.getUrlCount(), ref);
                     addToQueue(iterDatum);
                     fetchSetsQueued += 1;
                     continue;
                 }
                 
-                // Nothing ready from top of queue, and iterator is empty too. If we had something from the top of the queue (which then
-                // must not be ready), decide what to do based on our FetcherMode.
-                if (queueDatum != null) {
-                    List<ScoredUrlDatum> urls = queueDatum.getUrls();
-
-                    switch (mode) {
-                        case COMPLETE:
-                            // Re-add the datum, since we don't want to skip it. And immediately return, as otherwise we're trapped
-                            // in this loop, versus giving FetchBuffer time to delay.
-                            trace("Blocked on %d urls via queue from %s (e.g. %s)", urls.size(), queueDatum.getGroupingRef(), urls.get(0).getUrl());
-                            addToQueue(queueDatum);
-                            return null;
-
-                        case IMPOLITE:
-                            trace("Impolitely returning %d urls via queue from %s (e.g. %s)", urls.size(), queueDatum.getGroupingRef(), urls.get(0).getUrl());
-                            return queueDatum;
-                            
-                        case EFFICIENT:
-                            // In efficient fetching, we punt on items that aren't ready. And immediately return, so that FetchBuffer's loop has
-                            // time to delay, as otherwise we'd likely skip everything that's in the in-memory queue (since the item we're skipping
-                            // is the "best" in terms of when it's going to be ready).
-                            trace("Efficiently skipping %d urls via queue from %s (e.g. %s)", urls.size(), queueDatum.getGroupingRef(), urls.get(0).getUrl());
-                            skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
-                            return null;
-                    }
+                // Nothing ready in the queue, and iterator is empty too. Decide what to do based on our FetcherMode.
+                switch (mode) {
+                    case COMPLETE:
+                    case IMPOLITE:
+                        // Immediately return, as otherwise we're trapped in this loop, versus giving
+                        // FetchBuffer time to delay.
+                        trace("Blocked on %d queued fetch sets", _queue.size());
+                        return null;
+                        
+                    case EFFICIENT:
+                        // In efficient fetching, we punt on items that aren't ready. And immediately return, so that FetchBuffer's loop has
+                        // time to delay, as otherwise we'd likely skip everything that's in the in-memory queue (since the item we're skipping
+                        // is the "best" in terms of when it's going to be ready).
+                        FetchSetDatum notReadyDatum = removeFromQueue();
+                        List<ScoredUrlDatum> urls = notReadyDatum.getUrls();
+                        trace("Efficiently skipping %d urls via queue from %s (e.g. %s)", urls.size(), notReadyDatum.getGroupingRef(), urls.get(0).getUrl());
+                        skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
+                        return null;
                 }
             }
             
             // Either we're all out of FetchSets to process (nothing left in iterator or queue) or we've queued up lots of sets, and
-            // we want to give FetchBuffer a chance to sleep.
+            // we want to give FetchBuffer a chance to call keepAlive().
+            _hitQueueLimit = (fetchSetsQueued >= MAX_FETCHSETS_TO_QUEUE_PER_DELAY);
             return null;
         }
         
+        /**
+         * Return how long to wait before something might be ready, after nextOrNull() has
+         * returned null. This is 0 if we stopped because we'd queued up lots of fetch sets,
+         * since the iterator might have something ready, and otherwise the time until the
+         * earliest pending ref is ready. If every queued ref is active then we'll wait until
+         * a fetch finishes, so the wait is capped at <maxWait>.
+         * 
+         * @param now current time
+         * @param maxWait longest time to wait
+         * @return time to wait, in milliseconds
+         */
+        public long getWaitTime(long now, long maxWait) {
+            if (_hitQueueLimit) {
+                return 0;
+            }
+            
+            long nextReadyTime = _queue.getNextReadyTime();
+            if (nextReadyTime == Long.MAX_VALUE) {
+                return maxWait;
+            } else {
+                return Math.max(0, Math.min(maxWait, nextReadyTime - now));
+            }
+        }
+        
         /**
          * Empty the buffer, then the iterator, without worrying about mode/state.
          * 
@@ -244,10 +350,22 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
          * @return fetch set from queue
          */
         private FetchSetDatum removeFromQueue() {
-            FetchSetDatum result = _queue.poll();
+            return updateQueueCounters(_queue.poll());
+        }
+
+        /**
+         * Return the top-most item from the queue if it's ready to be fetched, or null.
+         * 
+         * @return fetch set from queue
+         */
+        private FetchSetDatum removeReadyFromQueue() {
+            return updateQueueCounters(_queue.pollReady(System.currentTimeMillis()));
+        }
+        
+        private FetchSetDatum updateQueueCounters(FetchSetDatum result) {
             if (result != null) {
                 _flowProcess.increment(FetchCounters.FETCHSETS_QUEUED, -1);
-                _flowProcess.increment(FetchCounters.URLS_QUEUED, -result.getUrls().size());
+                _flowProcess.increment(FetchCounters.URLS_QUEUED, -result.getUrlCount());
             }
             
             return result;
@@ -256,7 +374,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         private void addToQueue(FetchSetDatum datum) {
             if (datum != null) {
                 _flowProcess.increment(FetchCounters.FETCHSETS_QUEUED, 1);
-                _flowProcess.increment(FetchCounters.URLS_QUEUED, datum.getUrls().size());
+                _flowProcess.increment(FetchCounters.URLS_QUEUED, datum.getUrlCount());
 
                 _queue.add(datum);
             }
@@ -265,23 +383,55 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
     private static final Fields FETCH_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "fetch-exception"));
 
-    // Time to sleep when we don't have any URLs that can be fetched.
+    // Max time to wait when we don't have any URLs that can be fetched. We'll wake up
+    // sooner if a ref becomes ready, or a fetch finishes, but we still need to call
+    // keepAlive() regularly.
     private static final long NOTHING_TO_FETCH_SLEEP_TIME = 1000;
 
     private static final long HARD_TERMINATION_CLEANUP_DURATION = 10 * 1000L;
 
+    // Max number of output tuples waiting to be written. Fetcher threads block when
+    // the queue is full.
+    private static final int OUTPUT_QUEUE_SIZE = 1000;
+    
+    // Max number of tuples the output writer removes from the queue at one time.
+    private static final int MAX_OUTPUT_BATCH_SIZE = 100;
+    
+    // How long we wait for the output queue before checking on the state of things.
+    private static final long OUTPUT_POLL_TIME = 100;
+
     private BaseFetcher _fetcher;
     private FetcherMode _fetcherMode;
 
     private transient ThreadedExecutor _executor;
     private transient LoggingFlowProcess _flowProcess;
-    private transient TupleEntryCollector _collector;
+    private transient volatile TupleEntryCollector _collector;
 
-    private transient Object _refLock;
-    private transient ConcurrentHashMap<String, Long> _activeRefs;
-    private transient ConcurrentHashMap<String, Long> _pendingRefs;
+    private transient ConcurrentHashMap<String, RefState> _refStates;
+    private transient AtomicInteger _numActiveRefs;
+    private transient AtomicInteger _numPendingRefs;
     
     private transient AtomicBoolean _keepCollecting;
+    private transient ReentrantReadWriteLock _collectingLock;
+    
+    private transient BlockingQueue<Tuple> _outputQueue;
+    private transient Thread _outputThread;
+    private transient volatile boolean _stopOutput;
+    private transient volatile Throwable _outputError;
+    
+    // Used by finished() to wake up the operate() loop when it's waiting for
+    // something to be ready. The count lets us know if we missed a signal.
+    private transient ReentrantLock _wakeupLock;
+    private transient Condition _wakeupCondition;
+    private transient long _wakeupCount;
+    
+    // Scheduler for the values being processed by operate(), which needs to know
+    // when a ref's fetch has finished.
+    private transient volatile FetchSetScheduler _scheduler;
+    
+    // Fetch tasks waiting to fetch their next URL, which the operate() loop hands
+    // back to the executor once their delay has passed.
+    private transient DelayQueue<DelayedFetch> _delayedFetches;
     
     public FetchBuffer(BaseFetcher fetcher) {
         // We're going to output a tuple that contains a FetchedDatum, plus meta-data,
@@ -308,13 +458,28 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         _flowProcess = new LoggingFlowProcess(flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout());
+        FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), fetcherPolicy.getRequestTimeout(), fetcherPolicy.isUseVirtualThreads());
 
-        _refLock = new Object();
-        _pendingRefs = new ConcurrentHashMap<String, Long>();
-        _activeRefs = new ConcurrentHashMap<String, Long>();
+        _refStates = new ConcurrentHashMap<String, RefState>();
+        _numActiveRefs = new AtomicInteger(0);
+        _numPendingRefs = new AtomicInteger(0);
         
         _keepCollecting = new AtomicBoolean(true);
+        _collectingLock = new ReentrantReadWriteLock();
+        
+        _outputQueue = new ArrayBlockingQueue<Tuple>(OUTPUT_QUEUE_SIZE);
+        _outputThread = null;
+        _stopOutput = false;
+        _outputError = null;
+        
+        _wakeupLock = new ReentrantLock();
+        _wakeupCondition = _wakeupLock.newCondition();
+        _wakeupCount = 0;
+        
+        _delayedFetches = new DelayQueue<DelayedFetch>();
+        
+        _fetcher.getHostResolver().open();
     }
 
     @Override
@@ -322,18 +487,33 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         QueuedValues values = new QueuedValues(buffCall.getArgumentsIterator());
 
         _collector = buffCall.getOutputCollector();
+        startOutput();
+        
         FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
         
         // Each value is a PreFetchedDatum that contains a set of URLs to fetch in one request from
-        // a single server, plus other values needed to set state properly.
-        while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !values.isEmpty()) {
+        // a single server, plus other values needed to set state properly. Once those are all
+        // gone we keep going until active fetches are done, since they can still need to be
+        // resumed after their page fetch delay.
+        while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && (!values.isEmpty() || (getActiveRefCount() > 0))) {
+            // Grab this before looking for work, so that we don't miss a finished() call
+            // that happens after we've decided there's nothing to do.
+            long wakeupCount = getWakeupCount();
+            
+            // Fetches that are in the middle of a fetch set get threads before new fetch sets.
+            resumeDelayedFetches();
             FetchSetDatum datum = values.nextOrNull(_fetcherMode);
             
             try {
                 if (datum == null) {
-                    trace("Nothing ready to fetch, sleeping...");
                     process.keepAlive();
-                    Thread.sleep(NOTHING_TO_FETCH_SLEEP_TIME);
+                    
+                    long waitTime = values.getWaitTime(System.currentTimeMillis(), NOTHING_TO_FETCH_SLEEP_TIME);
+                    waitTime = getDelayedFetchWaitTime(waitTime);
+                    if (waitTime > 0) {
+                        trace("Nothing ready to fetch, waiting up to %dms...", waitTime);
+                        waitForWakeup(wakeupCount, waitTime);
+                    }
                 } else {
                     List<ScoredUrlDatum> urls = datum.getUrls();
                     String ref = datum.getGroupingRef();
@@ -344,7 +524,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                         makeActive(ref, 0L);
                         trace("Executing fetch of %d URLs from %s (last batch)", urls.size(), ref);
                     } else {
-                        Long nextFetchTime = System.currentTimeMillis() + datum.getFetchDelay();
+                        long nextFetchTime = System.currentTimeMillis() + datum.getFetchDelay();
                         makeActive(ref, nextFetchTime);
                         trace("Executing fetch of %d URLs from %s (next fetch time %d)", urls.size(), ref, nextFetchTime);
                     }
@@ -383,6 +563,8 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 skipUrls(urls, status, null);
             }
         }
+        
+        skipDelayedFetches();
     }
 
     private synchronized void terminate() {
@@ -401,26 +583,53 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             if (!_executor.terminate(requestTimeout)) {
                 LOGGER.warn("Had to do a hard termination of general fetching");
                 
-                // Abort any active connections, which should give the FetchTasks a chance
-                // to clean things up.
+                // Abort any active connections, so FetchTasks that are blocked on a socket
+                // fail right away, and get a chance to clean things up.
                 _fetcher.abort();
                 
                 // Now give everybody who had to be interrupted some time to
                 // actually write out their remaining URLs.
-                Thread.sleep(HARD_TERMINATION_CLEANUP_DURATION);
+                if (!_executor.awaitTermination(HARD_TERMINATION_CLEANUP_DURATION)) {
+                    LOGGER.warn("Fetch threads still active after hard termination");
+                }
             }
             
+            // Nothing is running now, so any fetch that's still waiting to be resumed
+            // never will be.
+            skipDelayedFetches();
+            
             // Now stop collecting results. If somebody is in the middle of the collect() call,
             // we want them to finish before we set it to false and drop out of this method.
-            synchronized (_keepCollecting) {
+            _collectingLock.writeLock().lock();
+            
+            try {
                 _keepCollecting.set(false);
+            } finally {
+                _collectingLock.writeLock().unlock();
             }
+            
+            // And wait for everything that's been queued to get written.
+            stopOutput();
+            
+            _flowProcess.increment(FetchCounters.BUFFER_POOL_HITS, _fetcher.getBufferPoolHits());
+            _flowProcess.increment(FetchCounters.BUFFER_POOL_MISSES, _fetcher.getBufferPoolMisses());
         } catch (InterruptedException e) {
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
             // losing URLs still to be processed?
             LOGGER.warn("Interrupted while waiting for termination");
+            abortOutput();
+            Thread.currentThread().interrupt();
         } finally {
             _executor = null;
+            
+            // The resolver can be shared with robots processing, so only its last user
+            // reports the counts.
+            BaseHostResolver resolver = _fetcher.getHostResolver();
+            if (resolver.close()) {
+                _flowProcess.increment(FetchCounters.DNS_CACHE_HITS, resolver.getCacheHits());
+                _flowProcess.increment(FetchCounters.DNS_CACHE_MISSES, resolver.getCacheMisses());
+                _flowProcess.increment(FetchCounters.DNS_LOOKUP_TIME, resolver.getLookupTime());
+            }
         }
     }
     
@@ -446,33 +655,66 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
     @Override
     public void finished(String ref) {
-        synchronized (_refLock) {
-            Long nextFetchTime = _activeRefs.remove(ref);
-            if (nextFetchTime == null) {
+        while (true) {
+            RefState state = _refStates.get(ref);
+            if ((state == null) || !state.isActive()) {
                 throw new RuntimeException("finished called on non-active ref: " + ref);
             }
             
             // If there's going to be more to fetch, put it back in the pending pool.
+            long nextFetchTime = state.getNextFetchTime();
             if (nextFetchTime != 0) {
-                trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
-                _pendingRefs.put(ref, nextFetchTime);
-            } else {
+                if (_refStates.replace(ref, state, new RefState(false, nextFetchTime))) {
+                    trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
+                    _numActiveRefs.decrementAndGet();
+                    _numPendingRefs.incrementAndGet();
+                    break;
+                }
+            } else if (_refStates.remove(ref, state)) {
                 trace("Finished last batch fetch for %s", ref);
+                _numActiveRefs.decrementAndGet();
+                break;
             }
         }
+        
+        FetchSetScheduler scheduler = _scheduler;
+        if (scheduler != null) {
+            scheduler.release(ref);
+        }
+        
+        wakeup();
     }
 
+    @Override
+    public void resumeLater(FetchTask task, long delay) {
+        _delayedFetches.add(new DelayedFetch(task, System.currentTimeMillis() + delay));
+        
+        // Let the operate() loop know, in case it's waiting for longer than <delay>.
+        wakeup();
+    }
+    
     @Override
     public void collect(Tuple tuple) {
-        // Prevent two bad things from happening:
-        // 1. Somebody changes _keepCollecting after we've tested that it's true
-        // 2. Two people calling collector.add() at the same time (it's not thread safe)
-        synchronized (_keepCollecting) {
+        // We clone in the calling thread, so the single output thread only has to
+        // add the result to the collector.
+        Tuple clone = BixoPlatform.clone(tuple, _flowProcess);
+        if (clone != tuple) {
+            disposeContent(tuple);
+        }
+        
+        // Prevent somebody from changing _keepCollecting after we've tested that it's true,
+        // without making all the fetcher threads wait on each other.
+        _collectingLock.readLock().lock();
+        
+        try {
             if (_keepCollecting.get()) {
-                _collector.add(BixoPlatform.clone(tuple, _flowProcess));
+                queueOutput(clone);
             } else {
                 LOGGER.warn("Losing an entry: " + tuple);
+                disposeContent(clone);
             }
+        } finally {
+            _collectingLock.readLock().unlock();
         }
     }
 
@@ -486,7 +728,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             FetchedDatum result = new FetchedDatum(datum);
             Tuple tuple = result.getTuple();
             tuple.add(status.toString());
-            _collector.add(BixoPlatform.clone(tuple, _flowProcess));
+            queueOutput(BixoPlatform.clone(tuple, _flowProcess));
         }
 
         _flowProcess.increment(FetchCounters.URLS_SKIPPED, urls.size());
@@ -500,28 +742,298 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
     }
     
     /**
-     * Make <ref> active, removing from pending if necessary.
+     * Return the number of refs currently being fetched.
+     * 
+     * @return active ref count
+     */
+    public int getActiveRefCount() {
+        return _numActiveRefs.get();
+    }
+    
+    /**
+     * Return the number of refs that aren't being fetched, but have more to
+     * fetch and have had a next fetch time set. Some of these might have a
+     * next fetch time that's already passed.
+     * 
+     * @return pending ref count
+     */
+    public int getPendingRefCount() {
+        return _numPendingRefs.get();
+    }
+    
+    /**
+     * Make <ref> active, removing from pending if necessary. Only the operate() loop
+     * makes refs active, and only when they're not already active.
      * 
      * @param ref
      * @param nextFetchTime
      */
-    private void makeActive(String ref, Long nextFetchTime) {
-        synchronized (_refLock) {
-            trace("Making %s active", ref);
-            _pendingRefs.remove(ref);
-            _activeRefs.put(ref, nextFetchTime);
+    private void makeActive(String ref, long nextFetchTime) {
+        trace("Making %s active", ref);
+        RefState oldState = _refStates.put(ref, new RefState(true, nextFetchTime));
+        _numActiveRefs.incrementAndGet();
+        
+        if (oldState != null) {
+            if (oldState.isActive()) {
+                // Shouldn't happen, but keep the count correct if it does.
+                LOGGER.warn("Making already active ref active again: " + ref);
+                _numActiveRefs.decrementAndGet();
+            } else {
+                _numPendingRefs.decrementAndGet();
+            }
         }
     }
 
     private void adjustActive(String ref, long deltaTime) {
-        synchronized (_refLock) {
-            Long nextFetchTime = _activeRefs.get(ref);
-            if ((nextFetchTime != null) && (nextFetchTime != 0) && (deltaTime != 0)) {
-                _activeRefs.put(ref, nextFetchTime + deltaTime);
+        if (deltaTime == 0) {
+            return;
+        }
+        
+        while (true) {
+            // If the fetch has already finished then we'll get a different state,
+            // and the replace will fail, so we never adjust a pending ref.
+            RefState state = _refStates.get(ref);
+            if ((state == null) || !state.isActive() || (state.getNextFetchTime() == 0)) {
+                return;
+            }
+            
+            if (_refStates.replace(ref, state, new RefState(true, state.getNextFetchTime() + deltaTime))) {
+                return;
             }
         }
     }
 
+    /**
+     * Hand every delayed fetch that's ready to be resumed back to the executor. If the
+     * executor can't take one, it stays in the queue and we'll try again next time.
+     */
+    private void resumeDelayedFetches() {
+        DelayedFetch delayed;
+        while ((delayed = _delayedFetches.poll()) != null) {
+            FetchTask task = delayed.getTask();
+            
+            try {
+                _executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Fetch pool rejected resumed fetch for " + task.getRef());
+                _delayedFetches.add(new DelayedFetch(task, System.currentTimeMillis()));
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Return how long to wait before the next delayed fetch is ready to be resumed.
+     * 
+     * @param maxWait longest time to wait
+     * @return time to wait, in milliseconds
+     */
+    private long getDelayedFetchWaitTime(long maxWait) {
+        DelayedFetch next = _delayedFetches.peek();
+        if (next == null) {
+            return maxWait;
+        } else {
+            return Math.max(0, Math.min(maxWait, next.getDelay(TimeUnit.MILLISECONDS)));
+        }
+    }
+    
+    /**
+     * Skip the remaining URLs for all of the fetches that are waiting to be resumed.
+     */
+    private void skipDelayedFetches() {
+        DelayedFetch delayed;
+        while ((delayed = _delayedFetches.peek()) != null) {
+            if (_delayedFetches.remove(delayed)) {
+                FetchTask task = delayed.getTask();
+                trace("Skipping remaining URLs from delayed fetch of %s", task.getRef());
+                task.skipRemaining();
+            }
+        }
+    }
+    
+    /**
+     * Delete any content in <tuple> that was spilled to disk by the fetcher.
+     * 
+     * @param tuple Tuple that has been collected (or copied)
+     */
+    private static void disposeContent(Tuple tuple) {
+        for (int i = 0; i < tuple.size(); i++) {
+            Object value = tuple.getObject(i);
+            if (value instanceof ContentBytes) {
+                ((ContentBytes)value).dispose();
+            }
+        }
+    }
+    
+    /**
+     * Drop any tuples that the output thread will never write, deleting content they
+     * spilled to disk.
+     * 
+     * @param batch Tuples that the output thread took from the queue, or null
+     */
+    private void discardOutput(List<Tuple> batch) {
+        if (batch != null) {
+            // Disposing of content is a no-op for tuples that were already written.
+            for (Tuple tuple : batch) {
+                disposeContent(tuple);
+            }
+            
+            batch.clear();
+        }
+        
+        List<Tuple> queued = new ArrayList<Tuple>();
+        _outputQueue.drainTo(queued);
+        for (Tuple tuple : queued) {
+            disposeContent(tuple);
+        }
+        
+        if (!queued.isEmpty()) {
+            LOGGER.warn("Discarded " + queued.size() + " queued FetchBuffer output tuples");
+        }
+    }
+    
+    private void startOutput() {
+        if (_outputThread == null) {
+            _outputThread = new Thread(new OutputWriter(), "FetchBuffer output writer");
+            _outputThread.setDaemon(true);
+            _outputThread.start();
+        }
+    }
+    
+    /**
+     * Add <tuple> to the output queue, waiting if the queue is full. We don't give up
+     * if we get interrupted, since fetcher threads that are being terminated still
+     * need to write out their results.
+     * 
+     * @param tuple Tuple to output
+     */
+    private void queueOutput(Tuple tuple) {
+        boolean interrupted = false;
+        
+        try {
+            while (true) {
+                if (_outputError != null) {
+                    disposeContent(tuple);
+                    throw new RuntimeException("FetchBuffer output writer failed", _outputError);
+                }
+                
+                try {
+                    if (_outputQueue.offer(tuple, OUTPUT_POLL_TIME, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Wait for the output thread to write everything that's been queued, and then
+     * have it terminate.
+     * 
+     * @throws InterruptedException
+     */
+    private void stopOutput() throws InterruptedException {
+        if (_outputThread == null) {
+            return;
+        }
+        
+        _stopOutput = true;
+        _outputThread.join();
+        _outputThread = null;
+        
+        if (_outputError != null) {
+            discardOutput(null);
+            throw new RuntimeException("FetchBuffer output writer failed", _outputError);
+        }
+    }
+    
+    /**
+     * Like stopOutput(), but for when we've been interrupted, so we only wait a limited
+     * amount of time for the output thread to write what's been queued. If it's still
+     * running after that, we interrupt it, since it can't keep using the collector once
+     * we've returned. The calling thread's interrupted status is preserved.
+     */
+    private void abortOutput() {
+        if (_outputThread == null) {
+            return;
+        }
+        
+        _stopOutput = true;
+        
+        // Clear the interrupted status, so that we can wait for the output thread.
+        boolean interrupted = Thread.interrupted();
+        
+        try {
+            _outputThread.join(HARD_TERMINATION_CLEANUP_DURATION);
+            if (_outputThread.isAlive()) {
+                LOGGER.warn("FetchBuffer output writer still active after termination, with " + _outputQueue.size() + " queued tuples");
+                _outputThread.interrupt();
+                _outputThread.join(OUTPUT_POLL_TIME);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            _outputThread.interrupt();
+        } finally {
+            _outputThread = null;
+            
+            // Whatever didn't get written is lost, so clean up its spilled content.
+            discardOutput(null);
+            
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private long getWakeupCount() {
+        _wakeupLock.lock();
+        
+        try {
+            return _wakeupCount;
+        } finally {
+            _wakeupLock.unlock();
+        }
+    }
+    
+    private void wakeup() {
+        _wakeupLock.lock();
+        
+        try {
+            _wakeupCount += 1;
+            _wakeupCondition.signalAll();
+        } finally {
+            _wakeupLock.unlock();
+        }
+    }
+    
+    /**
+     * Wait for up to <waitTime> milliseconds, or until somebody calls wakeup() (if they
+     * haven't already done so since we got <wakeupCount>).
+     * 
+     * @param wakeupCount value of _wakeupCount before we looked for something to fetch
+     * @param waitTime max time to wait
+     * @throws InterruptedException
+     */
+    private void waitForWakeup(long wakeupCount, long waitTime) throws InterruptedException {
+        long nanosLeft = TimeUnit.MILLISECONDS.toNanos(waitTime);
+        
+        _wakeupLock.lock();
+        
+        try {
+            while ((_wakeupCount == wakeupCount) && (nanosLeft > 0)) {
+                nanosLeft = _wakeupCondition.awaitNanos(nanosLeft);
+            }
+        } finally {
+            _wakeupLock.unlock();
+        }
+    }
+    
     private void trace(String template, Object... params) {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(String.format(template, params));
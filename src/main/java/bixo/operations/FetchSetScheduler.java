@@ -0,0 +1,480 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import bixo.datum.FetchSetDatum;
+import bixo.utils.DatumQueueCodec;
+import bixo.utils.DiskQueue;
+
+/**
+ * Queue of fetch sets waiting to be processed, ordered by when the fetch set's grouping
+ * ref is next ready to be fetched.
+ *
+ * Fetch sets are kept in a FIFO list per grouping ref, and each ref with queued sets has
+ * an entry in a heap, keyed by the ref's ready time (and then by the number of URLs in the
+ * ref's first fetch set, bigger first). So adding a fetch set or getting the next ready
+ * one is O(log n), no matter how many fetch sets are queued.
+ *
+ * Ready times come from a {@link ReadyTimeSource}. Heap entries are checked against the
+ * current ready time when they get to the top of the heap, so a ref that becomes active
+ * will sort lower automatically. A ref whose ready time moves earlier (e.g. when a fetch
+ * of one of its fetch sets has finished) must be passed to {@link #release(String)}.
+ *
+ * Only release() is thread-safe, everything else must be called from one thread.
+ *
+ */
+public class FetchSetScheduler {
+
+    /**
+     * Provider of the time when a grouping ref can next be fetched. This returns
+     * 0 if the ref is ready now, and Long.MAX_VALUE if it's currently active.
+     */
+    public interface ReadyTimeSource {
+        public long getReadyTime(String ref);
+    }
+
+    private static class QueuedFetchSet {
+        private FetchSetDatum _datum;
+        private int _numUrls;
+        private long _size;
+
+        public QueuedFetchSet(FetchSetDatum datum, int numUrls, long size) {
+            _datum = datum;
+            _numUrls = numUrls;
+            _size = size;
+        }
+    }
+
+    private static class RefQueue {
+        private String _ref;
+        private ArrayDeque<QueuedFetchSet> _fetchSets;
+
+        // Incremented every time we add a new heap entry for this ref, so that
+        // older (stale) heap entries can be detected and tossed.
+        private long _version;
+
+        public RefQueue(String ref) {
+            _ref = ref;
+            _fetchSets = new ArrayDeque<QueuedFetchSet>();
+            _version = 0;
+        }
+    }
+
+    private static class HeapEntry {
+        private RefQueue _refQueue;
+        private long _readyTime;
+        private int _numUrls;
+        private long _version;
+        private long _sequence;
+
+        public HeapEntry(RefQueue refQueue, long readyTime, long sequence) {
+            _refQueue = refQueue;
+            _readyTime = readyTime;
+            _numUrls = refQueue._fetchSets.peek()._numUrls;
+            _version = refQueue._version;
+            _sequence = sequence;
+        }
+
+        public boolean isStale() {
+            return (_version != _refQueue._version) || _refQueue._fetchSets.isEmpty();
+        }
+    }
+
+    private static class HeapEntryComparator implements Comparator<HeapEntry> {
+
+        @Override
+        public int compare(HeapEntry o1, HeapEntry o2) {
+            // The entry that's ready sooner sorts sooner. If both are ready
+            // at the same time, return the one with the bigger fetch set,
+            // and otherwise the one that was added first.
+            if (o1._readyTime < o2._readyTime) {
+                return -1;
+            } else if (o1._readyTime > o2._readyTime) {
+                return 1;
+            } else if (o1._numUrls > o2._numUrls) {
+                return -1;
+            } else if (o1._numUrls < o2._numUrls) {
+                return 1;
+            } else if (o1._sequence < o2._sequence) {
+                return -1;
+            } else if (o1._sequence > o2._sequence) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Order fetch sets that have overflowed to disk by their target fetch time,
+     * which also keeps fetch sets for the same ref in order.
+     */
+    private static class FetchTimeComparator implements Comparator<FetchSetDatum> {
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            long o1FetchTime = o1.getFetchTime();
+            long o2FetchTime = o2.getFetchTime();
+
+            if (o1FetchTime < o2FetchTime) {
+                return -1;
+            } else if (o1FetchTime > o2FetchTime) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    private ReadyTimeSource _readyTimes;
+    private int _maxInMemory;
+    private int _maxUrlsInMemory;
+    private long _maxBytesInMemory;
+    private DatumQueueCodec<FetchSetDatum> _codec;
+
+    private Map<String, RefQueue> _refQueues;
+    private PriorityQueue<HeapEntry> _heap;
+    private long _sequence;
+    private int _numInMemory;
+    private int _numUrlsInMemory;
+    private long _bytesInMemory;
+
+    private DiskQueue<FetchSetDatum> _overflow;
+    
+    // Fetch set we've taken from the overflow queue, but don't have room for yet. We keep it
+    // here so that we don't re-calculate its URL count and size on every refill attempt.
+    private QueuedFetchSet _overflowHead;
+
+    private ConcurrentLinkedQueue<String> _releasedRefs;
+
+    /**
+     * Create a scheduler that keeps at most <maxInMemory> fetch sets in memory. Any
+     * additional fetch sets are stored in a DiskQueue, and moved into the scheduler
+     * as space becomes available.
+     *
+     * @param readyTimes Source of ready times for refs
+     * @param maxInMemory Max number of fetch sets to keep in memory
+     */
+    public FetchSetScheduler(ReadyTimeSource readyTimes, int maxInMemory) {
+        this(readyTimes, maxInMemory, Integer.MAX_VALUE, DiskQueue.NO_BYTES_LIMIT);
+    }
+
+    /**
+     * Create a scheduler that's limited by the number of fetch sets, the total number of URLs,
+     * and the total (estimated serialized) size of the fetch sets in memory. Additional fetch
+     * sets are stored in a DiskQueue, which uses up to a quarter of these limits for its own
+     * in-memory buffer. Its buffer is limited by a number of fetch sets, so the URL limit is
+     * converted using the average number of URLs per fetch set when it's created.
+     *
+     * @param readyTimes Source of ready times for refs
+     * @param maxInMemory Max number of fetch sets to keep in memory
+     * @param maxUrlsInMemory Max number of URLs (in all fetch sets) to keep in memory
+     * @param maxBytesInMemory Max size of fetch sets to keep in memory, or DiskQueue.NO_BYTES_LIMIT
+     */
+    public FetchSetScheduler(ReadyTimeSource readyTimes, int maxInMemory, int maxUrlsInMemory, long maxBytesInMemory) {
+        if (maxInMemory < 1) {
+            throw new InvalidParameterException("FetchSetScheduler max in-memory size must be at least one");
+        }
+
+        if (maxUrlsInMemory < 1) {
+            throw new InvalidParameterException("FetchSetScheduler max in-memory URLs must be at least one");
+        }
+
+        if (maxBytesInMemory < 1) {
+            throw new InvalidParameterException("FetchSetScheduler max in-memory bytes must be at least one");
+        }
+
+        _readyTimes = readyTimes;
+        _maxInMemory = maxInMemory;
+        _maxUrlsInMemory = maxUrlsInMemory;
+        _maxBytesInMemory = maxBytesInMemory;
+        _codec = new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class);
+
+        _refQueues = new HashMap<String, RefQueue>();
+        _heap = new PriorityQueue<HeapEntry>(Math.min(maxInMemory, 1024), new HeapEntryComparator());
+        _sequence = 0;
+        _numInMemory = 0;
+        _numUrlsInMemory = 0;
+        _bytesInMemory = 0;
+
+        _releasedRefs = new ConcurrentLinkedQueue<String>();
+    }
+
+    /**
+     * Add <datum> to the end of its grouping ref's list of fetch sets.
+     *
+     * @param datum fetch set to queue
+     */
+    public void add(FetchSetDatum datum) {
+        if ((_overflowHead != null) || ((_overflow != null) && !_overflow.isEmpty())) {
+            _overflow.add(datum);
+            return;
+        }
+
+        // Cache these, as calculating them is expensive.
+        int numUrls = datum.getUrlCount();
+        long size = getSize(datum);
+
+        if (hasRoom(numUrls, size)) {
+            addToMemory(datum, numUrls, size);
+        } else {
+            if (_overflow == null) {
+                int maxOverflowInMemory = getMaxOverflowInMemory();
+                long maxOverflowBytes = (_maxBytesInMemory == DiskQueue.NO_BYTES_LIMIT) ? DiskQueue.NO_BYTES_LIMIT : Math.max(1, _maxBytesInMemory / 4);
+                _overflow = new DiskQueue<FetchSetDatum>(maxOverflowInMemory, maxOverflowBytes, new FetchTimeComparator(), _codec);
+                _overflow.setCompressRuns(true);
+            }
+
+            _overflow.add(datum);
+        }
+    }
+
+    /**
+     * Return (and remove) the best fetch set whose ref is ready at <now>.
+     *
+     * @param now current time
+     * @return fetch set that can be fetched now, or null if none are ready.
+     */
+    public FetchSetDatum pollReady(long now) {
+        HeapEntry top = peekValid();
+        if ((top == null) || (top._readyTime > now)) {
+            return null;
+        }
+
+        return remove(top);
+    }
+
+    /**
+     * Return (and remove) the best fetch set, whether or not it's ready.
+     *
+     * @return fetch set, or null if the scheduler is empty.
+     */
+    public FetchSetDatum poll() {
+        HeapEntry top = peekValid();
+        if (top == null) {
+            return null;
+        }
+
+        return remove(top);
+    }
+
+    /**
+     * Return the time when the best fetch set will be ready. This is Long.MAX_VALUE
+     * if nothing is queued, or all queued sets are for active refs.
+     *
+     * @return next ready time.
+     */
+    public long getNextReadyTime() {
+        HeapEntry top = peekValid();
+        return top == null ? Long.MAX_VALUE : top._readyTime;
+    }
+
+    /**
+     * Return true if we have fetch sets in memory for <ref>.
+     *
+     * @param ref grouping ref
+     * @return true if one or more fetch sets are queued.
+     */
+    public boolean hasQueued(String ref) {
+        RefQueue refQueue = _refQueues.get(ref);
+        return (refQueue != null) && !refQueue._fetchSets.isEmpty();
+    }
+
+    /**
+     * Let the scheduler know that <ref>'s ready time has changed, and might
+     * be earlier than before. This can be called from any thread.
+     *
+     * @param ref grouping ref
+     */
+    public void release(String ref) {
+        _releasedRefs.add(ref);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        return _numInMemory + (_overflowHead == null ? 0 : 1) + (_overflow == null ? 0 : _overflow.size());
+    }
+
+    /**
+     * Return the number of URLs in fetch sets that are in memory.
+     *
+     * @return number of URLs
+     */
+    public int getUrlsInMemory() {
+        return _numUrlsInMemory;
+    }
+
+    /**
+     * Return the estimated size of the fetch sets that are in memory. This is only
+     * calculated if there's a limit on the number of bytes.
+     *
+     * @return size in bytes
+     */
+    public long getBytesInMemory() {
+        return _bytesInMemory;
+    }
+
+    /**
+     * Return the number of fetch sets that the overflow queue can keep in memory, which is
+     * a quarter of our limit on fetch sets, and also of our limit on URLs (based on the
+     * average number of URLs in the fetch sets we've got now).
+     */
+    private int getMaxOverflowInMemory() {
+        int result = _maxInMemory / 4;
+        if ((_maxUrlsInMemory != Integer.MAX_VALUE) && (_numUrlsInMemory > 0)) {
+            long avgUrls = Math.max(1, _numUrlsInMemory / _numInMemory);
+            result = (int)Math.min(result, (_maxUrlsInMemory / 4) / avgUrls);
+        }
+        
+        return Math.max(1, result);
+    }
+    
+    private long getSize(FetchSetDatum datum) {
+        return (_maxBytesInMemory == DiskQueue.NO_BYTES_LIMIT) ? 0 : _codec.estimateSize(datum);
+    }
+
+    /**
+     * Return true if we can add a fetch set with <numUrls> and <size> to memory. We
+     * always have room for one fetch set, no matter how big it is.
+     */
+    private boolean hasRoom(int numUrls, long size) {
+        if (_numInMemory == 0) {
+            return true;
+        }
+
+        return (_numInMemory < _maxInMemory)
+                        && (_numUrlsInMemory + numUrls <= _maxUrlsInMemory)
+                        && (_bytesInMemory + size <= _maxBytesInMemory);
+    }
+
+    private void addToMemory(FetchSetDatum datum, int numUrls, long size) {
+        String ref = datum.getGroupingRef();
+        RefQueue refQueue = _refQueues.get(ref);
+        if (refQueue == null) {
+            refQueue = new RefQueue(ref);
+            _refQueues.put(ref, refQueue);
+        }
+
+        refQueue._fetchSets.add(new QueuedFetchSet(datum, numUrls, size));
+        _numInMemory += 1;
+        _numUrlsInMemory += numUrls;
+        _bytesInMemory += size;
+
+        // If there was already something queued for this ref, then it's already
+        // in the heap, and adding to the end of the list doesn't change its position.
+        if (refQueue._fetchSets.size() == 1) {
+            pushEntry(refQueue, _readyTimes.getReadyTime(ref));
+        }
+    }
+
+    private void pushEntry(RefQueue refQueue, long readyTime) {
+        refQueue._version += 1;
+        _heap.add(new HeapEntry(refQueue, readyTime, _sequence++));
+    }
+
+    /**
+     * Return the top heap entry, after tossing stale entries and re-positioning entries
+     * whose ready time has changed.
+     *
+     * @return top entry, or null if there's nothing queued.
+     */
+    private HeapEntry peekValid() {
+        refill();
+
+        // Re-position refs that might be ready sooner than when they were added to the heap.
+        String ref;
+        while ((ref = _releasedRefs.poll()) != null) {
+            RefQueue refQueue = _refQueues.get(ref);
+            if ((refQueue != null) && !refQueue._fetchSets.isEmpty()) {
+                pushEntry(refQueue, _readyTimes.getReadyTime(ref));
+            }
+        }
+
+        while (!_heap.isEmpty()) {
+            HeapEntry top = _heap.peek();
+            if (top.isStale()) {
+                _heap.poll();
+                continue;
+            }
+
+            RefQueue refQueue = top._refQueue;
+            long readyTime = _readyTimes.getReadyTime(refQueue._ref);
+            if (readyTime != top._readyTime) {
+                _heap.poll();
+                pushEntry(refQueue, readyTime);
+                continue;
+            }
+
+            return top;
+        }
+
+        return null;
+    }
+
+    private FetchSetDatum remove(HeapEntry top) {
+        _heap.poll();
+
+        RefQueue refQueue = top._refQueue;
+        QueuedFetchSet result = refQueue._fetchSets.poll();
+        _numInMemory -= 1;
+        _numUrlsInMemory -= result._numUrls;
+        _bytesInMemory -= result._size;
+
+        if (refQueue._fetchSets.isEmpty()) {
+            _refQueues.remove(refQueue._ref);
+        } else {
+            pushEntry(refQueue, _readyTimes.getReadyTime(refQueue._ref));
+        }
+
+        return result._datum;
+    }
+
+    private void refill() {
+        if (_overflow == null) {
+            return;
+        }
+
+        while (true) {
+            if (_overflowHead == null) {
+                FetchSetDatum datum = _overflow.poll();
+                if (datum == null) {
+                    break;
+                }
+                
+                _overflowHead = new QueuedFetchSet(datum, datum.getUrlCount(), getSize(datum));
+            }
+            
+            if (!hasRoom(_overflowHead._numUrls, _overflowHead._size)) {
+                break;
+            }
+
+            addToMemory(_overflowHead._datum, _overflowHead._numUrls, _overflowHead._size);
+            _overflowHead = null;
+        }
+    }
+}
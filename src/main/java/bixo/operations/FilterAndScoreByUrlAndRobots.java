@@ -16,8 +16,18 @@
  */
 package bixo.operations;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,8 +36,9 @@ import bixo.datum.GroupedUrlDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
-import bixo.utils.DiskQueue;
+import bixo.utils.BaseHostResolver;
 import bixo.utils.GroupingKey;
+import bixo.utils.RobotRulesCache;
 import bixo.utils.RobotUtils;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
@@ -36,6 +47,7 @@ import cascading.operation.Buffer;
 import cascading.operation.BufferCall;
 import cascading.operation.OperationCall;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 import com.scaleunlimited.cascading.LoggingFlowProcess;
 import com.scaleunlimited.cascading.LoggingFlowReporter;
@@ -56,11 +68,14 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     private static final long COMMAND_TIMEOUT = RobotUtils.getMaxFetchTime();
     private static final long TERMINATE_TIMEOUT = COMMAND_TIMEOUT;
 
-    private static final int MAX_URLS_IN_MEMORY = 100;
+    // Number of URLs we read from a group before deciding whether to process it
+    // asynchronously, or to stream it.
+    private static final int MAX_LOOKAHEAD_URLS = 100;
 
     private BaseScoreGenerator _scorer;
 	private BaseFetcher _fetcher;
 	private BaseRobotsParser _parser;
+	private RobotRulesCache _robotsCache;
 	
     private transient ThreadedExecutor _executor;
     private transient LoggingFlowProcess _flowProcess;
@@ -82,6 +97,21 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         _fetcher = fetcher;
     }
 
+    public RobotRulesCache getRobotRulesCache() {
+        return _robotsCache;
+    }
+    
+    /**
+     * Use <robotsCache> to avoid re-fetching robots.txt for domains that we've
+     * recently processed, including in previous crawl loops if the cache has
+     * a directory.
+     * 
+     * @param robotsCache cache to use, or null to always fetch robots.txt
+     */
+    public void setRobotRulesCache(RobotRulesCache robotsCache) {
+        _robotsCache = robotsCache;
+    }
+
     @Override
     public boolean isSafe() {
         // We only want to fetch robots once.
@@ -91,12 +121,31 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     @SuppressWarnings("unchecked")
     @Override
     public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT, _fetcher.getFetcherPolicy().isUseVirtualThreads());
         
         // FUTURE KKr - use Cascading process vs creating our own, once it
         // supports logging in local mode, and a setStatus() call.
         _flowProcess = new LoggingFlowProcess(flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        
+        _fetcher.getHostResolver().open();
+        
+        if (_robotsCache != null) {
+            try {
+                // A reducer gets the same domains each loop, so it only needs its own partition.
+                // Some flow processes (e.g. in tests) don't know how many slices there are.
+                int numPartitions = flowProcess.getNumProcessSlices();
+                int partition = flowProcess.getCurrentSliceNum();
+                if ((numPartitions < 1) || (partition < 0) || (partition >= numPartitions)) {
+                    numPartitions = 1;
+                    partition = 0;
+                }
+                
+                _robotsCache.open(partition, numPartitions);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't open robots rules cache", e);
+            }
+        }
     }
     
     private synchronized void terminate() {
@@ -115,6 +164,26 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
             Thread.currentThread().interrupt();
         } finally {
             _executor = null;
+            
+            // The resolver can be shared with the fetch step, so only its last user
+            // reports the counts.
+            BaseHostResolver resolver = _fetcher.getHostResolver();
+            if (resolver.close()) {
+                _flowProcess.increment(FetchCounters.DNS_CACHE_HITS, resolver.getCacheHits());
+                _flowProcess.increment(FetchCounters.DNS_CACHE_MISSES, resolver.getCacheMisses());
+                _flowProcess.increment(FetchCounters.DNS_LOOKUP_TIME, resolver.getLookupTime());
+            }
+            
+            if (_robotsCache != null) {
+                _flowProcess.increment(FetchCounters.ROBOTS_CACHE_HITS, _robotsCache.getHits());
+                _flowProcess.increment(FetchCounters.ROBOTS_CACHE_MISSES, _robotsCache.getMisses());
+                
+                try {
+                    _robotsCache.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Exception saving robots rules cache", e);
+                }
+            }
         }
     }
 
@@ -143,29 +212,133 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         String protocolAndDomain = group.getString(0);
         LOGGER.info("Processing tuple group: " + group);
 
-        DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
+        // Start resolving the host now, so that it's often done by the time we've queued up
+        // the group's URLs and a robots thread gets to it.
+        prefetchHost(protocolAndDomain);
+
+        // Read ahead a limited number of URLs. If that's the whole group, we can hand it off
+        // to a robots thread. Otherwise we wait for the robots decision and then stream the
+        // rest of the URLs straight from the iterator, so that big groups are never buffered.
+        Queue<GroupedUrlDatum> urls = new ArrayDeque<GroupedUrlDatum>(MAX_LOOKAHEAD_URLS);
         Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
-        while (values.hasNext()) {
+        while (values.hasNext() && (urls.size() < MAX_LOOKAHEAD_URLS)) {
             urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
         }
         
+        TupleEntryCollector collector = bufferCall.getOutputCollector();
+        ProcessRobotsTask task = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, collector, _flowProcess, _robotsCache);
+        if (values.hasNext()) {
+            streamUrls(task, urls, values, collector);
+            return;
+        }
+        
         try {
-            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, bufferCall.getOutputCollector(), _flowProcess);
-            _executor.execute(doRobots);
+            _executor.execute(task);
         } catch (RejectedExecutionException e) {
             // should never happen.
             LOGGER.error("Robots handling pool rejected our request for " + protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector(), flowProcess);
+            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, collector, flowProcess);
         } catch (Throwable t) {
            LOGGER.error("Caught an unexpected throwable - robots handling rejected our request for " + protocolAndDomain, t);
            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
            _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-           ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector(), flowProcess);
+           ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, collector, flowProcess);
       } 
 	}
 
+    /**
+     * Get the robots decision for a big group using a robots thread (so we share the same
+     * limit on active robots requests), then process the read-ahead <urls> followed by the
+     * remaining <values> in this thread.
+     * 
+     * Only one big group's decision is pending at a time, since we can't return from operate()
+     * without consuming the group, and we don't want to buffer it. If we don't get a decision
+     * in time then the domain and all of its URLs are deferred to a later crawl loop.
+     */
+    private void streamUrls(final ProcessRobotsTask task, Queue<GroupedUrlDatum> urls, Iterator<TupleEntry> values, TupleEntryCollector collector) {
+        _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+        
+        try {
+            FutureTask<Void> robotsFuture = new FutureTask<Void>(new Runnable() {
+                
+                @Override
+                public void run() {
+                    task.processRobots();
+                }
+            }, null);
+            
+            boolean haveDecision = false;
+            FetchCounters urlCounter = FetchCounters.URLS_REJECTED;
+            try {
+                _executor.execute(robotsFuture);
+                robotsFuture.get(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+                haveDecision = true;
+            } catch (RejectedExecutionException e) {
+                LOGGER.error("Robots handling pool rejected our request for " + task.getProtocolAndDomain());
+            } catch (TimeoutException e) {
+                LOGGER.warn("Timed out processing robots for " + task.getProtocolAndDomain());
+                robotsFuture.cancel(true);
+                urlCounter = FetchCounters.URLS_DEFERRED;
+            } catch (InterruptedException e) {
+                LOGGER.warn("Interrupted while processing robots for " + task.getProtocolAndDomain());
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.error("Exception processing robots for " + task.getProtocolAndDomain(), e.getCause());
+            }
+            
+            if (!haveDecision) {
+                if (urlCounter == FetchCounters.URLS_DEFERRED) {
+                    _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
+                } else {
+                    _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+                }
+            }
+            
+            int numUndecided = 0;
+            GroupedUrlDatum datum;
+            while ((datum = urls.poll()) != null) {
+                numUndecided += processUrl(task, haveDecision, datum, collector);
+            }
+            
+            while (values.hasNext()) {
+                numUndecided += processUrl(task, haveDecision, new GroupedUrlDatum(new TupleEntry(values.next())), collector);
+            }
+            
+            // Count these all at once, since big groups can have lots of URLs.
+            if (numUndecided > 0) {
+                _flowProcess.increment(urlCounter, numUndecided);
+            }
+        } finally {
+            _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+        }
+    }
+    
+    /**
+     * Process <datum> using the robots decision, or defer it if we don't have one.
+     * 
+     * @return 1 if the URL was deferred because we didn't have a decision, otherwise 0.
+     */
+    private int processUrl(ProcessRobotsTask task, boolean haveDecision, GroupedUrlDatum datum, TupleEntryCollector collector) {
+        if (haveDecision) {
+            task.processUrl(datum, collector);
+            return 0;
+        } else {
+            ProcessRobotsTask.emitWithKey(datum, GroupingKey.DEFERRED_GROUPING_KEY, collector, _flowProcess);
+            return 1;
+        }
+    }
+    
+    private void prefetchHost(String protocolAndDomain) {
+        try {
+            String host = new URL(protocolAndDomain).getHost();
+            _fetcher.getHostResolver().prefetch(Collections.singletonList(host));
+        } catch (MalformedURLException e) {
+            // ProcessRobotsTask will handle this.
+        }
+    }
+
 	
 
 }
@@ -39,6 +39,8 @@ import bixo.hadoop.FetchCounters;
 import bixo.utils.DomainInfo;
 import bixo.utils.DomainNames;
 import bixo.utils.GroupingKey;
+import bixo.utils.RobotRulesCache;
+import bixo.utils.RobotRulesMatcher;
 import cascading.flow.FlowProcess;
 import cascading.tuple.TupleEntryCollector;
 
@@ -59,9 +61,25 @@ public class ProcessRobotsTask implements Runnable {
     private TupleEntryCollector _collector;
     private BaseRobotsParser _parser;
     private LoggingFlowProcess _flowProcess;
+    private RobotRulesCache _robotsCache;
+
+    // Results of processRobots(). If that's run by a different thread than processUrl(), the
+    // caller has to make sure these are visible (e.g. by waiting on a Future).
+    private String _specialKey;
+    private FetchCounters _specialKeyCounter;
+    private RobotRulesMatcher _robotRules;
+    private boolean _isDeferred;
+    private String _validKey;
+    private String _domain;
+    private String _pld;
 
     public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
                     BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, collector, flowProcess, null);
+    }
+    
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess, RobotRulesCache robotsCache) {
         _protocolAndDomain = protocolAndDomain;
         _scorer = scorer;
         _urls = urls;
@@ -69,8 +87,13 @@ public class ProcessRobotsTask implements Runnable {
         _parser = parser;
         _collector = collector;
         _flowProcess = flowProcess;
+        _robotsCache = robotsCache;
     }
 
+    public String getProtocolAndDomain() {
+        return _protocolAndDomain;
+    }
+    
     /**
      * Clear out the queue by outputting all entries with <groupingKey>.
      * 
@@ -83,12 +106,24 @@ public class ProcessRobotsTask implements Runnable {
     public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleEntryCollector collector, FlowProcess process) {
         GroupedUrlDatum datum;
         while ((datum = urls.poll()) != null) {
-            ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), groupingKey, UrlStatus.UNFETCHED, 1.0);
-            scoreUrl.setPayload(datum.getPayload());
-            // TODO KKr - move synchronization up, to avoid lots of contention with other threads?
-            synchronized (collector) {
-                collector.add(BixoPlatform.clone(scoreUrl.getTuple(), process));
-            }
+            emitWithKey(datum, groupingKey, collector, process);
+        }
+    }
+
+    /**
+     * Output <datum> with <groupingKey>, for when we can't (or don't need to) process
+     * the URL normally.
+     * 
+     * @param datum URL to output
+     * @param groupingKey grouping key to use
+     * @param collector tuple output collector
+     */
+    public static void emitWithKey(GroupedUrlDatum datum, String groupingKey, TupleEntryCollector collector, FlowProcess process) {
+        ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), groupingKey, UrlStatus.UNFETCHED, 1.0);
+        scoreUrl.setPayload(datum.getPayload());
+        // TODO KKr - move synchronization up, to avoid lots of contention with other threads?
+        synchronized (collector) {
+            collector.add(BixoPlatform.clone(scoreUrl.getTuple(), process));
         }
     }
 
@@ -104,7 +139,25 @@ public class ProcessRobotsTask implements Runnable {
         _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
         try {
-            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain);
+            processRobots();
+            
+            GroupedUrlDatum datum;
+            while ((datum = _urls.poll()) != null) {
+                processUrl(datum, _collector);
+            }
+        } finally {
+            _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+        }
+    }
+
+    /**
+     * Resolve the domain, check that it's one we want, and fetch & parse its robots.txt. The
+     * result is used by subsequent calls to processUrl(). This never throws an exception; any
+     * problem results in a special grouping key being used for all of the domain's URLs.
+     */
+    public void processRobots() {
+        try {
+            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain, _fetcher.getHostResolver());
             if (!domainInfo.isValidHostAddress()) {
                 throw new UnknownHostException(_protocolAndDomain);
             }
@@ -113,91 +166,118 @@ public class ProcessRobotsTask implements Runnable {
                 LOGGER.trace(String.format("Resolved %s to %s", _protocolAndDomain, domainInfo.getHostAddress()));
             }
             
-            String domain = domainInfo.getDomain();
-            String pld = DomainNames.getPLD(domain);
-            if (!_scorer.isGoodDomain(domain, pld)) {
+            _domain = domainInfo.getDomain();
+            _pld = DomainNames.getPLD(_domain);
+            if (!_scorer.isGoodDomain(_domain, _pld)) {
                 _flowProcess.increment(FetchCounters.DOMAINS_SKIPPED, 1);
-                _flowProcess.increment(FetchCounters.URLS_SKIPPED, _urls.size());
-                
-                LOGGER.debug("Skipping URLs from not-good domain: " + domain);
-                
-                emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector, _flowProcess);
+                LOGGER.debug("Skipping URLs from not-good domain: " + _domain);
+                setSpecialKey(GroupingKey.SKIPPED_GROUPING_KEY, FetchCounters.URLS_SKIPPED);
             } else {
-                BaseRobotRules robotRules = getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"));
-
-                String validKey = null;
-                boolean isDeferred = robotRules.isDeferVisits();
-                if (isDeferred) {
-                    LOGGER.debug("Deferring visits to URLs from " + domainInfo.getDomain());
+                BaseRobotRules robotRules = getCachedRobotRules(domainInfo);
+                _isDeferred = robotRules.isDeferVisits();
+                if (_isDeferred) {
+                    LOGGER.debug("Deferring visits to URLs from " + _domain);
                     _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
                 } else {
-                    validKey = GroupingKey.makeGroupingKey(domainInfo.getHostAddress(), robotRules.getCrawlDelay());
-                    _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
-                }
-
-                // Use the same key for every URL from this domain
-                GroupedUrlDatum datum;
-                while ((datum = _urls.poll()) != null) {
-                    ScoredUrlDatum scoreUrl;
-                    FetchCounters counter;
-                    String url = datum.getUrl();
-
-                    if (isDeferred) {
-                        counter = FetchCounters.URLS_DEFERRED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
-                    } else if (!robotRules.isAllowed(url)) {
-                        counter = FetchCounters.URLS_BLOCKED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
-                    } else {
-                        double score = _scorer.generateScore(domain, pld, datum);
-                        if (score == BaseScoreGenerator.SKIP_SCORE) {
-                            counter = FetchCounters.URLS_SKIPPED;
-                            scoreUrl = new ScoredUrlDatum(url, GroupingKey.SKIPPED_GROUPING_KEY, UrlStatus.UNFETCHED, score);
-                        } else {
-                            counter = FetchCounters.URLS_ACCEPTED;
-                            scoreUrl = new ScoredUrlDatum(url, validKey, UrlStatus.UNFETCHED, score);
-                        }
-                    }
+                    _validKey = GroupingKey.makeGroupingKey(domainInfo.getHostAddress(), robotRules.getCrawlDelay());
                     
-                    scoreUrl.setPayload(datum.getPayload());
-                    _flowProcess.increment(counter, 1);
-
-                    // collectors aren't thread safe
-                    synchronized (_collector) {
-                        _collector.add(BixoPlatform.clone(scoreUrl.getTuple(), _flowProcess));
-                    }
+                    // We'll be checking every URL from the domain, so compile the rules once.
+                    _robotRules = RobotRulesMatcher.compile(robotRules);
+                    _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
                 }
             }
         } catch (UnknownHostException e) {
             LOGGER.debug("Unknown host: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _collector, _flowProcess);
+            setSpecialKey(GroupingKey.UNKNOWN_HOST_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (MalformedURLException e) {
             LOGGER.debug("Invalid URL: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector, _flowProcess);
+            setSpecialKey(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (URISyntaxException e) {
             LOGGER.debug("Invalid URI: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector, _flowProcess);
+            setSpecialKey(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (Exception e) {
             LOGGER.warn("Exception processing " + _protocolAndDomain, e);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector, _flowProcess);
-        } finally {
-            _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            setSpecialKey(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         }
     }
+    
+    private void setSpecialKey(String groupingKey, FetchCounters counter) {
+        _specialKey = groupingKey;
+        _specialKeyCounter = counter;
+    }
+    
+    /**
+     * Score <datum> (or block/defer/skip it) using the results of processRobots(), and
+     * add the result to <collector>.
+     * 
+     * @param datum URL from the domain being processed
+     * @param collector tuple output collector
+     */
+    public void processUrl(GroupedUrlDatum datum, TupleEntryCollector collector) {
+        ScoredUrlDatum scoreUrl;
+        FetchCounters counter;
+        String url = datum.getUrl();
 
+        if (_specialKey != null) {
+            _flowProcess.increment(_specialKeyCounter, 1);
+            emitWithKey(datum, _specialKey, collector, _flowProcess);
+            return;
+        }
+        
+        if (_isDeferred) {
+            counter = FetchCounters.URLS_DEFERRED;
+            scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
+        } else if (!_robotRules.isAllowed(url)) {
+            counter = FetchCounters.URLS_BLOCKED;
+            scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
+        } else {
+            double score = _scorer.generateScore(_domain, _pld, datum);
+            if (score == BaseScoreGenerator.SKIP_SCORE) {
+                counter = FetchCounters.URLS_SKIPPED;
+                scoreUrl = new ScoredUrlDatum(url, GroupingKey.SKIPPED_GROUPING_KEY, UrlStatus.UNFETCHED, score);
+            } else {
+                counter = FetchCounters.URLS_ACCEPTED;
+                scoreUrl = new ScoredUrlDatum(url, _validKey, UrlStatus.UNFETCHED, score);
+            }
+        }
+        
+        scoreUrl.setPayload(datum.getPayload());
+        _flowProcess.increment(counter, 1);
+
+        // collectors aren't thread safe
+        synchronized (collector) {
+            collector.add(BixoPlatform.clone(scoreUrl.getTuple(), _flowProcess));
+        }
+    }
+
+    private BaseRobotRules getCachedRobotRules(DomainInfo domainInfo) throws MalformedURLException {
+        String protocolAndDomain = domainInfo.getProtocolAndDomain();
+        if (_robotsCache != null) {
+            BaseRobotRules result = _robotsCache.getRules(protocolAndDomain);
+            if (result != null) {
+                return result;
+            }
+        }
+        
+        BaseRobotRules result = getRobotRules(_fetcher, _parser, new URL(protocolAndDomain + "/robots.txt"));
+        if (_robotsCache != null) {
+            _robotsCache.putRules(protocolAndDomain, result);
+        }
+        
+        return result;
+    }
+    
     private BaseRobotRules getRobotRules(BaseFetcher fetcher, BaseRobotsParser parser, URL robotsUrl) {
             
+            FetchedDatum result = null;
+            
             try {
                 String urlToFetch = robotsUrl.toExternalForm();
-                FetchedDatum result = fetcher.get(new ScoredUrlDatum(urlToFetch));
+                result = fetcher.get(new ScoredUrlDatum(urlToFetch));
 
                 // HACK! DANGER! Some sites will redirect the request to the top-level domain
                 // page, without returning a 404. So look for a response which has a redirect,
@@ -222,6 +302,10 @@ public class ProcessRobotsTask implements Runnable {
             } catch (Exception e) {
                 LOGGER.error("Unexpected exception fetching robots.txt: " + robotsUrl, e);
                 return parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                if (result != null) {
+                    result.disposeContent();
+                }
             }
     }
 
@@ -54,6 +54,7 @@ public class ResolveRedirectsTask implements Runnable {
 
         try {
             FetchedDatum fd = _fetcher.get(new ScoredUrlDatum(_url));
+            fd.disposeContent();
             redirectedUrl = fd.getFetchedUrl();
             LOGGER.debug(String.format("No redirection of %s to %s", _url, redirectedUrl));
         } catch (RedirectFetchException e) {
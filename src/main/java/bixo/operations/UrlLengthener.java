@@ -128,7 +128,7 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
         _flowProcess = new LoggingFlowProcess(flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT, _fetcher.getFetcherPolicy().isUseVirtualThreads());
     }
     
     @Override
@@ -43,6 +43,19 @@ public abstract class BaseParser implements Serializable {
 
     public abstract ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception;
 
+    /**
+     * Release any resources (e.g. threads) used by the parser. By default this does nothing.
+     */
+    public void close() {
+    }
+    
+    /**
+     * @return number of parse threads that were replaced because they hung
+     */
+    public long getQuarantinedThreads() {
+        return 0;
+    }
+
     /**
      * Extract encoding from content-type
      * 
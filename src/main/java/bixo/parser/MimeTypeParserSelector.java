@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.mime.MimeTypes;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.CompositeParser;
+import org.apache.tika.parser.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the Tika parser for a document's declared (Content-Type) mime type, so that we
+ * don't have to run the full set of Tika detectors for every document.
+ * 
+ * The lookup is the same one that a CompositeParser (e.g. AutoDetectParser) does once
+ * it knows the type: try the normalized type, then its supertypes. The parsers are
+ * copied when the selector is created, and results are cached by mime type.
+ * 
+ * Servers sometimes lie, so we also do a quick check of the content's magic bytes. If
+ * they say the content is some specific type that's not related to the declared type,
+ * we report that we don't have a parser, and the caller should use auto-detection.
+ *
+ */
+public class MimeTypeParserSelector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MimeTypeParserSelector.class);
+
+    // Our cache can't hold null values, so we use this for types that don't have a parser.
+    private static final Parser NO_PARSER = new CompositeParser();
+    
+    private final Map<MediaType, Parser> _parsers;
+    private final MediaTypeRegistry _registry;
+    private final MimeTypes _mimeTypes;
+    
+    private final ConcurrentHashMap<String, Parser> _cache;
+    
+    public MimeTypeParserSelector(CompositeParser parser) {
+        _parsers = Collections.unmodifiableMap(new HashMap<MediaType, Parser>(parser.getParsers()));
+        _registry = parser.getMediaTypeRegistry();
+        _mimeTypes = MimeTypes.getDefaultMimeTypes();
+        _cache = new ConcurrentHashMap<String, Parser>();
+    }
+    
+    /**
+     * Return the parser to use for <mimeType>, or null if we don't have a parser that
+     * handles that type (other than as generic binary data).
+     * 
+     * @param mimeType mime type, possibly with parameters (e.g. "text/html; charset=UTF-8")
+     * @return parser, or null
+     */
+    public Parser getParser(String mimeType) {
+        String baseType = getBaseType(mimeType);
+        if (baseType == null) {
+            return null;
+        }
+        
+        Parser result = _cache.get(baseType);
+        if (result == null) {
+            result = findParser(baseType);
+            _cache.put(baseType, result);
+        }
+        
+        return (result == NO_PARSER) ? null : result;
+    }
+    
+    /**
+     * Return the parser to use for content with a declared type of <mimeType>, or null if we
+     * don't have a parser for that type, or the content in <input> looks like something else.
+     * 
+     * @param mimeType mime type, possibly with parameters (e.g. "text/html; charset=UTF-8")
+     * @param input content, which must support mark/reset
+     * @return parser, or null
+     */
+    public Parser getParser(String mimeType, InputStream input) {
+        Parser result = getParser(mimeType);
+        if ((result == null) || isMismatch(MediaType.parse(getBaseType(mimeType)), input)) {
+            return null;
+        }
+        
+        return result;
+    }
+    
+    private static String getBaseType(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        
+        int paramsStart = mimeType.indexOf(';');
+        if (paramsStart != -1) {
+            mimeType = mimeType.substring(0, paramsStart);
+        }
+        
+        mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        return mimeType.length() == 0 ? null : mimeType;
+    }
+    
+    private Parser findParser(String mimeType) {
+        MediaType type = MediaType.parse(mimeType);
+        if (type == null) {
+            return NO_PARSER;
+        }
+        
+        type = _registry.normalize(type);
+        while ((type != null) && !type.equals(MediaType.OCTET_STREAM)) {
+            Parser parser = _parsers.get(type);
+            if (parser != null) {
+                return parser;
+            }
+            
+            type = _registry.getSupertype(type);
+        }
+        
+        return NO_PARSER;
+    }
+    
+    private boolean isMismatch(MediaType declaredType, InputStream input) {
+        MediaType magicType;
+        try {
+            // Without a resource name or type hint, this only uses the magic bytes.
+            magicType = _mimeTypes.detect(input, new Metadata());
+        } catch (IOException e) {
+            LOGGER.debug("Exception detecting mime type from content", e);
+            return true;
+        }
+        
+        // Magic bytes often can't tell us anything more than "text" or "binary".
+        if (magicType.equals(MediaType.OCTET_STREAM) || magicType.equals(MediaType.TEXT_PLAIN)) {
+            return false;
+        }
+        
+        declaredType = _registry.normalize(declaredType.getBaseType());
+        magicType = _registry.normalize(magicType.getBaseType());
+        if (declaredType.equals(magicType) || _registry.isSpecializationOf(declaredType, magicType) || _registry.isSpecializationOf(magicType, declaredType)) {
+            return false;
+        }
+        
+        LOGGER.debug(String.format("Declared type %s doesn't match content type %s", declaredType, magicType));
+        return true;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of reusable threads for parsing documents, with a watchdog thread that
+ * enforces the max duration of each parse.
+ * 
+ * Parsers can hang on bad content (and ignore interrupts), so when a parse takes too
+ * long we can't count on getting the thread back. The watchdog fails the parse with a
+ * TimeoutException, interrupts the worker, and quarantines it - the thread is dropped
+ * from the pool and a new worker takes its place. If a quarantined thread ever finishes
+ * its parse, it exits.
+ * 
+ * To avoid leaking threads, at most <maxQuarantined> quarantined threads are replaced.
+ * Once that many are still alive, hung workers aren't replaced until one of them exits,
+ * and if the pool runs out of workers then parse requests are rejected.
+ *
+ */
+public class ParseWorkerPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParseWorkerPool.class);
+
+    // How often the watchdog checks for parses that have taken too long. This is also how
+    // long idle workers wait before checking if the pool has been closed.
+    private static final long WATCHDOG_INTERVAL = 100L;
+    
+    private static class ParseJob<T> extends FutureTask<T> {
+        private final long _maxDuration;
+        
+        public ParseJob(Callable<T> callable, long maxDuration) {
+            super(callable);
+            
+            _maxDuration = maxDuration;
+        }
+        
+        public long getMaxDuration() {
+            return _maxDuration;
+        }
+        
+        public void fail(Exception e) {
+            setException(e);
+        }
+    }
+    
+    private class Worker extends Thread {
+        
+        // Only changed while holding the worker's lock, so that the watchdog never
+        // interrupts a worker after it has moved on to a different job.
+        private ParseJob<?> _job;
+        private long _deadline;
+        private boolean _quarantined;
+        
+        public Worker(int id) {
+            super("ParseWorkerPool worker " + id);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (!_closed) {
+                    ParseJob<?> job = _queue.poll(WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+                    if ((job == null) || job.isDone()) {
+                        continue;
+                    }
+                    
+                    if (!startJob(job)) {
+                        break;
+                    }
+                    
+                    try {
+                        job.run();
+                    } finally {
+                        if (!endJob()) {
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // We're being closed, or got quarantined after our job finished.
+            } finally {
+                workerExited(this);
+            }
+        }
+        
+        private synchronized boolean startJob(ParseJob<?> job) {
+            if (_quarantined) {
+                return false;
+            }
+            
+            _job = job;
+            _deadline = System.currentTimeMillis() + job.getMaxDuration();
+            return true;
+        }
+        
+        private synchronized boolean endJob() {
+            _job = null;
+            return !_quarantined;
+        }
+        
+        /**
+         * If our current job has been running past its deadline, quarantine this worker.
+         * 
+         * @param now current time
+         * @return job that timed out, or null
+         */
+        public synchronized ParseJob<?> checkTimeout(long now) {
+            if ((_job == null) || _quarantined || (now < _deadline)) {
+                return null;
+            }
+            
+            _quarantined = true;
+            interrupt();
+            return _job;
+        }
+        
+        public synchronized boolean isQuarantined() {
+            return _quarantined;
+        }
+    }
+    
+    private class Watchdog extends Thread {
+
+        public Watchdog() {
+            super("ParseWorkerPool watchdog");
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (!_closed) {
+                    Thread.sleep(WATCHDOG_INTERVAL);
+                    checkWorkers(System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                // We're being closed.
+            }
+        }
+    }
+    
+    private int _numWorkers;
+    private int _maxQuarantined;
+    
+    private BlockingQueue<ParseJob<?>> _queue;
+    private Set<Worker> _workers;
+    private Thread _watchdog;
+    private volatile boolean _closed;
+    
+    // Number of quarantined threads that are still alive.
+    private int _numHung;
+    private int _nextWorkerId;
+    
+    private long _numTimeouts;
+    private long _numQuarantined;
+    
+    /**
+     * Create a pool with <numWorkers> threads.
+     * 
+     * @param numWorkers Number of threads used to parse documents
+     * @param maxQuarantined Max number of hung threads that get replaced
+     */
+    public ParseWorkerPool(int numWorkers, int maxQuarantined) {
+        if (numWorkers < 1) {
+            throw new InvalidParameterException("numWorkers must be > 0: " + numWorkers);
+        }
+        
+        if (maxQuarantined < 0) {
+            throw new InvalidParameterException("maxQuarantined can't be negative: " + maxQuarantined);
+        }
+        
+        _numWorkers = numWorkers;
+        _maxQuarantined = maxQuarantined;
+        
+        _queue = new LinkedBlockingQueue<ParseJob<?>>();
+        _workers = new HashSet<Worker>();
+        _closed = false;
+        
+        synchronized (this) {
+            fillPool();
+        }
+        
+        _watchdog = new Watchdog();
+        _watchdog.start();
+    }
+    
+    /**
+     * Queue up <callable> to be run by one of the workers. If it takes longer than <maxDuration>
+     * milliseconds once it has started, the returned future's get() throws an ExecutionException
+     * with a TimeoutException as the cause.
+     * 
+     * @param callable parse to run
+     * @param maxDuration max time (in milliseconds) the parse can take
+     * @return future for the result of the parse
+     * @throws RejectedExecutionException if the pool is closed, or every worker is hung
+     */
+    public synchronized <T> Future<T> submit(Callable<T> callable, long maxDuration) throws RejectedExecutionException {
+        if (_closed) {
+            throw new RejectedExecutionException("ParseWorkerPool has been closed");
+        } else if (_workers.isEmpty()) {
+            throw new RejectedExecutionException("All parse worker threads are hung");
+        }
+        
+        ParseJob<T> result = new ParseJob<T>(callable, maxDuration);
+        _queue.add(result);
+        return result;
+    }
+    
+    /**
+     * @return number of parses that took too long
+     */
+    public synchronized long getNumTimeouts() {
+        return _numTimeouts;
+    }
+    
+    /**
+     * @return number of worker threads that have been quarantined
+     */
+    public synchronized long getNumQuarantined() {
+        return _numQuarantined;
+    }
+    
+    /**
+     * @return number of quarantined threads that are still alive
+     */
+    public synchronized int getNumHung() {
+        return _numHung;
+    }
+    
+    /**
+     * @return number of workers available for parsing
+     */
+    public synchronized int getNumWorkers() {
+        return _workers.size();
+    }
+    
+    /**
+     * Stop all of the threads, and reject any parses that haven't started yet. Threads
+     * that are busy parsing get interrupted.
+     */
+    public void close() {
+        List<Worker> workers;
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            
+            _closed = true;
+            workers = new ArrayList<Worker>(_workers);
+        }
+        
+        _watchdog.interrupt();
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        
+        rejectQueuedJobs("ParseWorkerPool has been closed");
+    }
+    
+    private void checkWorkers(long now) {
+        List<Worker> workers;
+        synchronized (this) {
+            workers = new ArrayList<Worker>(_workers);
+        }
+        
+        for (Worker worker : workers) {
+            ParseJob<?> job = worker.checkTimeout(now);
+            if (job == null) {
+                continue;
+            }
+            
+            LOGGER.warn(String.format("Parse took longer than %dms, quarantining %s", job.getMaxDuration(), worker.getName()));
+            
+            boolean noWorkers;
+            synchronized (this) {
+                _numTimeouts += 1;
+                _numQuarantined += 1;
+                
+                // The worker might have already exited, if it finished right after we
+                // quarantined it.
+                if (_workers.remove(worker)) {
+                    _numHung += 1;
+                }
+                
+                fillPool();
+                noWorkers = _workers.isEmpty();
+            }
+            
+            job.fail(new TimeoutException("Parse took longer than " + job.getMaxDuration() + "ms"));
+            
+            if (noWorkers) {
+                LOGGER.error(String.format("No parse workers left, with %d hung threads", getNumHung()));
+                rejectQueuedJobs("All parse worker threads are hung");
+            }
+        }
+    }
+    
+    private void workerExited(Worker worker) {
+        synchronized (this) {
+            if (!_workers.remove(worker) && worker.isQuarantined()) {
+                LOGGER.info("Quarantined parse thread has exited: " + worker.getName());
+                _numHung -= 1;
+            }
+            
+            fillPool();
+        }
+    }
+    
+    /**
+     * Start new workers until we've got the target number, as long as that doesn't
+     * push the number of live threads past our limit. Must be called while holding
+     * our lock.
+     */
+    private void fillPool() {
+        while (!_closed && (_workers.size() < _numWorkers) && (_workers.size() + _numHung < _numWorkers + _maxQuarantined)) {
+            Worker worker = new Worker(_nextWorkerId++);
+            _workers.add(worker);
+            worker.start();
+        }
+    }
+    
+    private void rejectQueuedJobs(String reason) {
+        List<ParseJob<?>> jobs = new ArrayList<ParseJob<?>>();
+        _queue.drainTo(jobs);
+        
+        for (ParseJob<?> job : jobs) {
+            job.fail(new RejectedExecutionException(reason));
+        }
+    }
+}
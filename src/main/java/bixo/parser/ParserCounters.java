@@ -18,5 +18,7 @@ package bixo.parser;
 
 public enum ParserCounters {
     DOCUMENTS_PARSED,   // successfully parsed a document.
-    DOCUMENTS_FAILED    // failed to parse a document
+    DOCUMENTS_FAILED,   // failed to parse a document
+    DOCUMENTS_TIMED_OUT,        // parse took longer than the max parse duration
+    PARSE_THREADS_QUARANTINED   // parse threads that were replaced because they hung
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.InvalidParameterException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.tika.language.LanguageIdentifier;
+import org.apache.tika.language.LanguageProfile;
+import org.apache.tika.language.ProfilingWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Language detection that only profiles a sample of the text. It's a replacement for
+ * Tika's ProfilingHandler, which profiles every character of the document.
+ * 
+ * Text is profiled until we've seen <maxChars> characters, or (checking every so often)
+ * the best matching language is reasonably certain, and our confidence in it is at least
+ * <confidenceThreshold>. After that, any more text is ignored.
+ * 
+ * The confidence is 1 - (distance to best language / distance to second-best language),
+ * so 0.0 means two languages are equally likely, and values close to 1.0 mean the best
+ * language is a much better match than any other.
+ *
+ */
+public class SamplingLanguageDetector extends DefaultHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SamplingLanguageDetector.class);
+
+    public static final int DEFAULT_MAX_CHARS = 8 * 1024;
+    
+    public static final double DEFAULT_CONFIDENCE_THRESHOLD = 0.5;
+    
+    // Same limit as Tika's LanguageIdentifier.isReasonablyCertain()
+    private static final double CERTAINTY_LIMIT = 0.022;
+    
+    // How often (in characters) we check whether we're confident enough to stop.
+    private static final int CHECK_INTERVAL = 2 * 1024;
+    
+    // Same files that LanguageIdentifier uses.
+    private static final String PROPERTIES_FILE = "tika.language.properties";
+    private static final String LANGUAGES_KEY = "languages";
+    private static final String PROFILE_SUFFIX = ".ngp";
+    
+    private static Map<String, LanguageProfile> _profiles;
+    
+    private int _maxChars;
+    private double _confidenceThreshold;
+    
+    private ProfilingWriter _writer;
+    private int _numChars;
+    private int _nextCheck;
+    private boolean _done;
+    
+    // Result of the last time we compared profiles, and how many chars we'd seen then.
+    private String _language;
+    private double _confidence;
+    private int _identifiedChars;
+    
+    public SamplingLanguageDetector() {
+        this(DEFAULT_MAX_CHARS, DEFAULT_CONFIDENCE_THRESHOLD);
+    }
+    
+    /**
+     * @param maxChars max number of characters to profile
+     * @param confidenceThreshold stop profiling once we're this confident (0.0 - 1.0)
+     */
+    public SamplingLanguageDetector(int maxChars, double confidenceThreshold) {
+        if (maxChars <= 0) {
+            throw new InvalidParameterException("maxChars must be > 0: " + maxChars);
+        }
+        
+        if ((confidenceThreshold < 0.0) || (confidenceThreshold > 1.0)) {
+            throw new InvalidParameterException("confidenceThreshold must be between 0.0 and 1.0: " + confidenceThreshold);
+        }
+        
+        _maxChars = maxChars;
+        _confidenceThreshold = confidenceThreshold;
+        reset();
+    }
+    
+    public void reset() {
+        _writer = new ProfilingWriter();
+        _numChars = 0;
+        _nextCheck = CHECK_INTERVAL;
+        _done = false;
+        
+        _language = "";
+        _confidence = 0.0;
+        _identifiedChars = 0;
+    }
+    
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        addText(ch, start, length);
+    }
+    
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        addText(ch, start, length);
+    }
+    
+    public void addText(String text) {
+        int length = Math.min(text.length(), _maxChars - _numChars);
+        if (_done || (length <= 0)) {
+            return;
+        }
+        
+        char[] chars = new char[length];
+        text.getChars(0, length, chars, 0);
+        addText(chars, 0, length);
+    }
+    
+    public void addText(char[] ch, int start, int length) {
+        // Profile up to the next check (or the max), so that long text can stop early.
+        while (!_done && (length > 0)) {
+            int numChars = Math.min(length, Math.min(_nextCheck, _maxChars) - _numChars);
+            _writer.write(ch, start, numChars);
+            _numChars += numChars;
+            start += numChars;
+            length -= numChars;
+            
+            if (_numChars >= _maxChars) {
+                _done = true;
+            } else if (_numChars >= _nextCheck) {
+                _nextCheck += CHECK_INTERVAL;
+                identify();
+                _done = (_language.length() > 0) && (_confidence >= _confidenceThreshold);
+            }
+        }
+    }
+    
+    /**
+     * @return true if we've stopped profiling text
+     */
+    public boolean isDone() {
+        return _done;
+    }
+    
+    /**
+     * @return number of characters that were profiled
+     */
+    public int getNumChars() {
+        return _numChars;
+    }
+    
+    /**
+     * @return two char language code, or empty string if the language isn't reasonably certain
+     */
+    public String getLanguage() {
+        identify();
+        return _language;
+    }
+    
+    /**
+     * @return confidence in the language (0.0 - 1.0), or 0.0 if the language isn't reasonably certain
+     */
+    public double getConfidence() {
+        identify();
+        return _confidence;
+    }
+    
+    private void identify() {
+        if (_identifiedChars == _numChars) {
+            return;
+        }
+        
+        _identifiedChars = _numChars;
+        _language = "";
+        _confidence = 0.0;
+        
+        LanguageProfile profile = _writer.getProfile();
+        String bestLanguage = null;
+        double bestDistance = 1.0;
+        double secondDistance = 1.0;
+        
+        for (Map.Entry<String, LanguageProfile> entry : getProfiles().entrySet()) {
+            double distance = profile.distance(entry.getValue());
+            if (distance < bestDistance) {
+                secondDistance = bestDistance;
+                bestDistance = distance;
+                bestLanguage = entry.getKey();
+            } else if (distance < secondDistance) {
+                secondDistance = distance;
+            }
+        }
+        
+        if ((bestLanguage != null) && (bestDistance < CERTAINTY_LIMIT)) {
+            _language = bestLanguage;
+            _confidence = (secondDistance > 0.0) ? 1.0 - (bestDistance / secondDistance) : 1.0;
+        }
+    }
+    
+    private static synchronized Map<String, LanguageProfile> getProfiles() {
+        if (_profiles == null) {
+            Map<String, LanguageProfile> profiles = new HashMap<String, LanguageProfile>();
+            
+            try {
+                Properties props = new Properties();
+                InputStream is = LanguageIdentifier.class.getResourceAsStream(PROPERTIES_FILE);
+                try {
+                    props.load(is);
+                } finally {
+                    is.close();
+                }
+                
+                for (String language : props.getProperty(LANGUAGES_KEY).split(",")) {
+                    language = language.trim();
+                    if (language.length() > 0) {
+                        profiles.put(language, loadProfile(language));
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error("Can't load language profiles, so languages won't be detected", e);
+            }
+            
+            _profiles = Collections.unmodifiableMap(profiles);
+        }
+        
+        return _profiles;
+    }
+    
+    private static LanguageProfile loadProfile(String language) throws IOException {
+        LanguageProfile result = new LanguageProfile();
+        
+        InputStream is = LanguageIdentifier.class.getResourceAsStream(language + PROFILE_SUFFIX);
+        if (is == null) {
+            throw new IOException("Missing language profile: " + language);
+        }
+        
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if ((line.length() > 0) && !line.startsWith("#")) {
+                    int space = line.indexOf(' ');
+                    result.add(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+                }
+            }
+        } finally {
+            is.close();
+        }
+        
+        return result;
+    }
+}
@@ -22,12 +22,13 @@ import java.io.Serializable;
 import java.net.URL;
 import java.util.Locale;
 import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.CompositeParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.html.HtmlMapper;
@@ -62,6 +63,8 @@ public class SimpleParser extends BaseParser {
     protected BaseLinkExtractor _linkExtractor;
     protected ParseContext _parseContext;
     private transient Parser _parser;
+    private transient ParseWorkerPool _workerPool;
+    private transient MimeTypeParserSelector _parserSelector;
     
     public SimpleParser() {
         this(new ParserPolicy());
@@ -145,6 +148,15 @@ public class SimpleParser extends BaseParser {
             _parser = getTikaParser();
         }
         
+        // We can only look up parsers by type if the Tika parser is a composite, e.g. AutoDetectParser.
+        if ((_parserSelector == null) && getParserPolicy().isUseDeclaredMimeType() && (_parser instanceof CompositeParser)) {
+            _parserSelector = new MimeTypeParserSelector((CompositeParser)_parser);
+        }
+        
+        if (_workerPool == null) {
+            _workerPool = new ParseWorkerPool(1, getParserPolicy().getMaxQuarantinedThreads());
+        }
+        
         _contentExtractor.reset();
         _linkExtractor.setLinkTags(getParserPolicy().getLinkTags());
         _linkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
@@ -171,6 +183,30 @@ public class SimpleParser extends BaseParser {
         	LOGGER.trace(String.format("Parsing %s", fetchedDatum.getUrl()));
         }
         
+        ParsedDatum result;
+        Parser declaredParser = getDeclaredParser(fetchedDatum);
+        if (declaredParser == null) {
+            result = parse(fetchedDatum, _parser);
+        } else {
+            try {
+                result = parse(fetchedDatum, declaredParser);
+            } catch (ExecutionException e) {
+                LOGGER.debug("Parsing with declared mime type failed, using auto-detection: " + fetchedDatum.getUrl(), e.getCause());
+                
+                // Get rid of anything the extractors saw during the failed parse.
+                init();
+                result = parse(fetchedDatum, _parser);
+            }
+        }
+        
+        // TODO KKr Should there be a BaseParser to take care of copying
+        // these two fields?
+        result.setHostAddress(fetchedDatum.getHostAddress());
+        result.setPayload(fetchedDatum.getPayload());
+        return result;
+    }
+    
+    private ParsedDatum parse(FetchedDatum fetchedDatum, Parser parser) throws Exception {
         // Provide clues to the parser about the format of the content.
         Metadata metadata = new Metadata();
         metadata.add(Metadata.RESOURCE_NAME_KEY, fetchedDatum.getUrl());
@@ -184,30 +220,57 @@ public class SimpleParser extends BaseParser {
         	URL baseUrl = getContentLocation(fetchedDatum);
         	metadata.add(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
 
-            Callable<ParsedDatum> c = new TikaCallable(_parser, _contentExtractor, _linkExtractor, is, metadata, isExtractLanguage(), _parseContext);
-            FutureTask<ParsedDatum> task = new FutureTask<ParsedDatum>(c);
-            Thread t = new Thread(task);
-            t.start();
+            SamplingLanguageDetector languageDetector = null;
+            if (isExtractLanguage()) {
+                languageDetector = new SamplingLanguageDetector(getParserPolicy().getMaxLanguageSampleChars(), getParserPolicy().getLanguageConfidenceThreshold());
+            }
+            
+            Callable<ParsedDatum> c = new TikaCallable(parser, _contentExtractor, _linkExtractor, is, metadata, languageDetector, _parseContext);
+            Future<ParsedDatum> task = _workerPool.submit(c, getParserPolicy().getMaxParseDuration());
             
-            ParsedDatum result;
             try {
-                result = task.get(getParserPolicy().getMaxParseDuration(), TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                task.cancel(true);
-                t.interrupt();
+                return task.get();
+            } catch (ExecutionException e) {
+                // The pool's watchdog fails parses that take too long.
+                if (e.getCause() instanceof TimeoutException) {
+                    throw (TimeoutException)e.getCause();
+                }
+                
+                throw e;
+            } catch (InterruptedException e) {
+                task.cancel(false);
                 throw e;
-            } finally {
-                t = null;
             }
-            
-            // TODO KKr Should there be a BaseParser to take care of copying
-            // these two fields?
-            result.setHostAddress(fetchedDatum.getHostAddress());
-            result.setPayload(fetchedDatum.getPayload());
-            return result;
         } finally {
             IoUtils.safeClose(is);
         }
     }
 
+    /**
+     * Return the Tika parser for the document's declared mime type, or null if we should
+     * use auto-detection (not enabled, no parser for the type, or the content doesn't
+     * look like the declared type).
+     */
+    private Parser getDeclaredParser(FetchedDatum fetchedDatum) {
+        if (_parserSelector == null) {
+            return null;
+        }
+        
+        InputStream is = new ByteArrayInputStream(fetchedDatum.getContentBytes(), 0, fetchedDatum.getContentLength());
+        return _parserSelector.getParser(fetchedDatum.getContentType(), is);
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (_workerPool != null) {
+            _workerPool.close();
+            _workerPool = null;
+        }
+    }
+    
+    @Override
+    public synchronized long getQuarantinedThreads() {
+        return _workerPool == null ? 0 : _workerPool.getNumQuarantined();
+    }
+
 }
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+
+/**
+ * Parser for HTML documents that does a single pass over the content, without using
+ * Tika's auto-detection, or generating SAX events for every element.
+ * 
+ * It extracts the same title, text, outlinks (using the policy's link tags and attribute
+ * types, and skipping all links if there's a robots meta tag with nofollow) and meta
+ * tags as {@link SimpleParser} with the default content and link extractors. Documents
+ * that aren't declared as HTML are handed off to a {@link SimpleParser}.
+ * 
+ * Parsing is done in the calling thread, since it's linear in the size of the content.
+ *
+ */
+@SuppressWarnings("serial")
+public class StreamingHtmlParser extends BaseParser {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingHtmlParser.class);
+
+    private static final Set<String> HTML_MIME_TYPES = new HashSet<String>(Arrays.asList(
+                    "text/html", "application/xhtml+xml"));
+    
+    private static final String XHTML_MIME_TYPE = "application/xhtml+xml";
+    private static final String HTML_MIME_TYPE = "text/html";
+    
+    // Charset to use if we don't have one from the headers or the content, and it's not valid UTF-8.
+    private static final String DEFAULT_CHARSET = "windows-1252";
+
+    // How far into the content we look for a <meta> tag with the charset.
+    private static final int MAX_CHARSET_SNIFF_LENGTH = 8 * 1024;
+    
+    private static final Pattern META_CHARSET_PATTERN = Pattern.compile("charset\\s*=\\s*[\"']?([a-z0-9_\\-:.]+)", Pattern.CASE_INSENSITIVE);
+    
+    private static final String CONTENT_TYPE_HINT = "Content-Type-Hint";
+    
+    // Elements that can't have content, so they end as soon as they start.
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+                    "area", "base", "basefont", "bgsound", "br", "col", "embed", "frame", "hr",
+                    "img", "input", "isindex", "keygen", "link", "meta", "param", "source", "track", "wbr"));
+    
+    // Elements whose content is never part of the text. Tika discards these, too.
+    private static final Set<String> DISCARDED_ELEMENTS = new HashSet<String>(Arrays.asList(
+                    "script", "style"));
+
+    // Elements that can be in the <head>. Any other element starts the body.
+    private static final Set<String> HEAD_ELEMENTS = new HashSet<String>(Arrays.asList(
+                    "html", "head", "title", "base", "link", "meta", "script", "style", "noscript", "object"));
+    
+    // Elements that Tika follows with a newline (or a tab, for cells), so that text from
+    // different blocks doesn't run together.
+    private static final Set<String> BLOCK_ELEMENTS = new HashSet<String>(Arrays.asList(
+                    "p", "h1", "h2", "h3", "h4", "h5", "h6", "div", "ul", "ol", "dl", "pre", "hr",
+                    "blockquote", "address", "fieldset", "table", "form", "noscript", "li", "dt", "dd",
+                    "noframes", "br", "tr", "select", "option"));
+    
+    private static final Set<String> CELL_ELEMENTS = new HashSet<String>(Arrays.asList(
+                    "td", "th"));
+
+    // Attributes with URLs that get resolved against the base URL.
+    private static final Set<String> URL_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+                    "href", "src", "data", "cite", "longdesc"));
+
+    // URLs with these prefixes aren't resolved against the base URL.
+    private static final String[] UNRESOLVED_URL_PREFIXES = {
+        "urn:", "mailto:", "tel:", "data:", "javascript:", "about:"
+    };
+    
+    /**
+     * State for scanning one document.
+     */
+    private static class HtmlScanner {
+        private final String _html;
+        private final int _length;
+        private final Metadata _metadata;
+        private final Set<String> _linkTags;
+        private final Set<String> _linkAttributeTypes;
+        
+        private URL _baseUrl;
+        private boolean _inHead;
+        private String _title;
+        private StringBuilder _content = new StringBuilder();
+        
+        // Current tag's attributes, with lower-cased names.
+        private Map<String, String> _attributes = new HashMap<String, String>();
+        private boolean _selfClosing;
+        
+        // Same link state as BaseLinkExtractor
+        private String _inAnchorTag;
+        private String _curUrl;
+        private String _curRelAttributes;
+        private StringBuilder _curAnchor = new StringBuilder();
+        private boolean _skipLinks;
+        private List<Outlink> _outlinks = new ArrayList<Outlink>();
+        
+        public HtmlScanner(String html, URL baseUrl, Metadata metadata, Set<String> linkTags, Set<String> linkAttributeTypes) {
+            _html = html;
+            _length = html.length();
+            _baseUrl = baseUrl;
+            _metadata = metadata;
+            _linkTags = linkTags;
+            _linkAttributeTypes = linkAttributeTypes;
+        }
+        
+        public void scan() {
+            int pos = 0;
+            
+            // Skip the byte order mark, if any.
+            if ((_length > 0) && (_html.charAt(0) == '\uFEFF')) {
+                pos = 1;
+            }
+            
+            while (pos < _length) {
+                int tagStart = _html.indexOf('<', pos);
+                if (tagStart == -1) {
+                    handleText(pos, _length);
+                    break;
+                }
+                
+                if (tagStart > pos) {
+                    handleText(pos, tagStart);
+                }
+                
+                pos = handleTag(tagStart);
+            }
+            
+            // Anything still open gets closed at the end of the document.
+            if (_inAnchorTag != null) {
+                addLink();
+            }
+        }
+        
+        public String getTitle() {
+            return _title;
+        }
+        
+        public String getContent() {
+            // Tika puts the title (from the <head>) before all of the body text.
+            if (_title == null) {
+                return _content.toString();
+            } else {
+                return _title + ' ' + _content;
+            }
+        }
+        
+        public Outlink[] getLinks() {
+            if (_skipLinks) {
+                return new Outlink[0];
+            } else {
+                return _outlinks.toArray(new Outlink[_outlinks.size()]);
+            }
+        }
+        
+        /**
+         * Handle the markup starting at <tagStart>, which is a '<'
+         * 
+         * @param tagStart
+         * @return position after the markup
+         */
+        private int handleTag(int tagStart) {
+            if (tagStart + 1 >= _length) {
+                handleText(tagStart, _length);
+                return _length;
+            }
+            
+            char c = _html.charAt(tagStart + 1);
+            if (c == '!') {
+                if (_html.startsWith("<!--", tagStart)) {
+                    int commentEnd = _html.indexOf("-->", tagStart + 4);
+                    return (commentEnd == -1) ? _length : commentEnd + 3;
+                }
+                
+                // <!DOCTYPE ...>, <![CDATA[...]]> and other declarations
+                return skipPast('>', tagStart);
+            } else if (c == '?') {
+                return skipPast('>', tagStart);
+            } else if (c == '/') {
+                int nameEnd = scanName(tagStart + 2);
+                if (nameEnd > tagStart + 2) {
+                    handleEndTag(_html.substring(tagStart + 2, nameEnd).toLowerCase(Locale.ENGLISH));
+                }
+                
+                return skipPast('>', nameEnd);
+            } else if (Character.isLetter(c)) {
+                int nameEnd = scanName(tagStart + 1);
+                String name = _html.substring(tagStart + 1, nameEnd).toLowerCase(Locale.ENGLISH);
+                int pos = parseAttributes(nameEnd);
+                return handleStartTag(name, pos);
+            } else {
+                // Just a '<' in the text.
+                handleText(tagStart, tagStart + 1);
+                return tagStart + 1;
+            }
+        }
+        
+        private int handleStartTag(String name, int pos) {
+            if (DISCARDED_ELEMENTS.contains(name)) {
+                return _selfClosing ? pos : skipElementContent(name, pos);
+            }
+            
+            if (_inHead && !HEAD_ELEMENTS.contains(name)) {
+                _inHead = false;
+            }
+            
+            if (name.equals("title") && !_selfClosing) {
+                int contentEnd = findEndTag(name, pos);
+                if (_title == null) {
+                    _title = decodeEntities(_html.substring(pos, contentEnd)).trim();
+                    _metadata.set(TikaCoreProperties.TITLE, _title);
+                }
+                
+                return skipPast('>', contentEnd);
+            }
+            
+            if (name.equals("head")) {
+                _inHead = true;
+            } else if (name.equals("body")) {
+                _inHead = false;
+            } else if (name.equals("meta")) {
+                handleMeta();
+            } else if (name.equals("base")) {
+                String href = _attributes.get("href");
+                if (href != null) {
+                    _baseUrl = makeUrl(resolve(href));
+                    _metadata.set(Metadata.CONTENT_LOCATION, _baseUrl.toExternalForm());
+                }
+            }
+            
+            // An <a> can't contain another <a>, so a new one ends the current one.
+            if (name.equals(_inAnchorTag) && name.equals("a")) {
+                addLink();
+            }
+            
+            if ((_inAnchorTag == null) && _linkTags.contains(name)) {
+                for (String linkAttributeType : _linkAttributeTypes) {
+                    String attrValue = _attributes.get(linkAttributeType);
+                    if (attrValue != null) {
+                        _curUrl = URL_ATTRIBUTES.contains(linkAttributeType) ? resolve(attrValue) : attrValue;
+                        _curRelAttributes = _attributes.get("rel");
+                        _inAnchorTag = name;
+                        _curAnchor.setLength(0);
+                    }
+                }
+            }
+            
+            if (_selfClosing || VOID_ELEMENTS.contains(name)) {
+                handleEndTag(name);
+            }
+            
+            return pos;
+        }
+        
+        private void handleEndTag(String name) {
+            if (name.equals("head")) {
+                _inHead = false;
+            } else if (!_inHead) {
+                if (BLOCK_ELEMENTS.contains(name)) {
+                    _content.append('\n');
+                } else if (CELL_ELEMENTS.contains(name)) {
+                    _content.append('\t');
+                }
+            }
+            
+            if (name.equals(_inAnchorTag)) {
+                addLink();
+            }
+        }
+        
+        private void handleText(int start, int end) {
+            if (_inHead) {
+                // Text in the <head> is ignored, unless it's more than whitespace, which starts the body.
+                if (isWhitespace(start, end)) {
+                    return;
+                }
+                
+                _inHead = false;
+            }
+            
+            if (hasEntity(start, end)) {
+                String text = decodeEntities(_html.substring(start, end));
+                _content.append(text);
+                if (_inAnchorTag != null) {
+                    _curAnchor.append(text);
+                }
+            } else {
+                _content.append(_html, start, end);
+                if (_inAnchorTag != null) {
+                    _curAnchor.append(_html, start, end);
+                }
+            }
+        }
+        
+        private void handleMeta() {
+            String content = _attributes.get("content");
+            String httpEquiv = _attributes.get("http-equiv");
+            String name = _attributes.get("name");
+            
+            // Same as Tika's HtmlHandler
+            if (httpEquiv != null) {
+                addHtmlMetadata(httpEquiv, content);
+            } else if (name != null) {
+                addHtmlMetadata(name, content);
+            } else if ((_attributes.get("property") != null) && (content != null)) {
+                _metadata.add(_attributes.get("property"), content);
+            }
+            
+            // See if we have a robots directive, same as SimpleLinkExtractor
+            if ((name != null) && name.equalsIgnoreCase("robots") && (content != null)) {
+                String[] directives = content.split(",");
+                for (String directive : directives) {
+                    directive = directive.trim().toLowerCase();
+                    if (directive.equals("none") || directive.equals("nofollow")) {
+                        _skipLinks = true;
+                        break;
+                    }
+                }
+            }
+        }
+        
+        private void addHtmlMetadata(String name, String value) {
+            if ((name == null) || (value == null)) {
+                return;
+            }
+            
+            // Don't overwrite the real content type.
+            if (name.equalsIgnoreCase(Metadata.CONTENT_TYPE)) {
+                _metadata.set(CONTENT_TYPE_HINT, value);
+            } else {
+                _metadata.add(name, value);
+            }
+        }
+        
+        private void addLink() {
+            _outlinks.add(new Outlink(_curUrl, _curAnchor.toString(), _curRelAttributes));
+            _inAnchorTag = null;
+        }
+        
+        private String resolve(String url) {
+            String lowerUrl = url.toLowerCase(Locale.ENGLISH);
+            for (String prefix : UNRESOLVED_URL_PREFIXES) {
+                if (lowerUrl.startsWith(prefix)) {
+                    return url;
+                }
+            }
+            
+            try {
+                String trimmedUrl = url.trim();
+                
+                // java.net.URL replaces the last path segment for query-only URLs.
+                if (trimmedUrl.startsWith("?")) {
+                    String base = _baseUrl.toExternalForm();
+                    int queryStart = base.indexOf('?');
+                    int fragmentStart = base.indexOf('#');
+                    int baseEnd = (queryStart != -1) ? queryStart : ((fragmentStart != -1) ? fragmentStart : base.length());
+                    return base.substring(0, baseEnd) + trimmedUrl;
+                }
+                
+                return new URL(_baseUrl, trimmedUrl).toExternalForm();
+            } catch (MalformedURLException e) {
+                return url;
+            }
+        }
+        
+        private URL makeUrl(String url) {
+            try {
+                return new URL(url);
+            } catch (MalformedURLException e) {
+                return _baseUrl;
+            }
+        }
+        
+        /**
+         * Parse attributes of a start tag, starting at <pos>, into _attributes.
+         * 
+         * @param pos position after the tag name
+         * @return position after the end of the tag
+         */
+        private int parseAttributes(int pos) {
+            _attributes.clear();
+            _selfClosing = false;
+            
+            while (pos < _length) {
+                char c = _html.charAt(pos);
+                if (c == '>') {
+                    return pos + 1;
+                } else if (c == '/') {
+                    if ((pos + 1 < _length) && (_html.charAt(pos + 1) == '>')) {
+                        _selfClosing = true;
+                        return pos + 2;
+                    }
+                    
+                    pos += 1;
+                    continue;
+                } else if (Character.isWhitespace(c)) {
+                    pos += 1;
+                    continue;
+                }
+                
+                int nameStart = pos;
+                pos += 1;
+                while ((pos < _length) && !isAttributeNameEnd(_html.charAt(pos))) {
+                    pos += 1;
+                }
+                
+                String attrName = _html.substring(nameStart, pos).toLowerCase(Locale.ENGLISH);
+                pos = skipWhitespace(pos);
+                
+                String attrValue = "";
+                if ((pos < _length) && (_html.charAt(pos) == '=')) {
+                    pos = skipWhitespace(pos + 1);
+                    if (pos < _length) {
+                        char quote = _html.charAt(pos);
+                        if ((quote == '"') || (quote == '\'')) {
+                            int valueEnd = _html.indexOf(quote, pos + 1);
+                            if (valueEnd == -1) {
+                                valueEnd = _length;
+                            }
+                            
+                            attrValue = _html.substring(pos + 1, valueEnd);
+                            pos = Math.min(valueEnd + 1, _length);
+                        } else {
+                            int valueStart = pos;
+                            while ((pos < _length) && (_html.charAt(pos) != '>') && !Character.isWhitespace(_html.charAt(pos))) {
+                                pos += 1;
+                            }
+                            
+                            attrValue = _html.substring(valueStart, pos);
+                        }
+                    }
+                }
+                
+                // If an attribute is repeated, the first one wins.
+                if (!_attributes.containsKey(attrName)) {
+                    _attributes.put(attrName, decodeEntities(attrValue));
+                }
+            }
+            
+            return _length;
+        }
+        
+        private boolean isAttributeNameEnd(char c) {
+            return (c == '=') || (c == '>') || (c == '/') || Character.isWhitespace(c);
+        }
+        
+        private int scanName(int pos) {
+            while ((pos < _length) && !isAttributeNameEnd(_html.charAt(pos))) {
+                pos += 1;
+            }
+            
+            return pos;
+        }
+        
+        private int skipWhitespace(int pos) {
+            while ((pos < _length) && Character.isWhitespace(_html.charAt(pos))) {
+                pos += 1;
+            }
+            
+            return pos;
+        }
+        
+        private int skipPast(char c, int pos) {
+            int index = _html.indexOf(c, pos);
+            return (index == -1) ? _length : index + 1;
+        }
+        
+        /**
+         * Skip the content of a <script> or <style> element, which can contain '<'
+         * 
+         * @return position after the element's end tag
+         */
+        private int skipElementContent(String name, int pos) {
+            return skipPast('>', findEndTag(name, pos));
+        }
+        
+        /**
+         * Find the end tag for <name>, which must be lower-case.
+         * 
+         * @return position of the end tag, or the end of the document
+         */
+        private int findEndTag(String name, int pos) {
+            int nameLength = name.length();
+            while (true) {
+                int index = _html.indexOf("</", pos);
+                if (index == -1) {
+                    return _length;
+                }
+                
+                if (_html.regionMatches(true, index + 2, name, 0, nameLength)) {
+                    int nameEnd = index + 2 + nameLength;
+                    if ((nameEnd == _length) || isAttributeNameEnd(_html.charAt(nameEnd))) {
+                        return index;
+                    }
+                }
+                
+                pos = index + 2;
+            }
+        }
+        
+        private boolean isWhitespace(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (!Character.isWhitespace(_html.charAt(i))) {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        private boolean hasEntity(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (_html.charAt(i) == '&') {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        private static String decodeEntities(String text) {
+            return (text.indexOf('&') == -1) ? text : StringEscapeUtils.unescapeHtml(text);
+        }
+    }
+    
+    private boolean _extractLanguage = true;
+    private transient SimpleParser _fallbackParser;
+    
+    public StreamingHtmlParser() {
+        this(new ParserPolicy());
+    }
+    
+    public StreamingHtmlParser(ParserPolicy parserPolicy) {
+        super(parserPolicy);
+    }
+    
+    public void setExtractLanguage(boolean extractLanguage) {
+        _extractLanguage = extractLanguage;
+    }
+    
+    public boolean isExtractLanguage() {
+        return _extractLanguage;
+    }
+    
+    @Override
+    public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+        String mimeType = getMimeType(fetchedDatum);
+        if (!HTML_MIME_TYPES.contains(mimeType)) {
+            return getFallbackParser().parse(fetchedDatum);
+        }
+        
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(String.format("Parsing %s", fetchedDatum.getUrl()));
+        }
+        
+        // Same starting metadata as SimpleParser
+        Metadata metadata = new Metadata();
+        metadata.add(Metadata.RESOURCE_NAME_KEY, fetchedDatum.getUrl());
+        metadata.add(Metadata.CONTENT_TYPE, fetchedDatum.getContentType());
+        String charset = getCharset(fetchedDatum);
+        metadata.add(Metadata.CONTENT_LANGUAGE, getLanguage(fetchedDatum, charset));
+        
+        URL baseUrl = getContentLocation(fetchedDatum);
+        metadata.add(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
+        
+        Charset contentCharset = detectCharset(fetchedDatum, charset);
+        String html = new String(fetchedDatum.getContentBytes(), 0, fetchedDatum.getContentLength(), contentCharset);
+        
+        // Tika's HtmlParser replaces the content type with the one it used.
+        String contentType = mimeType.equals(XHTML_MIME_TYPE) ? XHTML_MIME_TYPE : HTML_MIME_TYPE;
+        metadata.set(Metadata.CONTENT_TYPE, contentType + "; charset=" + contentCharset.name());
+        metadata.set(Metadata.CONTENT_ENCODING, contentCharset.name());
+        
+        HtmlScanner scanner = new HtmlScanner(html, baseUrl, metadata, getParserPolicy().getLinkTags(), getParserPolicy().getLinkAttributeTypes());
+        scanner.scan();
+        
+        String content = scanner.getContent();
+        ParsedDatum result = new ParsedDatum(fetchedDatum.getUrl(), null, content, "", scanner.getTitle(),
+                        scanner.getLinks(), TikaCallable.makeMap(metadata));
+        
+        if (_extractLanguage) {
+            SamplingLanguageDetector languageDetector = new SamplingLanguageDetector(getParserPolicy().getMaxLanguageSampleChars(), getParserPolicy().getLanguageConfidenceThreshold());
+            languageDetector.addText(content);
+            TikaCallable.detectLanguage(result, metadata, languageDetector);
+        }
+        
+        result.setHostAddress(fetchedDatum.getHostAddress());
+        result.setPayload(fetchedDatum.getPayload());
+        return result;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (_fallbackParser != null) {
+            _fallbackParser.close();
+            _fallbackParser = null;
+        }
+    }
+    
+    @Override
+    public synchronized long getQuarantinedThreads() {
+        return _fallbackParser == null ? 0 : _fallbackParser.getQuarantinedThreads();
+    }
+    
+    private synchronized SimpleParser getFallbackParser() {
+        if (_fallbackParser == null) {
+            _fallbackParser = new SimpleParser(getParserPolicy());
+            _fallbackParser.setExtractLanguage(_extractLanguage);
+        }
+        
+        return _fallbackParser;
+    }
+    
+    private static String getMimeType(FetchedDatum fetchedDatum) {
+        String contentType = fetchedDatum.getContentType();
+        if (contentType == null) {
+            return "";
+        }
+        
+        int paramsStart = contentType.indexOf(';');
+        if (paramsStart != -1) {
+            contentType = contentType.substring(0, paramsStart);
+        }
+        
+        return contentType.trim().toLowerCase(Locale.ENGLISH);
+    }
+    
+    /**
+     * Figure out the charset, using (in order) the response headers, a byte order mark, or
+     * a <meta> tag. If none of these are found, use UTF-8 if the content is valid UTF-8,
+     * otherwise our default charset.
+     */
+    private static Charset detectCharset(FetchedDatum fetchedDatum, String headerCharset) {
+        if (headerCharset != null) {
+            return Charset.forName(headerCharset);
+        }
+        
+        byte[] bytes = fetchedDatum.getContentBytes();
+        int length = fetchedDatum.getContentLength();
+        if ((length >= 3) && (bytes[0] == (byte)0xEF) && (bytes[1] == (byte)0xBB) && (bytes[2] == (byte)0xBF)) {
+            return Charset.forName("UTF-8");
+        } else if ((length >= 2) && (bytes[0] == (byte)0xFE) && (bytes[1] == (byte)0xFF)) {
+            return Charset.forName("UTF-16BE");
+        } else if ((length >= 2) && (bytes[0] == (byte)0xFF) && (bytes[1] == (byte)0xFE)) {
+            return Charset.forName("UTF-16LE");
+        }
+        
+        // <meta> tags with charsets only use ASCII, so we can look at the raw bytes.
+        String head = new String(bytes, 0, Math.min(length, MAX_CHARSET_SNIFF_LENGTH), Charset.forName("ISO-8859-1"));
+        Matcher m = META_CHARSET_PATTERN.matcher(head);
+        if (m.find()) {
+            try {
+                return Charset.forName(m.group(1));
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug("Invalid charset in content: " + m.group(1));
+            }
+        }
+        
+        return isUtf8(bytes, length) ? Charset.forName("UTF-8") : Charset.forName(DEFAULT_CHARSET);
+    }
+    
+    private static boolean isUtf8(byte[] bytes, int length) {
+        try {
+            Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(bytes, 0, length));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
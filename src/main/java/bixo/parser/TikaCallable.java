@@ -24,8 +24,6 @@ import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.tika.language.LanguageIdentifier;
-import org.apache.tika.language.ProfilingHandler;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
@@ -82,7 +80,7 @@ class TikaCallable implements Callable<ParsedDatum> {
     private BaseLinkExtractor _linkExtractor;
     private InputStream _input;
     private Metadata _metadata;
-    private boolean _extractLanguage;
+    private SamplingLanguageDetector _languageDetector;
     private ParseContext _parseContext;
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata) {
@@ -95,12 +93,19 @@ class TikaCallable implements Callable<ParsedDatum> {
     }
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, boolean extractLanguage, ParseContext parseContext) {
+        this(parser, contentExtractor, linkExtractor, input, metadata, extractLanguage ? new SamplingLanguageDetector() : null, parseContext);
+    }
+    
+    /**
+     * @param languageDetector detector to use for the document's language, or null to skip language detection
+     */
+    public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, SamplingLanguageDetector languageDetector, ParseContext parseContext) {
         _parser = parser;
         _contentExtractor = contentExtractor;
         _linkExtractor = linkExtractor;
         _input = input;
         _metadata = metadata;
-        _extractLanguage = extractLanguage;
+        _languageDetector = languageDetector;
         _parseContext = parseContext;
     }
     
@@ -108,11 +113,9 @@ class TikaCallable implements Callable<ParsedDatum> {
     public ParsedDatum call() throws Exception {
         try {
             TeeContentHandler teeContentHandler;
-            ProfilingHandler profilingHandler = null;
             
-            if (_extractLanguage) {
-                profilingHandler = new ProfilingHandler();
-                teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor, profilingHandler);
+            if (_languageDetector != null) {
+                teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor, _languageDetector);
             } else {
                 teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor);
             }
@@ -122,10 +125,15 @@ class TikaCallable implements Callable<ParsedDatum> {
             }
             _parser.parse(_input, teeContentHandler, _metadata, _parseContext);
             
-            String lang = _extractLanguage ? detectLanguage(_metadata, profilingHandler) : "";
-            return new ParsedDatum(_metadata.get(Metadata.RESOURCE_NAME_KEY), null, _contentExtractor.getContent(), lang,
+            ParsedDatum result = new ParsedDatum(_metadata.get(Metadata.RESOURCE_NAME_KEY), null, _contentExtractor.getContent(), "",
                             _metadata.get(Metadata.TITLE),
                             _linkExtractor.getLinks(), makeMap(_metadata));
+            
+            if (_languageDetector != null) {
+                detectLanguage(result, _metadata, _languageDetector);
+            }
+            
+            return result;
         } catch (Exception e) {
             // Generic exception that's OK to re-throw
             throw e;
@@ -159,14 +167,36 @@ class TikaCallable implements Callable<ParsedDatum> {
     }
 
     /**
-     * See if a language was set by the parser, from meta tags.
-     * As a last resort falls back to the result from the ProfilingHandler.
+     * Set the language of <result>, using what was set by the parser (from meta tags),
+     * or the response headers. As a last resort falls back to the result from the
+     * language detector. If no language was detected, it's set to the empty string.
      *  
+     * @param result
      * @param metadata
-     * @param profilingHandler
-     * @return The first language found (two char lang code) or empty string if no language was detected.
+     * @param languageDetector
      */
-    private static String detectLanguage(Metadata metadata, ProfilingHandler profilingHandler) {
+    static void detectLanguage(ParsedDatum result, Metadata metadata, SamplingLanguageDetector languageDetector) {
+        String lang = getMetadataLanguage(metadata);
+        
+        if (lang == null) {
+            // Language is still unspecified, so use the detector's result
+            lang = languageDetector.getLanguage();
+            result.setLanguageConfidence(languageDetector.getConfidence());
+            LOGGER.trace("Using language specified by language detector: " + lang);
+        } else {
+            result.setLanguageConfidence(lang.length() > 0 ? 1.0 : 0.0);
+        }
+        
+        result.setLanguage(lang);
+    }
+
+    /**
+     * See if a language was set by the parser, from meta tags, or from the HTTP response headers.
+     * 
+     * @param metadata
+     * @return The first language found (two char lang code), or null if no language was specified.
+     */
+    static String getMetadataLanguage(Metadata metadata) {
         String result = null;
         
         String dubCoreLang = metadata.get(Metadata.LANGUAGE);
@@ -178,25 +208,10 @@ class TikaCallable implements Callable<ParsedDatum> {
             result = httpEquivLang;
         }
         
-        result = getFirstLanguage(result);
-        
-        if (result == null) {
-            // Language is still unspecified, so use ProfileHandler's result
-            LanguageIdentifier langIdentifier = profilingHandler.getLanguage();
-            // FUTURE KKr - provide config for specifying required certainty level.
-            if (langIdentifier.isReasonablyCertain()) {
-                result = langIdentifier.getLanguage();
-                LOGGER.trace("Using language specified by profiling handler: " + result);
-            } else {
-                result = "";
-            }
-
-        }
-        
-        return result;
+        return getFirstLanguage(result);
     }
-
-    private static Map<String, String> makeMap(Metadata metadata) {
+    
+    static Map<String, String> makeMap(Metadata metadata) {
         Map<String, String> result = new HashMap<String, String>();
         
         for (String key : metadata.names()) {
@@ -41,6 +41,7 @@ import bixo.operations.FilterAndScoreByUrlAndRobots;
 import bixo.operations.GroupFunction;
 import bixo.operations.MakeFetchSetsBuffer;
 import bixo.utils.GroupingKey;
+import bixo.utils.RobotRulesCache;
 import bixo.utils.UrlUtils;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
@@ -170,6 +171,10 @@ public class FetchPipe extends SubAssembly {
                 UrlStatus urlStatus = UrlStatus.valueOf((String)result);
                 if (urlStatus == UrlStatus.FETCHED) {
                     status = new StatusDatum(fd.getUrl(), fd.getHeaders(), fd.getHostAddress(), fd.getPayload());
+                } else if (urlStatus == UrlStatus.UNMODIFIED) {
+                    // Keep the headers, so the caller can pick up any new ETag, etc. There's no
+                    // content, and FilterErrorsFunction won't emit a content tuple for it.
+                    status = new StatusDatum(fd.getUrl(), urlStatus, fd.getHeaders(), null, System.currentTimeMillis(), fd.getHostAddress(), fd.getPayload());
                 } else {
                     status = new StatusDatum(fd.getUrl(), urlStatus, fd.getPayload());
                 }
@@ -225,18 +230,41 @@ public class FetchPipe extends SubAssembly {
         this(   urlProvider,
                 scorer,
                 fetcher, 
-                SimpleHttpFetcher.createRobotsFetcher(fetcher.getUserAgent(), fetcher.getMaxThreads()),
+                makeRobotsFetcher(fetcher),
                 new SimpleRobotRulesParser(),
                 new DefaultFetchJobPolicy(fetcher.getFetcherPolicy()),
                 numReducers);
     }
     
+    private static BaseFetcher makeRobotsFetcher(BaseFetcher fetcher) {
+        BaseFetcher robotsFetcher = SimpleHttpFetcher.createRobotsFetcher(fetcher.getUserAgent(), fetcher.getMaxThreads());
+        robotsFetcher.getFetcherPolicy().setUseVirtualThreads(fetcher.getFetcherPolicy().isUseVirtualThreads());
+        
+        // Use the same resolver, so a caching resolver is shared by the robots and page fetches.
+        robotsFetcher.setHostResolver(fetcher.getHostResolver());
+        return robotsFetcher;
+    }
+    
     public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
                     BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, fetchJobPolicy, numReducers, null);
+    }
+    
+    /**
+     * Same as above, but with a cache of robots rules that's used to avoid re-fetching
+     * robots.txt files (e.g. from one crawl loop to the next).
+     * 
+     * @param robotsCache cache of robots rules, or null to always fetch robots.txt
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    BaseFetchJobPolicy fetchJobPolicy, int numReducers, RobotRulesCache robotsCache) {
         super(urlProvider);
         Pipe robotsPipe = new Each(urlProvider, new GroupFunction(new GroupByDomain()));
         robotsPipe = new GroupBy("Grouping URLs by IP/delay", robotsPipe, GroupedUrlDatum.getGroupingField());
-        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer), Fields.RESULTS);
+        
+        FilterAndScoreByUrlAndRobots robotsOp = new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer);
+        robotsOp.setRobotRulesCache(robotsCache);
+        robotsPipe = new Every(robotsPipe, robotsOp, Fields.RESULTS);
         
         // Split into records for URLs that are special (not fetchable) and regular
         SplitterAssembly splitter = new SplitterAssembly(robotsPipe, new SplitIntoSpecialAndRegularKeys());
@@ -17,6 +17,16 @@
 package bixo.pipes;
 
 
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.SerializationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +45,8 @@ import cascading.pipe.Each;
 import cascading.pipe.Pipe;
 import cascading.pipe.SubAssembly;
 import cascading.tuple.Fields;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 import com.scaleunlimited.cascading.LoggingFlowProcess;
 import com.scaleunlimited.cascading.LoggingFlowReporter;
@@ -47,14 +59,118 @@ public class ParsePipe extends SubAssembly {
     
     public static final String PARSE_PIPE_NAME = "parse_pipe";
 
+    // Max number of documents per parse thread that can be waiting to be parsed, or
+    // parsed but not yet emitted, when parsing with multiple threads.
+    private static final int MAX_IN_FLIGHT_PER_THREAD = 4;
+    
+    /**
+     * A document to parse, or the result of parsing it. The sequence number is the
+     * order that the document was received by ParseFunction.
+     */
+    private static class ParseJob {
+        private final long _sequence;
+        private final FetchedDatum _fetchedDatum;
+        
+        private ParsedDatum _parsedDatum;
+        private Exception _exception;
+        
+        // Set if parsing threw something other than an Exception (e.g. an Error),
+        // which we have to rethrow in the Cascading thread.
+        private Throwable _fatal;
+        
+        public ParseJob(long sequence, FetchedDatum fetchedDatum) {
+            _sequence = sequence;
+            _fetchedDatum = fetchedDatum;
+        }
+    }
+    
+    private static class ParseJobComparator implements Comparator<ParseJob> {
+
+        @Override
+        public int compare(ParseJob o1, ParseJob o2) {
+            if (o1._sequence < o2._sequence) {
+                return -1;
+            } else if (o1._sequence > o2._sequence) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+    
+    /**
+     * Thread that parses documents with its own parser, and queues up the results.
+     */
+    private static class ParseWorker extends Thread {
+        
+        private BaseParser _parser;
+        private BlockingQueue<ParseJob> _input;
+        private BlockingQueue<ParseJob> _output;
+        
+        public ParseWorker(int id, BaseParser parser, BlockingQueue<ParseJob> input, BlockingQueue<ParseJob> output) {
+            super("ParsePipe worker " + id);
+            setDaemon(true);
+            
+            _parser = parser;
+            _input = input;
+            _output = output;
+        }
+        
+        public BaseParser getParser() {
+            return _parser;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ParseJob job = _input.take();
+                    if (job._fetchedDatum == null) {
+                        // We're all done.
+                        break;
+                    }
+                    
+                    try {
+                        job._parsedDatum = _parser.parse(job._fetchedDatum);
+                    } catch (Exception e) {
+                        job._exception = e;
+                    } catch (Throwable t) {
+                        // Don't die silently, or the Cascading thread would wait forever
+                        // for this result. We're done, since the task is going to fail.
+                        job._fatal = t;
+                        _output.add(job);
+                        break;
+                    }
+                    
+                    _output.add(job);
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("ParsePipe worker interrupted");
+            }
+        }
+    }
+    
     private static class ParseFunction extends BaseOperation<NullContext> implements Function<NullContext> {
 
         private transient LoggingFlowProcess _flowProcess;
         private BaseParser _parser;
+        private int _numThreads;
+        private boolean _preserveOrder;
+        
+        // Only used when we're parsing with multiple threads.
+        private transient List<ParseWorker> _workers;
+        private transient BlockingQueue<ParseJob> _input;
+        private transient BlockingQueue<ParseJob> _output;
+        private transient PriorityQueue<ParseJob> _parsed;
+        private transient long _nextSequence;
+        private transient long _nextToEmit;
+        private transient int _numInFlight;
 
-        public ParseFunction(BaseParser parser) {
+        public ParseFunction(BaseParser parser, int numThreads, boolean preserveOrder) {
             super(ParsedDatum.FIELDS);
             _parser = parser;
+            _numThreads = numThreads;
+            _preserveOrder = preserveOrder;
         }
 
         @SuppressWarnings("unchecked")
@@ -64,6 +180,24 @@ public class ParsePipe extends SubAssembly {
             super.prepare(flowProcess, operationCall);
             _flowProcess = new LoggingFlowProcess(flowProcess);
             _flowProcess.addReporter(new LoggingFlowReporter());
+            
+            if (_numThreads > 1) {
+                _input = new LinkedBlockingQueue<ParseJob>();
+                _output = new LinkedBlockingQueue<ParseJob>();
+                _parsed = new PriorityQueue<ParseJob>(_numThreads * MAX_IN_FLIGHT_PER_THREAD, new ParseJobComparator());
+                _nextSequence = 0;
+                _nextToEmit = 0;
+                _numInFlight = 0;
+                
+                // Each worker gets its own copy of the parser, since they aren't thread-safe.
+                _workers = new ArrayList<ParseWorker>(_numThreads);
+                for (int i = 0; i < _numThreads; i++) {
+                    BaseParser parser = (i == 0) ? _parser : (BaseParser)SerializationUtils.clone(_parser);
+                    ParseWorker worker = new ParseWorker(i, parser, _input, _output);
+                    _workers.add(worker);
+                    worker.start();
+                }
+            }
         }
 
         @Override
@@ -74,24 +208,132 @@ public class ParsePipe extends SubAssembly {
         
         @Override
         public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
-            FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
+            if (_workers == null) {
+                FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
+                
+                try {
+                    emit(fetchedDatum, _parser.parse(fetchedDatum), null, functionCall.getOutputCollector());
+                } catch (Exception e) {
+                    emit(fetchedDatum, null, e, functionCall.getOutputCollector());
+                }
+                
+                return;
+            }
+            
+            // Cascading reuses the arguments, so we need our own copy for the worker.
+            FetchedDatum fetchedDatum = new FetchedDatum(new TupleEntry(functionCall.getArguments()));
+            TupleEntryCollector collector = functionCall.getOutputCollector();
             
             try {
-                ParsedDatum parseResult = _parser.parse(fetchedDatum);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
-                functionCall.getOutputCollector().add(BixoPlatform.clone(parseResult.getTuple(), flowProcess));
-            } catch (Exception e) {
-                LOGGER.warn("Error processing " + fetchedDatum.getUrl(), e);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
-                // TODO KKr - don't lose datums for documents that couldn't be parsed
+                // Limit how many documents we're holding on to.
+                while (_numInFlight >= _numThreads * MAX_IN_FLIGHT_PER_THREAD) {
+                    handleParsed(_output.take(), collector);
+                }
+                
+                _input.add(new ParseJob(_nextSequence++, fetchedDatum));
+                _numInFlight += 1;
+                
+                // Emit whatever is ready, without waiting.
+                ParseJob job;
+                while ((job = _output.poll()) != null) {
+                    handleParsed(job, collector);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while waiting for ParsePipe workers", e);
             }
         }
         
+        @SuppressWarnings("unchecked")
+        @Override
+        public void flush(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            if (_workers != null) {
+                TupleEntryCollector collector = ((FunctionCall<NullContext>)operationCall).getOutputCollector();
+                
+                try {
+                    while (_numInFlight > 0) {
+                        handleParsed(_output.take(), collector);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted while waiting for ParsePipe workers", e);
+                }
+            }
+            
+            super.flush(flowProcess, operationCall);
+        }
+        
         @Override
         public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            if (_workers == null) {
+                closeParser(_parser);
+            } else {
+                for (int i = 0; i < _workers.size(); i++) {
+                    _input.add(new ParseJob(-1, null));
+                }
+                
+                for (ParseWorker worker : _workers) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        LOGGER.warn("Interrupted while waiting for ParsePipe workers to finish");
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    
+                    closeParser(worker.getParser());
+                }
+                
+                _workers = null;
+            }
+            
             _flowProcess.dumpCounters();
             super.cleanup(flowProcess, operationCall);
         }
+        
+        /**
+         * Emit the result for <job> if we can, along with any other results that were
+         * waiting for it if we're preserving the input order.
+         */
+        private void handleParsed(ParseJob job, TupleEntryCollector collector) {
+            if (job._fatal instanceof Error) {
+                throw (Error)job._fatal;
+            } else if (job._fatal != null) {
+                throw new RuntimeException("Unexpected throwable from ParsePipe worker", job._fatal);
+            }
+            
+            if (!_preserveOrder) {
+                emit(job._fetchedDatum, job._parsedDatum, job._exception, collector);
+                _numInFlight -= 1;
+                return;
+            }
+            
+            _parsed.add(job);
+            while (!_parsed.isEmpty() && (_parsed.peek()._sequence == _nextToEmit)) {
+                ParseJob nextJob = _parsed.remove();
+                emit(nextJob._fetchedDatum, nextJob._parsedDatum, nextJob._exception, collector);
+                _numInFlight -= 1;
+                _nextToEmit += 1;
+            }
+        }
+        
+        private void emit(FetchedDatum fetchedDatum, ParsedDatum parseResult, Exception exception, TupleEntryCollector collector) {
+            if (parseResult != null) {
+                _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
+                collector.add(BixoPlatform.clone(parseResult.getTuple(), _flowProcess));
+            } else if (exception instanceof TimeoutException) {
+                LOGGER.warn("Timeout processing " + fetchedDatum.getUrl());
+                _flowProcess.increment(ParserCounters.DOCUMENTS_TIMED_OUT, 1);
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+            } else {
+                LOGGER.warn("Error processing " + fetchedDatum.getUrl(), exception);
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+                // TODO KKr - don't lose datums for documents that couldn't be parsed
+            }
+        }
+        
+        private void closeParser(BaseParser parser) {
+            _flowProcess.increment(ParserCounters.PARSE_THREADS_QUARANTINED, parser.getQuarantinedThreads());
+            parser.close();
+        }
     }
 
     public ParsePipe(Pipe fetcherPipe) {
@@ -99,10 +341,28 @@ public class ParsePipe extends SubAssembly {
     }
     
     public ParsePipe(Pipe fetcherPipe, BaseParser parser) {
+        this(fetcherPipe, parser, 1, true);
+    }
+    
+    /**
+     * Create a parse pipe that parses documents using <numThreads> threads, each with its own
+     * copy of <parser>. Parsing is CPU-bound, so this lets one task use multiple cores.
+     * 
+     * @param fetcherPipe pipe with FetchedDatums
+     * @param parser parser to use (copied for each thread)
+     * @param numThreads number of threads to use for parsing
+     * @param preserveOrder true if ParsedDatums should be emitted in the same order as the FetchedDatums
+     */
+    public ParsePipe(Pipe fetcherPipe, BaseParser parser, int numThreads, boolean preserveOrder) {
         super(fetcherPipe);
+        
+        if (numThreads < 1) {
+            throw new InvalidParameterException("numThreads must be > 0: " + numThreads);
+        }
+        
         Pipe parsePipe = new Pipe(PARSE_PIPE_NAME, fetcherPipe);
 
-        ParseFunction parserFunction = new ParseFunction(parser);
+        ParseFunction parserFunction = new ParseFunction(parser, numThreads, preserveOrder);
         parsePipe = new Each(parsePipe, parserFunction, Fields.RESULTS);
         setTails(parsePipe);
     }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * Resolves host names to IP addresses, for both robots processing (via DomainInfo)
+ * and for the fetcher's connections.
+ *
+ * Since this is also an HttpClient DnsResolver, it can be handed directly to the
+ * connection manager.
+ *
+ */
+@SuppressWarnings("serial")
+public abstract class BaseHostResolver implements DnsResolver, Serializable {
+
+    private transient int _numUsers;
+
+    /**
+     * Return the IP addresses for <host>.
+     *
+     * @param host name of host to resolve
+     * @return one or more addresses
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    @Override
+    public abstract InetAddress[] resolve(String host) throws UnknownHostException;
+
+    /**
+     * Start resolving <hosts> in the background, so that later calls to resolve()
+     * don't have to wait. By default this does nothing.
+     *
+     * @param hosts names of hosts to resolve
+     */
+    public void prefetch(Collection<String> hosts) {
+    }
+
+    /**
+     * Register a user of the resolver. One resolver can be shared by several operations
+     * (e.g. robots processing and page fetching, in local mode), so each of them calls
+     * open() before using it, and close() when it's done.
+     */
+    public synchronized void open() {
+        if (_numUsers++ == 0) {
+            onOpen();
+        }
+    }
+
+    /**
+     * Unregister a user of the resolver. When the last user closes the resolver (or if
+     * open() was never called), any resources are released.
+     *
+     * @return true if this was the last user, which should then report the resolver's counts.
+     */
+    public synchronized boolean close() {
+        if ((_numUsers > 0) && (--_numUsers > 0)) {
+            return false;
+        }
+
+        _numUsers = 0;
+        onClose();
+        return true;
+    }
+
+    /**
+     * Called when the first user opens the resolver. By default this does nothing.
+     */
+    protected void onOpen() {
+    }
+
+    /**
+     * Called when the last user closes the resolver, to release any resources (e.g. threads)
+     * and save state if the resolver supports that. By default this does nothing.
+     */
+    protected void onClose() {
+    }
+
+    /**
+     * @return number of resolve() calls (since the first open) that were handled from a cache
+     */
+    public long getCacheHits() {
+        return 0;
+    }
+
+    /**
+     * @return number of resolve() calls (since the first open) that weren't in a cache
+     */
+    public long getCacheMisses() {
+        return 0;
+    }
+
+    /**
+     * @return total time (in milliseconds, since the first open) spent doing DNS lookups
+     */
+    public long getLookupTime() {
+        return 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the elements that a DiskQueue spills to disk.
+ * 
+ * The streams are object streams, so a codec can use writeObject() for anything it
+ * doesn't know how to write more compactly. A codec can't rely on any state from
+ * one element to the next, since the queue periodically resets the output stream.
+ *
+ */
+public abstract class BaseQueueCodec<E> {
+
+    private static class CountingOutputStream extends OutputStream {
+        private long _count = 0;
+        
+        @Override
+        public void write(int b) {
+            _count += 1;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            _count += len;
+        }
+        
+        public long getCount() {
+            return _count;
+        }
+    }
+
+    /**
+     * Write <element> to <out>.
+     * 
+     * @param element element to write (never null)
+     * @param out stream for the run file
+     * @throws IOException
+     */
+    public abstract void write(E element, ObjectOutput out) throws IOException;
+    
+    /**
+     * Read the next element from <in>.
+     * 
+     * @param in stream for the run file
+     * @return element that was written by write()
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public abstract E read(ObjectInput in) throws IOException, ClassNotFoundException;
+    
+    /**
+     * Return the approximate number of bytes that write() would use for <element>. This is
+     * used to limit how much memory a DiskQueue uses. By default we actually write the element
+     * and count the bytes, so codecs should override this if there's a cheaper way.
+     * 
+     * @param element element to size
+     * @return estimated size in bytes
+     */
+    public long estimateSize(E element) {
+        CountingOutputStream counter = new CountingOutputStream();
+        
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(counter);
+            write(element, out);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error - can't write element to counting stream", e);
+        }
+        
+        return counter.getCount();
+    }
+    
+    /**
+     * @param value object to size
+     * @return number of bytes that Java serialization uses for <value>
+     */
+    protected static long getSerializedSize(Object value) {
+        CountingOutputStream counter = new CountingOutputStream();
+        
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(counter);
+            out.writeObject(value);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error - can't write object to counting stream", e);
+        }
+        
+        return counter.getCount();
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolver that keeps a bounded (LRU) cache of results, including failed lookups,
+ * in front of another resolver.
+ *
+ * The JVM doesn't give us the TTL from the DNS response, so entries expire after a
+ * fixed time-to-live, with a separate (typically shorter) time for unknown hosts.
+ *
+ * Concurrent requests for the same host share one lookup, and hosts can be resolved
+ * ahead of time in the background via prefetch(). If a cache file is set, the cache
+ * is loaded from it when first used and saved to it by the last close(), so that unexpired
+ * entries carry over between crawl loops.
+ *
+ */
+@SuppressWarnings("serial")
+public class CachingHostResolver extends BaseHostResolver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingHostResolver.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 30 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000L;
+    public static final int DEFAULT_PREFETCH_THREADS = 10;
+
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String ADDRESS_SEPARATOR = ",";
+
+    private static class CacheEntry {
+        // Null if the host is unknown.
+        private InetAddress[] _addresses;
+        private long _expiration;
+
+        public CacheEntry(InetAddress[] addresses, long expiration) {
+            _addresses = addresses;
+            _expiration = expiration;
+        }
+    }
+
+    private static class LruCache extends LinkedHashMap<String, CacheEntry> {
+        private int _maxEntries;
+
+        public LruCache(int maxEntries) {
+            super(Math.min(maxEntries, 1024), 0.75f, true);
+            _maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > _maxEntries;
+        }
+    }
+
+    private class LookupTask extends FutureTask<CacheEntry> {
+        private String _host;
+
+        public LookupTask(final String host) {
+            super(new Callable<CacheEntry>() {
+
+                @Override
+                public CacheEntry call() throws Exception {
+                    return lookup(host);
+                }
+            });
+
+            _host = host;
+        }
+
+        @Override
+        protected void done() {
+            _lookups.remove(_host, this);
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private AtomicInteger _threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "CachingHostResolver prefetch " + _threadNumber.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    private BaseHostResolver _resolver;
+    private int _maxEntries;
+    private long _ttl;
+    private long _negativeTtl;
+    private int _numPrefetchThreads = DEFAULT_PREFETCH_THREADS;
+    private File _cacheFile;
+
+    private transient volatile LruCache _cache;
+    private transient ConcurrentHashMap<String, LookupTask> _lookups;
+    private transient ExecutorService _prefetchExecutor;
+
+    private transient AtomicLong _hits;
+    private transient AtomicLong _misses;
+    private transient AtomicLong _lookupTime;
+
+    public CachingHostResolver() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    public CachingHostResolver(int maxEntries, long ttl, long negativeTtl) {
+        this(new SimpleHostResolver(), maxEntries, ttl, negativeTtl);
+    }
+
+    /**
+     * @param resolver Resolver to use for actual lookups
+     * @param maxEntries Max number of hosts to keep in the cache
+     * @param ttl Time (in milliseconds) to keep a resolved host
+     * @param negativeTtl Time (in milliseconds) to keep an unknown host
+     */
+    public CachingHostResolver(BaseHostResolver resolver, int maxEntries, long ttl, long negativeTtl) {
+        if (maxEntries < 1) {
+            throw new InvalidParameterException("CachingHostResolver max entries must be at least one");
+        }
+
+        if ((ttl < 0) || (negativeTtl < 0)) {
+            throw new InvalidParameterException("CachingHostResolver TTLs can't be negative");
+        }
+
+        _resolver = resolver;
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+    }
+
+    public File getCacheFile() {
+        return _cacheFile;
+    }
+
+    /**
+     * Set the file used to persist the cache between runs. The cache is loaded from
+     * this file (if it exists) when the resolver is first used, and saved to it when it's closed.
+     *
+     * @param cacheFile file to use, or null to not persist the cache.
+     */
+    public void setCacheFile(File cacheFile) {
+        _cacheFile = cacheFile;
+    }
+
+    public int getNumPrefetchThreads() {
+        return _numPrefetchThreads;
+    }
+
+    public void setNumPrefetchThreads(int numPrefetchThreads) {
+        if (numPrefetchThreads < 1) {
+            throw new InvalidParameterException("CachingHostResolver needs at least one prefetch thread");
+        }
+
+        _numPrefetchThreads = numPrefetchThreads;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        init();
+
+        CacheEntry entry = getCached(host, System.currentTimeMillis());
+        if (entry != null) {
+            _hits.incrementAndGet();
+        } else {
+            _misses.incrementAndGet();
+
+            // If there's already a lookup for this host (e.g. from prefetch), we use its result. Calling
+            // run() handles the case of a prefetch that's still queued, and does nothing otherwise.
+            LookupTask task = new LookupTask(host);
+            LookupTask existing = _lookups.putIfAbsent(host, task);
+            if (existing != null) {
+                task = existing;
+            }
+
+            task.run();
+
+            try {
+                entry = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException("Interrupted while resolving " + host);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Unexpected exception while resolving " + host, e.getCause());
+            }
+        }
+
+        if (entry._addresses == null) {
+            throw new UnknownHostException(host);
+        }
+
+        return entry._addresses.clone();
+    }
+
+    @Override
+    public void prefetch(Collection<String> hosts) {
+        init();
+
+        long now = System.currentTimeMillis();
+        for (String host : hosts) {
+            if ((getCached(host, now) != null) || _lookups.containsKey(host)) {
+                continue;
+            }
+
+            LookupTask task = new LookupTask(host);
+            if (_lookups.putIfAbsent(host, task) == null) {
+                try {
+                    getPrefetchExecutor().execute(task);
+                } catch (RejectedExecutionException e) {
+                    _lookups.remove(host, task);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onOpen() {
+        init();
+
+        // A resolver that's reused after being closed (e.g. by the next operation in
+        // local mode) only counts what happens after it's reopened.
+        _hits.set(0);
+        _misses.set(0);
+        _lookupTime.set(0);
+    }
+
+    @Override
+    protected void onClose() {
+        synchronized (this) {
+            if (_prefetchExecutor != null) {
+                _prefetchExecutor.shutdownNow();
+                _prefetchExecutor = null;
+            }
+        }
+
+        if ((_cacheFile != null) && (_cache != null)) {
+            try {
+                save(_cacheFile);
+            } catch (IOException e) {
+                LOGGER.warn("Exception saving host cache to " + _cacheFile, e);
+            }
+        }
+    }
+
+    @Override
+    public long getCacheHits() {
+        init();
+        return _hits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        init();
+        return _misses.get();
+    }
+
+    @Override
+    public long getLookupTime() {
+        init();
+        return _lookupTime.get();
+    }
+
+    /**
+     * @return number of hosts (resolved or unknown) in the cache
+     */
+    public int size() {
+        init();
+
+        synchronized (_cache) {
+            return _cache.size();
+        }
+    }
+
+    /**
+     * Add unexpired entries from <file> to the cache.
+     *
+     * @param file file previously written by save()
+     * @throws IOException
+     */
+    public void load(File file) throws IOException {
+        init();
+
+        long now = System.currentTimeMillis();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR, -1);
+                if (fields.length != 3) {
+                    LOGGER.debug("Skipping invalid line in host cache file: " + line);
+                    continue;
+                }
+
+                String host = fields[0];
+                long expiration = Long.parseLong(fields[1]);
+                if (expiration <= now) {
+                    continue;
+                }
+
+                InetAddress[] addresses = null;
+                if (fields[2].length() > 0) {
+                    String[] ips = fields[2].split(ADDRESS_SEPARATOR);
+                    addresses = new InetAddress[ips.length];
+                    for (int i = 0; i < ips.length; i++) {
+                        // These are IP literals, so no lookup happens here.
+                        addresses[i] = InetAddress.getByAddress(host, InetAddress.getByName(ips[i]).getAddress());
+                    }
+                }
+
+                synchronized (_cache) {
+                    _cache.put(host, new CacheEntry(addresses, expiration));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid host cache file: " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write all unexpired cache entries to <file>. We write to a temp file first,
+     * so a failure doesn't leave a partial cache file behind.
+     *
+     * @param file file to write
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        init();
+
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, CacheEntry>> entries;
+        synchronized (_cache) {
+            entries = new ArrayList<Map.Entry<String, CacheEntry>>(_cache.entrySet());
+        }
+
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+
+        try {
+            for (Map.Entry<String, CacheEntry> entry : entries) {
+                CacheEntry cacheEntry = entry.getValue();
+                if (cacheEntry._expiration <= now) {
+                    continue;
+                }
+
+                StringBuilder line = new StringBuilder(entry.getKey());
+                line.append(FIELD_SEPARATOR);
+                line.append(cacheEntry._expiration);
+                line.append(FIELD_SEPARATOR);
+
+                if (cacheEntry._addresses != null) {
+                    for (int i = 0; i < cacheEntry._addresses.length; i++) {
+                        if (i > 0) {
+                            line.append(ADDRESS_SEPARATOR);
+                        }
+
+                        line.append(cacheEntry._addresses[i].getHostAddress());
+                    }
+                }
+
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't delete old host cache file: " + file);
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Can't rename temp host cache file to " + file);
+        }
+    }
+
+    private void init() {
+        if (_cache != null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (_cache == null) {
+                _lookups = new ConcurrentHashMap<String, LookupTask>();
+                _hits = new AtomicLong();
+                _misses = new AtomicLong();
+                _lookupTime = new AtomicLong();
+
+                _cache = new LruCache(_maxEntries);
+
+                if ((_cacheFile != null) && _cacheFile.exists()) {
+                    try {
+                        load(_cacheFile);
+                    } catch (IOException e) {
+                        LOGGER.warn("Exception loading host cache from " + _cacheFile, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (_prefetchExecutor == null) {
+            _prefetchExecutor = Executors.newFixedThreadPool(_numPrefetchThreads, new DaemonThreadFactory());
+        }
+
+        return _prefetchExecutor;
+    }
+
+    private CacheEntry getCached(String host, long now) {
+        synchronized (_cache) {
+            CacheEntry result = _cache.get(host);
+            if ((result != null) && (result._expiration <= now)) {
+                _cache.remove(host);
+                result = null;
+            }
+
+            return result;
+        }
+    }
+
+    private CacheEntry lookup(String host) {
+        long startTime = System.currentTimeMillis();
+        InetAddress[] addresses = null;
+
+        try {
+            addresses = _resolver.resolve(host);
+        } catch (UnknownHostException e) {
+            LOGGER.trace("Unknown host: " + host);
+        }
+
+        long endTime = System.currentTimeMillis();
+        _lookupTime.addAndGet(endTime - startTime);
+
+        CacheEntry result = new CacheEntry(addresses, endTime + (addresses == null ? _negativeTtl : _ttl));
+        synchronized (_cache) {
+            _cache.put(host, result);
+        }
+
+        return result;
+    }
+}
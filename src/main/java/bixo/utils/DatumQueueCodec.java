@@ -0,0 +1,217 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.security.InvalidParameterException;
+
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.BaseDatum;
+
+/**
+ * Codec for datums, which writes the values in the datum's tuple directly, instead
+ * of using Java serialization for the datum (and its Cascading TupleEntry). Strings,
+ * primitive wrappers and nested tuples are written as raw data, and anything else
+ * (e.g. payload values) falls back to writeObject().
+ * 
+ * The datum class must have a public constructor that takes a Tuple.
+ *
+ */
+public class DatumQueueCodec<T extends BaseDatum> extends BaseQueueCodec<T> {
+
+    private static final byte NULL_TYPE = 0;
+    private static final byte STRING_TYPE = 1;
+    private static final byte INTEGER_TYPE = 2;
+    private static final byte LONG_TYPE = 3;
+    private static final byte DOUBLE_TYPE = 4;
+    private static final byte FLOAT_TYPE = 5;
+    private static final byte BOOLEAN_TYPE = 6;
+    private static final byte TUPLE_TYPE = 7;
+    private static final byte OBJECT_TYPE = 8;
+    
+    private Constructor<T> _constructor;
+    
+    public DatumQueueCodec(Class<T> datumClass) {
+        try {
+            _constructor = datumClass.getConstructor(Tuple.class);
+        } catch (NoSuchMethodException e) {
+            throw new InvalidParameterException("Datum class must have a public constructor that takes a Tuple: " + datumClass.getName());
+        }
+    }
+    
+    @Override
+    public void write(T element, ObjectOutput out) throws IOException {
+        writeTuple(element.getTuple(), out);
+    }
+
+    @Override
+    public T read(ObjectInput in) throws IOException, ClassNotFoundException {
+        Tuple tuple = readTuple(in);
+        
+        try {
+            return _constructor.newInstance(tuple);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Error creating datum from tuple", e.getCause());
+        } catch (InstantiationException e) {
+            throw new IOException("Error creating datum from tuple", e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Error creating datum from tuple", e);
+        }
+    }
+    
+    @Override
+    public long estimateSize(T element) {
+        return getTupleSize(element.getTuple());
+    }
+    
+    private static long getTupleSize(Tuple tuple) {
+        int size = tuple.size();
+        long result = 4;
+        
+        for (int i = 0; i < size; i++) {
+            Object value = tuple.getObject(i);
+            
+            // Type byte
+            result += 1;
+            
+            if (value == null) {
+                // Nothing else
+            } else if (value instanceof String) {
+                // Length, and (assuming mostly ASCII) one byte per char.
+                result += 4 + ((String)value).length();
+            } else if ((value instanceof Integer) || (value instanceof Float)) {
+                result += 4;
+            } else if ((value instanceof Long) || (value instanceof Double)) {
+                result += 8;
+            } else if (value instanceof Boolean) {
+                result += 1;
+            } else if (value instanceof Tuple) {
+                result += getTupleSize((Tuple)value);
+            } else {
+                result += getSerializedSize(value);
+            }
+        }
+        
+        return result;
+    }
+    
+    private static void writeTuple(Tuple tuple, ObjectOutput out) throws IOException {
+        int size = tuple.size();
+        out.writeInt(size);
+        
+        for (int i = 0; i < size; i++) {
+            Object value = tuple.getObject(i);
+            
+            if (value == null) {
+                out.writeByte(NULL_TYPE);
+            } else if (value instanceof String) {
+                out.writeByte(STRING_TYPE);
+                writeString((String)value, out);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER_TYPE);
+                out.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG_TYPE);
+                out.writeLong((Long)value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE_TYPE);
+                out.writeDouble((Double)value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT_TYPE);
+                out.writeFloat((Float)value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN_TYPE);
+                out.writeBoolean((Boolean)value);
+            } else if (value instanceof Tuple) {
+                out.writeByte(TUPLE_TYPE);
+                writeTuple((Tuple)value, out);
+            } else {
+                out.writeByte(OBJECT_TYPE);
+                out.writeObject(value);
+            }
+        }
+    }
+    
+    private static Tuple readTuple(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = in.readInt();
+        Tuple result = new Tuple();
+        
+        for (int i = 0; i < size; i++) {
+            byte type = in.readByte();
+            switch (type) {
+                case NULL_TYPE:
+                    result.add(null);
+                    break;
+                    
+                case STRING_TYPE:
+                    result.add(readString(in));
+                    break;
+                    
+                case INTEGER_TYPE:
+                    result.add(in.readInt());
+                    break;
+                    
+                case LONG_TYPE:
+                    result.add(in.readLong());
+                    break;
+                    
+                case DOUBLE_TYPE:
+                    result.add(in.readDouble());
+                    break;
+                    
+                case FLOAT_TYPE:
+                    result.add(in.readFloat());
+                    break;
+                    
+                case BOOLEAN_TYPE:
+                    result.add(in.readBoolean());
+                    break;
+                    
+                case TUPLE_TYPE:
+                    result.add(readTuple(in));
+                    break;
+                    
+                case OBJECT_TYPE:
+                    result.add(in.readObject());
+                    break;
+                    
+                default:
+                    throw new IOException("Unknown value type in DiskQueue run: " + type);
+            }
+        }
+        
+        return result;
+    }
+
+    // writeUTF() can't handle strings that are more than 64K bytes, so we do our own.
+    private static void writeString(String value, ObjectOutput out) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
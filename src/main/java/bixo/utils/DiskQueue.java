@@ -16,34 +16,52 @@
  */
 package bixo.utils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.AbstractQueue;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 // FUTURE KKr - worry about multi-threaded access. Could wrap syncronized(_memoryQueue)
-// around most class bodies (also synchronized(_backingStore) for file methods.
+// around most class bodies (also synchronized(_runs) for file methods.
 
 /**
- * A queue that writes extra elements to disk, and reads them in as needed.
+ * A priority queue that writes extra elements to disk, and reads them in as needed.
  * 
- * This implementation is optimized for being filled once (ie by the iterator in a reducer)
- * and then incrementally read. So it wouldn't work very well if reads/writes were happening
- * simultaneously, once anything had spilled to disk.
+ * When the in-memory queue is full, the lower priority half of it (plus the new element)
+ * is sorted and written to a temp file as a "run". The head of the queue is always the
+ * best element from either the in-memory queue or the heads of the runs (a k-way merge),
+ * so elements come back in comparator order no matter where they were stored. Each run's
+ * file is deleted as soon as all of its elements have been read, and if there are too many
+ * runs then the smaller ones are merged, which also drops any elements that have been read.
+ * 
+ * Elements are written using a codec, which defaults to Java serialization. Run files can
+ * optionally be compressed. The in-memory queue can also be limited by the total size of
+ * its elements, as estimated by the codec, so that a few big elements don't use up all of
+ * the memory, and lots of small elements don't get spilled needlessly.
  *
  */
 public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
@@ -51,6 +69,16 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
     public static final float DEFAULT_REFILL_RATIO = 0.75f;
     
+    public static final long NO_BYTES_LIMIT = Long.MAX_VALUE;
+    
+    // Merge runs when we have more than this many, so we don't have too many open files.
+    private static final int MAX_RUNS = 32;
+    
+    // Number of elements we write to a run before resetting the object stream.
+    private static final int RESET_INTERVAL = 100;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
     private static class DefaultComparator<T extends Comparable> implements Comparator<T> {
 
         @Override
@@ -60,118 +88,383 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         
     }
     
-    private static class IndexQueue<E> extends AbstractQueue<E> {
-
-        private List<E> _queue;
+    private static class QueueEntry<E> {
+        private E _element;
+        private long _size;
+        
+        public QueueEntry(E element, long size) {
+            _element = element;
+            _size = size;
+        }
+    }
+    
+    private static class EntryComparator<E> implements Comparator<QueueEntry<E>> {
         private Comparator<? super E> _comparator;
-        private int _capacity;
-
-        public IndexQueue(int capacity, Comparator<? super E> comparator) {
-            _capacity = capacity;
+        
+        public EntryComparator(Comparator<? super E> comparator) {
             _comparator = comparator;
-            _queue = new ArrayList<E>(capacity);
         }
-
+        
         @Override
-        public Iterator<E> iterator() {
-            return _queue.iterator();
+        public int compare(QueueEntry<E> o1, QueueEntry<E> o2) {
+            return _comparator.compare(o1._element, o2._element);
+        }
+    }
+    
+    /**
+     * Bounded in-memory queue, backed by a binary heap so that adding and removing
+     * elements are both O(log n). It's bounded by the number of elements, and by the
+     * total (estimated) size of the elements.
+     * 
+     * Since it's a heap, the ordering of an element is fixed when it's added. If an
+     * element's sort key changes after that, call reorder() to rebuild the heap.
+     */
+    private static class IndexQueue<E> {
+
+        // Don't pre-allocate a huge heap if the capacity is really big.
+        private static final int MAX_INITIAL_CAPACITY = 1024;
+        
+        private PriorityQueue<QueueEntry<E>> _queue;
+        private EntryComparator<E> _comparator;
+        private int _capacity;
+        private long _maxBytes;
+        private long _bytes;
+
+        public IndexQueue(int capacity, long maxBytes, Comparator<? super E> comparator) {
+            _capacity = capacity;
+            _maxBytes = maxBytes;
+            _comparator = new EntryComparator<E>(comparator);
+            _queue = new PriorityQueue<QueueEntry<E>>(Math.min(capacity, MAX_INITIAL_CAPACITY), _comparator);
         }
 
         public int getCapacity() {
             return _capacity;
         }
 
-        @Override
+        public long getMaxBytes() {
+            return _maxBytes;
+        }
+        
+        public long getBytes() {
+            return _bytes;
+        }
+        
         public int size() {
             return _queue.size();
         }
 
-        @Override
-        public boolean offer(E o) {
-            if (o == null) {
-                throw new NullPointerException();
-            } else if (_queue.size() >= _capacity) {
+        /**
+         * Return true if we can add an element of <size> bytes. We always have room for
+         * one element, no matter how big it is.
+         */
+        public boolean hasRoom(long size) {
+            if (_queue.size() >= _capacity) {
                 return false;
             } else {
-                _queue.add(o);
-                return true;
+                return _queue.isEmpty() || (_bytes + size <= _maxBytes);
             }
         }
+        
+        public void add(E element, long size) {
+            _queue.add(new QueueEntry<E>(element, size));
+            _bytes += size;
+        }
 
-        @Override
         public E peek() {
-            if (_queue.size() == 0) {
-                return null;
-            } else {
-                sort();
-                return _queue.get(0);
-            }
+            QueueEntry<E> entry = _queue.peek();
+            return entry == null ? null : entry._element;
         }
 
-        @Override
         public E poll() {
-            if (_queue.size() == 0) {
+            QueueEntry<E> entry = _queue.poll();
+            if (entry == null) {
                 return null;
-            } else {
-                sort();
-                return _queue.remove(0);
             }
+            
+            _bytes -= entry._size;
+            return entry._element;
+        }
+
+        public void clear() {
+            _queue.clear();
+            _bytes = 0;
+        }
+
+        public List<QueueEntry<E>> getEntries() {
+            return new ArrayList<QueueEntry<E>>(_queue);
+        }
+        
+        public List<E> getElements() {
+            List<E> result = new ArrayList<E>(_queue.size());
+            for (QueueEntry<E> entry : _queue) {
+                result.add(entry._element);
+            }
+            
+            return result;
+        }
+        
+        public void reorder() {
+            if (_queue.size() > 1) {
+                PriorityQueue<QueueEntry<E>> newQueue = new PriorityQueue<QueueEntry<E>>(_queue.size(), _comparator);
+                newQueue.addAll(_queue);
+                _queue = newQueue;
+            }
+        }
+    }
+    
+    /**
+     * Writes a sorted run of elements to a temp file.
+     */
+    private static class RunWriter<E> {
+        private BaseQueueCodec<E> _codec;
+        private boolean _compress;
+        private File _file;
+        private Deflater _deflater;
+        private ObjectOutputStream _out;
+        private int _numElements;
+        
+        public RunWriter(BaseQueueCodec<E> codec, boolean compress) throws IOException {
+            _codec = codec;
+            _compress = compress;
+            _file = File.createTempFile(DiskQueue.class.getSimpleName() + "-run-", null);
+            
+            OutputStream os = null;
+            try {
+                os = new FileOutputStream(_file);
+                if (compress) {
+                    _deflater = new Deflater(Deflater.BEST_SPEED);
+                    os = new DeflaterOutputStream(os, _deflater, BUFFER_SIZE);
+                }
+                
+                _out = new ObjectOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+            } catch (IOException e) {
+                IoUtils.safeClose(os);
+                endDeflater();
+                _file.delete();
+                throw e;
+            }
+        }
+        
+        public void write(E element) throws IOException {
+            _codec.write(element, _out);
+            _numElements += 1;
+            
+            // Periodically release the stream's refs to the elements we've written. Doing this
+            // after every element means class descriptors get written over and over again.
+            if ((_numElements % RESET_INTERVAL) == 0) {
+                _out.reset();
+            }
+        }
+        
+        public RunReader<E> finish() throws IOException {
+            _out.close();
+            endDeflater();
+            return new RunReader<E>(_file, _numElements, 0, _codec, _compress);
+        }
+        
+        public void abort() {
+            IoUtils.safeClose(_out);
+            endDeflater();
+            _file.delete();
         }
+        
+        // A Deflater that we pass to DeflaterOutputStream doesn't get released when the
+        // stream is closed.
+        private void endDeflater() {
+            if (_deflater != null) {
+                _deflater.end();
+                _deflater = null;
+            }
+        }
+    }
+    
+    /**
+     * Reads elements from a run file, keeping the next element in memory so runs
+     * can be merged.
+     */
+    private static class RunReader<E> {
+        private File _file;
+        private int _numElements;
+        private BaseQueueCodec<E> _codec;
+        private boolean _compressed;
+        private Inflater _inflater;
+        private ObjectInputStream _in;
+        private int _remaining;
+        private E _head;
+        
+        /**
+         * Open <file> and read the first element, after skipping <numToSkip> elements.
+         */
+        public RunReader(File file, int numElements, int numToSkip, BaseQueueCodec<E> codec, boolean compressed) throws IOException {
+            _file = file;
+            _numElements = numElements;
+            _remaining = numElements;
+            _codec = codec;
+            _compressed = compressed;
+            
+            InputStream is = new FileInputStream(file);
+            try {
+                if (compressed) {
+                    _inflater = new Inflater();
+                    is = new InflaterInputStream(is, _inflater, BUFFER_SIZE);
+                }
+                
+                _in = new ObjectInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+            } catch (IOException e) {
+                IoUtils.safeClose(is);
+                close();
+                throw e;
+            }
+            
+            try {
+                for (int i = 0; i < numToSkip; i++) {
+                    readElement();
+                }
 
-        public E remove() {
-            sort();
-            return _queue.remove(0);
+                advance();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Make a separate reader for the same file, positioned at our current head.
+         */
+        public RunReader<E> copy() throws IOException {
+            return new RunReader<E>(_file, _numElements, _numElements - size(), _codec, _compressed);
         }
 
-        private void sort() {
-            // Find the lowest element, and if it's not the first element,
-            // swap it into place.
-            E lowestEntry = null;
-            int lowestIndex = -1;
-            for (int i = 0; i < _queue.size(); i++) {
-                if ((lowestEntry == null)
-                                || (_comparator.compare(lowestEntry, _queue.get(i)) > 0)) {
-                    lowestIndex = i;
-                    lowestEntry = _queue.get(i);
+        public File getFile() {
+            return _file;
+        }
+        
+        public E getHead() {
+            return _head;
+        }
+        
+        /**
+         * @return number of elements we haven't returned yet, including the head.
+         */
+        public int size() {
+            return _remaining + (_head != null ? 1 : 0);
+        }
+        
+        /**
+         * Read the next element into the head.
+         * 
+         * @return false if there aren't any more elements.
+         * @throws IOException
+         */
+        public boolean advance() throws IOException {
+            _head = null;
+            
+            if (_remaining == 0) {
+                close();
+                return false;
+            }
+            
+            _head = readElement();
+            return true;
+        }
+        
+        public void close() {
+            IoUtils.safeClose(_in);
+            _in = null;
+            
+            if (_inflater != null) {
+                _inflater.end();
+                _inflater = null;
+            }
+        }
+        
+        private E readElement() throws IOException {
+            try {
+                E result = _codec.read(_in);
+                _remaining -= 1;
+                return result;
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException("Unexpected error - can't find class for object in backing store");
+            }
+        }
+    }
+    
+    /**
+     * Returns all of the elements in the queue, in no particular order.
+     */
+    private class QueueIterator implements Iterator<E> {
+        private Iterator<E> _memoryIter;
+        private List<RunReader<E>> _runsToRead;
+        private RunReader<E> _curRun;
+        
+        public QueueIterator() {
+            _memoryIter = _memoryQueue.getElements().iterator();
+            _runsToRead = new ArrayList<RunReader<E>>(_runs);
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (_memoryIter.hasNext()) {
+                return true;
+            }
+            
+            while ((_curRun == null) || (_curRun.getHead() == null)) {
+                if (_runsToRead.isEmpty()) {
+                    return false;
+                }
+                
+                try {
+                    _curRun = _runsToRead.remove(_runsToRead.size() - 1).copy();
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading from DiskQueue backing store", e);
                 }
             }
+            
+            return true;
+        }
 
-            if ((lowestEntry != null) && (lowestIndex != 0)) {
-                E higherEntry = _queue.get(0);
-                _queue.set(0, lowestEntry);
-                _queue.set(lowestIndex, higherEntry);
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            
+            if (_memoryIter.hasNext()) {
+                return _memoryIter.next();
+            }
+            
+            E result = _curRun.getHead();
+            try {
+                _curRun.advance();
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading from DiskQueue backing store", e);
+            }
+            
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Can't remove elements from DiskQueue via iterator");
         }
     }
     
-    // The _memoryQueue represents the head of the queue. It can also be the tail, if
-    // nothing has spilled over onto the disk.
+    // The _memoryQueue holds the best elements, other than what might be at the head of a run.
     private IndexQueue<E> _memoryQueue;
+    private Comparator<? super E> _comparator;
+    
+    private BaseQueueCodec<E> _codec;
+    private boolean _compressRuns;
     
     // Percentage of memory queue used/capacity that triggers a refill from disk.
     private float _refillMemoryRatio;
     
-    // Number of elements in the backing store file on disk.
-    private int _fileElements;
-
-    private ObjectOutputStream _fileOut;
-    private ObjectInputStream _fileIn;
-    
-    // When moving elements from disk to memory, we don't know whether the memory queue
-    // has space until the offer is rejected. So rather than trying to push back an element
-    // into the file, just cache it in _fileInSaved.
-    private E _fileInSaved;
-    private File _backingStore;
-
-    // FUTURE - KKr could have another memory-resident queue for the tail, so that writes
-    // to the file are buffered that way, and we get better performance if the queue is
-    // being used for parallel read/write access, so you frequently wind up crossing the
-    // 'spill' boundary from memory onto disk.
-    //
-    // Another issue with parallel read/write is that the backing store file could grow
-    // unbounded, if elements spill to disk and then the disk is never exhausted when
-    // refilling the memory queue, and you keep adding more elements at the same time.
+    // Runs on disk, ordered by their head element.
+    private PriorityQueue<RunReader<E>> _runs;
     
+    // Number of elements in all of the runs, including their heads.
+    private int _diskElements;
+
     /**
      * Construct a disk-backed queue that keeps at most <maxSize> elements in memory.
      * 
@@ -182,76 +475,103 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     }
     
     public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator) {
+        this(maxInMemorySize, comparator, new SerializableQueueCodec<E>());
+    }
+    
+    /**
+     * Construct a disk-backed queue that uses <codec> to write elements to disk.
+     * 
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param comparator Ordering for elements
+     * @param codec Codec for elements that are spilled to disk
+     */
+    public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator, BaseQueueCodec<E> codec) {
+        this(maxInMemorySize, NO_BYTES_LIMIT, comparator, codec);
+    }
+    
+    /**
+     * Construct a disk-backed queue that's limited by both the number of elements and the
+     * total size of the elements in memory. Sizes are estimated by the codec, so this
+     * approximates how many bytes the elements would take up on disk.
+     * 
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param maxInMemoryBytes Maximum total (estimated) size of elements in memory, or NO_BYTES_LIMIT
+     * @param comparator Ordering for elements
+     * @param codec Codec for elements that are spilled to disk, and for estimating sizes
+     */
+    public DiskQueue(int maxInMemorySize, long maxInMemoryBytes, Comparator<? super E> comparator, BaseQueueCodec<E> codec) {
         if (maxInMemorySize < 1) {
             throw new InvalidParameterException("DiskQueue max in-memory size must be at least one");
         }
 
-        _memoryQueue = new IndexQueue<E>(maxInMemorySize, comparator);
+        if (maxInMemoryBytes < 1) {
+            throw new InvalidParameterException("DiskQueue max in-memory bytes must be at least one");
+        }
+
+        _memoryQueue = new IndexQueue<E>(maxInMemorySize, maxInMemoryBytes, comparator);
+        _comparator = comparator;
+        _codec = codec;
+        _compressRuns = false;
         _refillMemoryRatio = DEFAULT_REFILL_RATIO;
+        _runs = new PriorityQueue<RunReader<E>>(MAX_RUNS + 1, new Comparator<RunReader<E>>() {
+
+            @Override
+            public int compare(RunReader<E> o1, RunReader<E> o2) {
+                return _comparator.compare(o1.getHead(), o2.getHead());
+            }
+        });
     }
 
     
     /* (non-Javadoc)
      * @see java.lang.Object#finalize()
      * 
-     * Close down streams, and toss the temp file.
+     * Close down streams, and toss the temp files.
      */
     @Override
     protected void finalize() throws Throwable {
-        if (closeFile()) {
-            LOGGER.warn("Disk queue still had open file in finalize");
+        if (closeRuns()) {
+            LOGGER.warn("Disk queue still had open files in finalize");
         }
     }
 
 
     /**
-     * Make sure the file streams are all closed down, the temp file is closed, and the
-     * temp file has been deleted.
+     * Make sure all of the run files are closed and deleted.
      * 
-     * @return true if we had to close down the file.
+     * @return true if we had to close down any files.
      */
-    private boolean closeFile() {
-        if (_backingStore == null) {
+    private boolean closeRuns() {
+        if (_runs.isEmpty()) {
             return false;
         }
 
-        IoUtils.safeClose(_fileIn);
-        _fileIn = null;
-        _fileInSaved = null;
-
-        IoUtils.safeClose(_fileOut);
-        _fileOut = null;
-
-        _fileElements = 0;
-
-        _backingStore.delete();
-        _backingStore = null;
-        return true;
-    }
-
-    private void openFile() throws IOException {
-        
-        if (_backingStore == null) {
-            _backingStore = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null);
-            _fileOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore)));
-
-            // Flush output file, so there's something written when we open the input stream.
-            _fileOut.flush();
-
-            _fileIn = new ObjectInputStream(new FileInputStream(_backingStore));
+        for (RunReader<E> run : _runs) {
+            run.close();
+            run.getFile().delete();
         }
+        
+        _runs.clear();
+        _diskElements = 0;
+        return true;
     }
 
+    /**
+     * Return an iterator over all of the elements, in no particular order. Elements that
+     * have been spilled to disk are read in as needed, so the queue must not be modified
+     * while the iterator is being used, and the iterator doesn't support remove().
+     * 
+     * @see java.util.AbstractCollection#iterator()
+     */
     @Override
     public Iterator<E> iterator() {
-        // FUTURE KKr - support iterator
-        throw new RuntimeException("Iterator not supported for DiskQueue (yet)");
+        return new QueueIterator();
     }
 
 
     @Override
     public int size() {
-        return _memoryQueue.size() + _fileElements + (_fileInSaved != null ? 1 : 0);
+        return _memoryQueue.size() + _diskElements;
     }
 
 
@@ -261,43 +581,66 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             throw new NullPointerException("Element cannot be null for AbstractQueue");
         }
         
-        // If there's anything in the file, or the queue is full, then we have to write to the file.
-        if ((_backingStore != null) || !_memoryQueue.offer(element)) {
-            try {
-                openFile();
-                _fileOut.writeObject(element);
-                _fileElements += 1;
-                
-                // Release memory ref to <element>, since we don't have any back-references from
-                // it to other serialized objects.
-                _fileOut.reset();
-            } catch (IOException e) {
-                LOGGER.error("Error writing to DiskQueue backing store", e);
-                return false;
-            }
+        long size = getSize(element);
+        if (_memoryQueue.hasRoom(size)) {
+            _memoryQueue.add(element, size);
+            return true;
+        }
+        
+        try {
+            spill(element, size);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Error writing to DiskQueue backing store", e);
+            return false;
         }
-
-        return true;
     }
 
     @Override
     public E peek() {
         loadMemoryQueue();
 
-        return _memoryQueue.peek();
+        E memoryHead = _memoryQueue.peek();
+        E diskHead = _runs.isEmpty() ? null : _runs.peek().getHead();
+        return isDiskFirst(memoryHead, diskHead) ? diskHead : memoryHead;
     }
 
-    public E remove() {
-        loadMemoryQueue();
-
-        return _memoryQueue.remove();
-    }
-    
     @Override
     public E poll() {
         loadMemoryQueue();
 
-        return _memoryQueue.poll();
+        E memoryHead = _memoryQueue.peek();
+        E diskHead = _runs.isEmpty() ? null : _runs.peek().getHead();
+        return isDiskFirst(memoryHead, diskHead) ? pollDisk() : _memoryQueue.poll();
+    }
+
+    public BaseQueueCodec<E> getCodec() {
+        return _codec;
+    }
+    
+    public boolean isCompressRuns() {
+        return _compressRuns;
+    }
+    
+    /**
+     * Compress the files that elements are spilled to, which trades some CPU for a lot
+     * less disk I/O when elements have lots of text (like URLs). This only affects runs
+     * that are written after it's called.
+     * 
+     * @param compressRuns true to compress run files
+     */
+    public void setCompressRuns(boolean compressRuns) {
+        _compressRuns = compressRuns;
+    }
+    
+    /**
+     * Re-sort the elements that are in memory. Elements are ordered when they're added, so
+     * this has to be called if the comparator would give a different result for any of them
+     * (e.g. because a mutable element was changed). Elements that have been spilled to disk
+     * are unaffected, since they're separate copies.
+     */
+    public void reorder() {
+        _memoryQueue.reorder();
     }
 
     /* (non-Javadoc)
@@ -308,55 +651,202 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     @Override
     public void clear() {
         _memoryQueue.clear();
-        _fileInSaved = null;
-        closeFile();
+        closeRuns();
     }
     
-    @SuppressWarnings("unchecked")
-    private void loadMemoryQueue() {
-        // use the memory queue as our buffer, so only load it up when it's below capacity.
-        if ((float)_memoryQueue.size()/(float)_memoryQueue.getCapacity() >= _refillMemoryRatio) {
-            return;
+    private boolean isDiskFirst(E memoryHead, E diskHead) {
+        if (diskHead == null) {
+            return false;
+        } else if (memoryHead == null) {
+            return true;
+        } else {
+            return _comparator.compare(diskHead, memoryHead) < 0;
         }
-
-        // See if we have one saved element from the previous read request
-        if (_fileInSaved != null) {
-            if (!_memoryQueue.offer(_fileInSaved)) {
-                throw new RuntimeException("Unexpected error - can't offer to an empty queue");
+    }
+    
+    /**
+     * Return the estimated size of <element>, or 0 if we don't have a limit on bytes
+     * (so there's no point in calculating it).
+     */
+    private long getSize(E element) {
+        return _memoryQueue.getMaxBytes() == NO_BYTES_LIMIT ? 0 : _codec.estimateSize(element);
+    }
+    
+    /**
+     * The memory queue is full, so sort everything in it plus <element>, keep the best
+     * half in memory (by both count and size), and write the rest to a new run.
+     * 
+     * @param element element being added
+     * @param size estimated size of the element
+     * @throws IOException
+     */
+    private void spill(E element, long size) throws IOException {
+        List<QueueEntry<E>> entries = _memoryQueue.getEntries();
+        entries.add(new QueueEntry<E>(element, size));
+        Collections.sort(entries, _memoryQueue._comparator);
+        
+        int maxToKeep = getMaxToKeep();
+        long maxBytesToKeep = getMaxBytesToKeep();
+        
+        int numToKeep = 0;
+        long bytesToKeep = 0;
+        while ((numToKeep < maxToKeep) && (numToKeep < entries.size() - 1)) {
+            long entrySize = entries.get(numToKeep)._size;
+            if ((numToKeep > 0) && (bytesToKeep + entrySize > maxBytesToKeep)) {
+                break;
             }
-
-            _fileInSaved = null;
+            
+            numToKeep += 1;
+            bytesToKeep += entrySize;
+        }
+        
+        RunWriter<E> writer = new RunWriter<E>(_codec, _compressRuns);
+        RunReader<E> run;
+        
+        try {
+            for (QueueEntry<E> entry : entries.subList(numToKeep, entries.size())) {
+                writer.write(entry._element);
+            }
+            
+            run = writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
         }
+        
+        _memoryQueue.clear();
+        for (QueueEntry<E> entry : entries.subList(0, numToKeep)) {
+            _memoryQueue.add(entry._element, entry._size);
+        }
+        
+        _runs.add(run);
+        _diskElements += run.size();
+        
+        if (_runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+    
+    /**
+     * Merge the smaller half of the runs into one. Runs that have been merged are usually
+     * bigger than new runs, so this avoids re-writing the same elements every time we merge.
+     * If this fails we just keep the current runs, since they're still valid.
+     */
+    private void mergeRuns() {
+        List<RunReader<E>> runsToMerge = new ArrayList<RunReader<E>>(_runs);
+        Collections.sort(runsToMerge, new Comparator<RunReader<E>>() {
 
-        // Now see if we have anything on disk
-        if (_backingStore != null) {
-            try {
-                // Since we buffer writes, we need to make sure everything has been written before
-                // we start reading.
-                _fileOut.flush();
-
-                while (_fileElements > 0) {
-                    E nextFileElement = (E)_fileIn.readObject();
-                    _fileElements -= 1;
-
-                    if (!_memoryQueue.offer(nextFileElement)) {
-                        _fileInSaved = nextFileElement;
-                        return;
-                    }
-                }
+            @Override
+            public int compare(RunReader<E> o1, RunReader<E> o2) {
+                return o1.size() - o2.size();
+            }
+        });
+        
+        runsToMerge = runsToMerge.subList(0, (_runs.size() + 1) / 2);
 
-                // Nothing left in the file, so close/delete it.
-                closeFile();
+        List<RunReader<E>> copies = new ArrayList<RunReader<E>>(runsToMerge.size());
+        RunWriter<E> writer = null;
+        
+        try {
+            PriorityQueue<RunReader<E>> merger = new PriorityQueue<RunReader<E>>(runsToMerge.size(), _runs.comparator());
+            for (RunReader<E> run : runsToMerge) {
+                RunReader<E> copy = run.copy();
+                copies.add(copy);
+                merger.add(copy);
+            }
+            
+            writer = new RunWriter<E>(_codec, _compressRuns);
+            while (!merger.isEmpty()) {
+                RunReader<E> reader = merger.poll();
+                writer.write(reader.getHead());
+                if (reader.advance()) {
+                    merger.add(reader);
+                }
+            }
+            
+            RunReader<E> mergedRun = writer.finish();
+            writer = null;
+            
+            LOGGER.debug(String.format("Merged %d DiskQueue runs with %d elements", runsToMerge.size(), mergedRun.size()));
+            for (RunReader<E> run : runsToMerge) {
+                _runs.remove(run);
+                run.close();
+                run.getFile().delete();
+            }
+            
+            _runs.add(mergedRun);
+        } catch (IOException e) {
+            LOGGER.warn("Error merging DiskQueue runs", e);
+            
+            if (writer != null) {
+                writer.abort();
+            }
+        } finally {
+            for (RunReader<E> copy : copies) {
+                copy.close();
+            }
+        }
+    }
+    
+    /**
+     * Remove and return the best element from the runs on disk.
+     */
+    private E pollDisk() {
+        RunReader<E> run = _runs.poll();
+        E result = run.getHead();
+        _diskElements -= 1;
+        
+        try {
+            if (run.advance()) {
+                _runs.add(run);
+                return result;
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Error reading from DiskQueue backing store, lost %d elements", run.size()), e);
+            _diskElements -= run.size();
+            run.close();
+        }
+        
+        // Nothing left in this run, so toss the file.
+        run.getFile().delete();
+        return result;
+    }
+    
+    private void loadMemoryQueue() {
+        // use the memory queue as our buffer, so only load it up when it's below capacity.
+        if (((float)_memoryQueue.size()/(float)_memoryQueue.getCapacity() >= _refillMemoryRatio)
+                        || ((float)_memoryQueue.getBytes()/(float)_memoryQueue.getMaxBytes() >= _refillMemoryRatio)) {
+            return;
+        }
 
-                // FUTURE KKr - file queue is empty, so could reset length of file, read/write offsets
-                // to start from zero instead of closing file (but for current use case of fill once, drain
-                // once this works just fine)
-            } catch (IOException e) {
-                LOGGER.error("Error reading from DiskQueue backing store", e);
-                return;
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException("Unexpected error - can't find class for object in backing store");
+        // Move the best elements from disk into memory, but only up to the level that spill()
+        // leaves behind. If we filled the memory queue, then the next offer() would spill
+        // again, and we'd keep re-writing the same elements while the queue is growing.
+        int maxToLoad = getMaxToKeep();
+        long maxBytesToLoad = getMaxBytesToKeep();
+        
+        while (!_runs.isEmpty() && (_memoryQueue.size() < maxToLoad)) {
+            E head = _runs.peek().getHead();
+            long size = getSize(head);
+            if ((_memoryQueue.size() > 0) && (_memoryQueue.getBytes() + size > maxBytesToLoad)) {
+                break;
             }
+            
+            _memoryQueue.add(pollDisk(), size);
         }
     }
+    
+    /**
+     * @return max number of elements that stay in memory after a spill.
+     */
+    private int getMaxToKeep() {
+        return Math.max(1, _memoryQueue.getCapacity() / 2);
+    }
+    
+    /**
+     * @return max total size of elements that stay in memory after a spill.
+     */
+    private long getMaxBytesToKeep() {
+        return _memoryQueue.getMaxBytes() / 2;
+    }
 }
@@ -16,7 +16,6 @@
  */
 package bixo.utils;
 
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -36,11 +35,17 @@ public class DomainInfo {
         return TESTING_DOMAIN_PREFIX + index + ".com";
     }
     
+    private static final BaseHostResolver DEFAULT_RESOLVER = new SimpleHostResolver();
+    
     private String _protocolAndDomain;
     private String _domain;
     private String _hostAddress;
 
     public DomainInfo(String protocolAndDomain) throws UnknownHostException, MalformedURLException, URISyntaxException {
+        this(protocolAndDomain, DEFAULT_RESOLVER);
+    }
+    
+    public DomainInfo(String protocolAndDomain, BaseHostResolver resolver) throws UnknownHostException, MalformedURLException, URISyntaxException {
         _protocolAndDomain = protocolAndDomain;
         URL url = new URL(protocolAndDomain);
 
@@ -52,7 +57,7 @@ public class DomainInfo {
         if (TESTING_DOMAIN_PATTERN.matcher(_domain).matches()) {
             _hostAddress = _domain;
         } else {
-            _hostAddress = InetAddress.getByName(_domain).getHostAddress();
+            _hostAddress = resolver.resolve(_domain)[0].getHostAddress();
         }
     }
 
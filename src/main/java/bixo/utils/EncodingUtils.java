@@ -19,6 +19,8 @@ package bixo.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -38,6 +40,88 @@ public class EncodingUtils {
         // Enforce class isn't instantiated
     }
     
+    /**
+     * InflaterInputStream for HTTP "deflate" content, which is supposed to be zlib-wrapped
+     * (RFC 1950) deflate data, but some servers send raw (RFC 1951) deflate data instead. We
+     * peek at the first two bytes to decide which one we've got.
+     */
+    private static class DeflateInputStream extends InflaterInputStream {
+        
+        public DeflateInputStream(PushbackInputStream in) throws IOException {
+            super(in, new Inflater(!hasZlibHeader(in)), BUF_SIZE);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // We created the inflater, so we have to release its native memory.
+                inf.end();
+            }
+        }
+        
+        private static boolean hasZlibHeader(PushbackInputStream in) throws IOException {
+            int cmf = in.read();
+            if (cmf == -1) {
+                return false;
+            }
+            
+            int flg = in.read();
+            if (flg == -1) {
+                in.unread(cmf);
+                return false;
+            }
+            
+            in.unread(flg);
+            in.unread(cmf);
+            
+            // Compression method must be 8 (deflate), and the two bytes (as a big-endian value)
+            // must be a multiple of 31.
+            return ((cmf & 0x0F) == 8) && ((((cmf << 8) | flg) % 31) == 0);
+        }
+    }
+    
+    /**
+     * Return true if <contentEncoding> is one that we know how to decode.
+     * 
+     * @param contentEncoding value of the Content-Encoding header (can be null)
+     * @return true if gzip or deflate encoding
+     */
+    public static boolean isSupportedEncoding(String contentEncoding) {
+        return isGzipEncoding(contentEncoding) || isDeflateEncoding(contentEncoding);
+    }
+    
+    /**
+     * Wrap <in> with a stream that decodes the content as it's read, based on the
+     * <contentEncoding>. If the encoding isn't one we support (or is null), <in> is
+     * returned as-is.
+     * 
+     * Note that for gzip the header is read immediately, so this can block.
+     * 
+     * @param in stream of encoded content
+     * @param contentEncoding value of the Content-Encoding header (can be null)
+     * @return stream of decoded content
+     * @throws IOException
+     */
+    public static InputStream getDecodingStream(InputStream in, String contentEncoding) throws IOException {
+        if (isGzipEncoding(contentEncoding)) {
+            return new GZIPInputStream(in, BUF_SIZE);
+        } else if (isDeflateEncoding(contentEncoding)) {
+            return new DeflateInputStream(new PushbackInputStream(in, 2));
+        } else {
+            return in;
+        }
+    }
+    
+    private static boolean isGzipEncoding(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding);
+    }
+    
+    private static boolean isDeflateEncoding(String contentEncoding) {
+        return "deflate".equalsIgnoreCase(contentEncoding);
+    }
+    
     public static class ExpandedResult {
         private byte[] _expanded;
         private boolean _isTruncated;
@@ -102,10 +186,9 @@ public class EncodingUtils {
         return new ExpandedResult(outStream.toByteArray(), isTruncated);
     }
 
-    // TODO KKr The following routines are designed to support the deflate
-    // compression standard (RFC 1250) for HTTP 1.1 (RFC 2616). However,
-    // I was unable to verify that they really work correctly, so I've
-    // removed deflate from SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING.
+    // The following routines support the deflate content encoding for HTTP 1.1
+    // (RFC 2616), which is zlib-wrapped data (RFC 1950), but we also handle raw
+    // deflate data (RFC 1951) since that's what some servers send.
     
     public static byte[] processDeflateEncoded(byte[] content) throws IOException {
         return processDeflateEncoded(content, Integer.MAX_VALUE);
@@ -114,9 +197,7 @@ public class EncodingUtils {
     public static byte[] processDeflateEncoded(byte[] compressed, int sizeLimit) throws IOException {
         ByteArrayOutputStream outStream = new ByteArrayOutputStream(EXPECTED_DEFLATE_COMPRESSION_RATIO * compressed.length);
 
-        // "true" because HTTP does not provide zlib headers
-        Inflater inflater = new Inflater(true);
-        InflaterInputStream inStream = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater);
+        InputStream inStream = getDecodingStream(new ByteArrayInputStream(compressed), "deflate");
 
         byte[] buf = new byte[BUF_SIZE];
         int written = 0;
@@ -140,6 +221,7 @@ public class EncodingUtils {
             }
         }
         
+        IoUtils.safeClose(inStream);
         IoUtils.safeClose(outStream);
         return outStream.toByteArray();
     }
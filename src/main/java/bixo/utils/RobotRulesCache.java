@@ -0,0 +1,368 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bixo.hadoop.HadoopConfigured;
+import crawlercommons.robots.BaseRobotRules;
+
+/**
+ * Cache of parsed robots.txt rules, keyed by protocol+domain (e.g. "http://www.domain.com").
+ *
+ * Entries expire after a max age. Rules that defer visits aren't cached, since they come
+ * from temporary problems fetching robots.txt, and we want to try again next time.
+ *
+ * If the cache has a directory, then it holds one file per partition (reducer). A reducer
+ * gets the same domains from one crawl loop to the next, as long as the number of reducers
+ * doesn't change, so open() only loads the file for the task's partition, and close()
+ * replaces that file with the task's current (unexpired) entries. So the number of files
+ * doesn't grow from loop to loop, and each task only loads rules for its own domains.
+ *
+ * If there's no file for the partition (e.g. the number of reducers changed), open() loads
+ * the files that were written for a different number of partitions, and close() then only
+ * saves the rules that the task actually used. Those older files are deleted once they're
+ * too old to contain any valid entries. The directory can be on any Hadoop file system, so
+ * it works for both local and cluster crawls.
+ *
+ */
+@SuppressWarnings("serial")
+public class RobotRulesCache implements Serializable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RobotRulesCache.class);
+
+    public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final String CACHE_FILE_PREFIX = "robots-rules-";
+    private static final int CACHE_FILE_VERSION = 1;
+
+    private static class CachedRules {
+        private BaseRobotRules _rules;
+        private long _expiration;
+
+        public CachedRules(BaseRobotRules rules, long expiration) {
+            _rules = rules;
+            _expiration = expiration;
+        }
+    }
+
+    private String _cacheDir;
+    private long _maxAge;
+
+    private transient int _partition;
+    private transient int _numPartitions;
+    
+    // All of the rules we know about, and the ones that belong in our partition's file.
+    private transient Map<String, CachedRules> _rules;
+    private transient Map<String, CachedRules> _partitionRules;
+    private transient volatile boolean _modified;
+
+    private transient AtomicLong _hits;
+    private transient AtomicLong _misses;
+
+    /**
+     * Create a cache that only lives in memory.
+     */
+    public RobotRulesCache() {
+        this(null);
+    }
+
+    /**
+     * @param cacheDir Directory (Hadoop path) for cache files, or null to keep the cache in memory
+     */
+    public RobotRulesCache(String cacheDir) {
+        this(cacheDir, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param cacheDir Directory (Hadoop path) for cache files, or null to keep the cache in memory
+     * @param maxAge Time (in milliseconds) that rules are valid
+     */
+    public RobotRulesCache(String cacheDir, long maxAge) {
+        if (maxAge < 0) {
+            throw new InvalidParameterException("RobotRulesCache max age can't be negative");
+        }
+
+        _cacheDir = cacheDir;
+        _maxAge = maxAge;
+    }
+
+    public String getCacheDir() {
+        return _cacheDir;
+    }
+
+    public long getMaxAge() {
+        return _maxAge;
+    }
+
+    /**
+     * Set up the cache for a single task, and load its cache file (if there's a cache directory).
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        open(0, 1);
+    }
+    
+    /**
+     * Set up the cache for task <partition> of <numPartitions>, and load the cache file
+     * for that partition (if there's a cache directory).
+     *
+     * @param partition partition (e.g. reducer) number of the task
+     * @param numPartitions total number of partitions
+     * @throws IOException
+     */
+    public synchronized void open(int partition, int numPartitions) throws IOException {
+        if ((numPartitions < 1) || (partition < 0) || (partition >= numPartitions)) {
+            throw new InvalidParameterException(String.format("Invalid RobotRulesCache partition %d of %d", partition, numPartitions));
+        }
+
+        _partition = partition;
+        _numPartitions = numPartitions;
+        _rules = new ConcurrentHashMap<String, CachedRules>();
+        _partitionRules = new ConcurrentHashMap<String, CachedRules>();
+        _modified = false;
+        _hits = new AtomicLong();
+        _misses = new AtomicLong();
+
+        if (_cacheDir == null) {
+            return;
+        }
+
+        FileSystem fs = new HadoopConfigured().getFileSystem(_cacheDir);
+        Path dirPath = new Path(_cacheDir);
+        if (!fs.exists(dirPath)) {
+            _modified = true;
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Path partitionPath = new Path(dirPath, getPartitionFileName(partition, numPartitions));
+        boolean havePartitionFile = fs.exists(partitionPath);
+        if (havePartitionFile) {
+            try {
+                loadFile(fs, partitionPath, now, true);
+            } catch (IOException e) {
+                LOGGER.warn("Skipping invalid robots rules cache file: " + partitionPath, e);
+                _modified = true;
+            }
+        } else {
+            // Make sure we write out our partition's file, so we don't wind up here again.
+            _modified = true;
+        }
+        
+        String partitionSuffix = getPartitionFileSuffix(numPartitions);
+        for (FileStatus status : fs.listStatus(dirPath)) {
+            Path path = status.getPath();
+            String name = path.getName();
+            if (status.isDirectory() || !name.startsWith(CACHE_FILE_PREFIX) || name.endsWith(partitionSuffix)) {
+                continue;
+            }
+
+            // This file is from a run with a different number of partitions (or an older
+            // version of the cache). Anything in it expires within max age of it being written.
+            // Another task might be deleting it too, so we don't care if the delete fails.
+            if (status.getModificationTime() + _maxAge <= now) {
+                LOGGER.debug("Removing expired robots rules cache file: " + path);
+                fs.delete(path, false);
+                continue;
+            } else if (havePartitionFile) {
+                continue;
+            }
+            
+            try {
+                loadFile(fs, path, now, false);
+            } catch (IOException e) {
+                LOGGER.warn("Skipping invalid robots rules cache file: " + path, e);
+            }
+        }
+
+        LOGGER.info(String.format("Loaded %d robots rules from %s for partition %d of %d", _rules.size(), _cacheDir, partition, numPartitions));
+    }
+
+    /**
+     * Return cached rules for <protocolAndDomain>, or null if there aren't any (or they've expired).
+     *
+     * @param protocolAndDomain protocol and domain, e.g. "http://www.domain.com"
+     * @return robots rules, or null
+     */
+    public BaseRobotRules getRules(String protocolAndDomain) {
+        checkOpen();
+
+        CachedRules cached = _rules.get(protocolAndDomain);
+        if ((cached == null) || (cached._expiration <= System.currentTimeMillis())) {
+            _misses.incrementAndGet();
+            return null;
+        }
+
+        // We got this domain, so it belongs in our partition (if it's not there already).
+        _partitionRules.put(protocolAndDomain, cached);
+        _hits.incrementAndGet();
+        return cached._rules;
+    }
+
+    /**
+     * Add (or replace) the rules for <protocolAndDomain>. Rules that defer visits are ignored.
+     *
+     * @param protocolAndDomain protocol and domain, e.g. "http://www.domain.com"
+     * @param rules robots rules for the domain
+     */
+    public void putRules(String protocolAndDomain, BaseRobotRules rules) {
+        checkOpen();
+
+        if (rules.isDeferVisits()) {
+            return;
+        }
+        
+        CachedRules cached = new CachedRules(rules, System.currentTimeMillis() + _maxAge);
+        _rules.put(protocolAndDomain, cached);
+        _partitionRules.put(protocolAndDomain, cached);
+        _modified = true;
+    }
+
+    public int size() {
+        checkOpen();
+        return _rules.size();
+    }
+
+    public long getHits() {
+        return _hits == null ? 0 : _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses == null ? 0 : _misses.get();
+    }
+
+    /**
+     * Replace the partition's file in the cache directory (if we have one) with the current
+     * entries for the partition, if anything has changed since open().
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if ((_cacheDir == null) || (_partitionRules == null) || !_modified) {
+            return;
+        }
+
+        FileSystem fs = new HadoopConfigured().getFileSystem(_cacheDir);
+        String fileName = getPartitionFileName(_partition, _numPartitions);
+        Path tempPath = new Path(_cacheDir, "_" + fileName);
+        Path path = new Path(_cacheDir, fileName);
+
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fs.create(tempPath, true)));
+        int numRules = 0;
+        long now = System.currentTimeMillis();
+        
+        try {
+            oos.writeInt(CACHE_FILE_VERSION);
+            for (Map.Entry<String, CachedRules> entry : _partitionRules.entrySet()) {
+                if (entry.getValue()._expiration <= now) {
+                    continue;
+                }
+                
+                oos.writeBoolean(true);
+                oos.writeUTF(entry.getKey());
+                oos.writeLong(entry.getValue()._expiration);
+                oos.writeObject(entry.getValue()._rules);
+                numRules += 1;
+            }
+
+            oos.writeBoolean(false);
+        } finally {
+            oos.close();
+        }
+
+        // Rename so that nobody loads a partial file. Rename doesn't replace an existing
+        // file on all file systems, so get rid of the old one first.
+        fs.delete(path, false);
+        if (!fs.rename(tempPath, path)) {
+            throw new IOException("Can't rename robots rules cache file to " + path);
+        }
+
+        LOGGER.info(String.format("Saved %d robots rules to %s", numRules, path));
+        _modified = false;
+    }
+
+    /**
+     * Load the entries in <path> that haven't expired. If <isPartitionFile> then the entries
+     * all belong to our partition, and we note if any have expired, so the file gets compacted.
+     */
+    private void loadFile(FileSystem fs, Path path, long now, boolean isPartitionFile) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fs.open(path)));
+
+        try {
+            int version = ois.readInt();
+            if (version != CACHE_FILE_VERSION) {
+                throw new IOException("Unknown robots rules cache file version: " + version);
+            }
+
+            while (ois.readBoolean()) {
+                String protocolAndDomain = ois.readUTF();
+                long expiration = ois.readLong();
+                BaseRobotRules rules = (BaseRobotRules)ois.readObject();
+
+                if ((expiration <= now) || rules.isDeferVisits()) {
+                    _modified |= isPartitionFile;
+                    continue;
+                }
+
+                // If more than one file has rules for the same domain, use the newest.
+                CachedRules existing = _rules.get(protocolAndDomain);
+                if ((existing == null) || (existing._expiration < expiration)) {
+                    CachedRules cached = new CachedRules(rules, expiration);
+                    _rules.put(protocolAndDomain, cached);
+                    
+                    if (isPartitionFile) {
+                        _partitionRules.put(protocolAndDomain, cached);
+                    }
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in robots rules cache file", e);
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static String getPartitionFileName(int partition, int numPartitions) {
+        return String.format("%s%05d", CACHE_FILE_PREFIX, partition) + getPartitionFileSuffix(numPartitions);
+    }
+    
+    private static String getPartitionFileSuffix(int numPartitions) {
+        return String.format("-of-%05d", numPartitions);
+    }
+    
+    private void checkOpen() {
+        if (_rules == null) {
+            throw new IllegalStateException("RobotRulesCache must be opened before it's used");
+        }
+    }
+}
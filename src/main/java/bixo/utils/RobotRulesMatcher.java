@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRules;
+import crawlercommons.robots.SimpleRobotRules.RobotRule;
+
+/**
+ * Robots rules compiled for checking lots of URLs from the same domain.
+ *
+ * Plain prefix rules are stored in a trie, so finding the longest matching prefix
+ * takes one pass over the path, no matter how many rules there are. Rules with
+ * wildcards ('*', or a trailing '$') are kept in a list sorted by length, and are
+ * only checked if they're longer than the best prefix match.
+ *
+ * This gives the same results as SimpleRobotRules.isAllowed(): the longest matching
+ * rule wins, an allow rule wins over a disallow rule of the same length, and the
+ * default is to allow. Wildcards are matched the same (non-backtracking) way too.
+ * For rules that aren't SimpleRobotRules, or URLs we can't handle, we fall back to
+ * calling isAllowed() on the original rules.
+ *
+ */
+public class RobotRulesMatcher {
+
+    private static final String ROBOTS_PATH = "/robots.txt";
+
+    private static class TrieNode {
+        private Map<Character, TrieNode> _children;
+
+        // Only set if a rule ends at this node.
+        private Boolean _allow;
+
+        public TrieNode getChild(char c) {
+            return _children == null ? null : _children.get(c);
+        }
+
+        public TrieNode addChild(char c) {
+            if (_children == null) {
+                _children = new HashMap<Character, TrieNode>(4);
+            }
+
+            TrieNode result = _children.get(c);
+            if (result == null) {
+                result = new TrieNode();
+                _children.put(c, result);
+            }
+
+            return result;
+        }
+    }
+
+    private static class WildcardRule {
+        private int _length;
+        private boolean _allow;
+        private String[] _segments;
+        private boolean _anchored;
+
+        public WildcardRule(String pattern, boolean allow) {
+            _length = pattern.length();
+            _allow = allow;
+
+            _anchored = pattern.endsWith("$");
+            if (_anchored) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+
+            _segments = pattern.split("\\*", -1);
+        }
+
+        public boolean matches(String path) {
+            // First segment has to be at the start of the path.
+            if (!path.startsWith(_segments[0])) {
+                return false;
+            }
+
+            int pos = _segments[0].length();
+            int lastSegment = _segments.length - 1;
+
+            // No wildcards, just a '$'
+            if (lastSegment == 0) {
+                return !_anchored || (pos == path.length());
+            }
+
+            for (int i = 1; i < lastSegment; i++) {
+                int index = path.indexOf(_segments[i], pos);
+                if (index == -1) {
+                    return false;
+                }
+
+                pos = index + _segments[i].length();
+            }
+
+            // SimpleRobotRules doesn't backtrack, so the last segment has to match at the
+            // first place it occurs, and if the rule is anchored then that has to be at the
+            // end of the path. E.g. "/a*b$" doesn't match "/axbxb". A trailing '*' matches
+            // anything, even if the rule is anchored.
+            String last = _segments[lastSegment];
+            if (last.isEmpty()) {
+                return true;
+            }
+            
+            int index = path.indexOf(last, pos);
+            if (index == -1) {
+                return false;
+            } else {
+                return !_anchored || (index + last.length() == path.length());
+            }
+        }
+    }
+
+    private BaseRobotRules _rules;
+
+    // Null if we have to fall back to the original rules.
+    private Boolean _allowAll;
+    private TrieNode _root;
+    private List<WildcardRule> _wildcardRules;
+
+    private RobotRulesMatcher(BaseRobotRules rules) {
+        _rules = rules;
+    }
+
+    /**
+     * Build a matcher for <rules>.
+     *
+     * @param rules rules from parsing a domain's robots.txt
+     * @return matcher that gives the same results as rules.isAllowed()
+     */
+    public static RobotRulesMatcher compile(BaseRobotRules rules) {
+        RobotRulesMatcher result = new RobotRulesMatcher(rules);
+        if (rules.isAllowAll()) {
+            result._allowAll = true;
+        } else if (rules.isAllowNone()) {
+            result._allowAll = false;
+        } else if (rules instanceof SimpleRobotRules) {
+            result.addRules(((SimpleRobotRules)rules).getRobotRules());
+        }
+
+        return result;
+    }
+
+    public BaseRobotRules getRules() {
+        return _rules;
+    }
+
+    /**
+     * Return true if <url> is allowed by the rules.
+     *
+     * @param url URL from the domain these rules are for
+     * @return true if we can fetch the URL
+     */
+    public boolean isAllowed(String url) {
+        if (_allowAll != null) {
+            return _allowAll;
+        } else if (_root == null) {
+            return _rules.isAllowed(url);
+        }
+
+        String path = getPathWithQuery(url);
+        if (path == null) {
+            return _rules.isAllowed(url);
+        }
+
+        return isPathAllowed(path);
+    }
+
+    /**
+     * Return true if <pathWithQuery> is allowed by the rules. This has to be the decoded
+     * path, plus the query (if any), e.g. "/dir/page.html?q=search term".
+     *
+     * @param pathWithQuery path to check
+     * @return true if we can fetch the path
+     */
+    public boolean isPathAllowed(String pathWithQuery) {
+        if (_allowAll != null) {
+            return _allowAll;
+        } else if (_root == null) {
+            throw new IllegalStateException("Can't check paths for rules that can't be compiled");
+        }
+
+        if (pathWithQuery.equals(ROBOTS_PATH)) {
+            return true;
+        }
+
+        // Find the longest plain prefix that matches.
+        int bestLength = -1;
+        boolean bestAllow = true;
+
+        TrieNode node = _root;
+        int pathLength = pathWithQuery.length();
+        for (int i = 0; ; i++) {
+            if (node._allow != null) {
+                bestLength = i;
+                bestAllow = node._allow;
+            }
+
+            if (i == pathLength) {
+                break;
+            }
+
+            node = node.getChild(pathWithQuery.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+
+        // Wildcard rules are sorted longest first, so we can stop as soon as they can't beat
+        // the best prefix match. If they're the same length, an allow rule wins.
+        for (WildcardRule rule : _wildcardRules) {
+            if ((rule._length < bestLength) || ((rule._length == bestLength) && (!rule._allow || bestAllow))) {
+                break;
+            }
+
+            if (rule.matches(pathWithQuery)) {
+                return rule._allow;
+            }
+        }
+
+        return (bestLength == -1) ? true : bestAllow;
+    }
+
+    private void addRules(List<RobotRule> rules) {
+        _root = new TrieNode();
+        _wildcardRules = new ArrayList<WildcardRule>();
+
+        for (RobotRule rule : rules) {
+            String prefix = rule.getPrefix();
+            if ((prefix.indexOf('*') != -1) || prefix.endsWith("$")) {
+                _wildcardRules.add(new WildcardRule(prefix, rule.isAllow()));
+            } else {
+                TrieNode node = _root;
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.addChild(prefix.charAt(i));
+                }
+
+                // If there's an allow and a disallow for the same prefix, allow wins.
+                node._allow = (node._allow == null) ? rule.isAllow() : (node._allow || rule.isAllow());
+            }
+        }
+
+        // Longest first, and allow before disallow for the same length. The sort is
+        // stable, so otherwise we keep the original order.
+        Collections.sort(_wildcardRules, new Comparator<WildcardRule>() {
+
+            @Override
+            public int compare(WildcardRule o1, WildcardRule o2) {
+                if (o1._length != o2._length) {
+                    return o1._length > o2._length ? -1 : 1;
+                } else if (o1._allow != o2._allow) {
+                    return o1._allow ? -1 : 1;
+                } else {
+                    return 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Extract the decoded path and query from <url>, without the cost of creating a URL.
+     * Like SimpleRobotRules, we don't lower-case the path, since rules are case-sensitive.
+     *
+     * @param url absolute URL
+     * @return path plus query, or null if we can't handle the URL
+     */
+    private static String getPathWithQuery(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd == -1) {
+            return null;
+        }
+
+        int length = url.length();
+        int fragmentStart = url.indexOf('#', schemeEnd);
+        if (fragmentStart != -1) {
+            length = fragmentStart;
+        }
+
+        // The host (and optional user info and port) end with the first '/' or '?'.
+        int pathStart = schemeEnd + 3;
+        while ((pathStart < length) && (url.charAt(pathStart) != '/') && (url.charAt(pathStart) != '?')) {
+            pathStart += 1;
+        }
+
+        String result = url.substring(pathStart, length);
+        if (result.length() == 0) {
+            return "/";
+        }
+
+        if ((result.indexOf('%') != -1) || (result.indexOf('+') != -1)) {
+            try {
+                result = URLDecoder.decode(result, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Impossible exception", e);
+            } catch (IllegalArgumentException e) {
+                // Invalid escape sequence.
+                return null;
+            }
+        }
+
+        return result;
+    }
+}
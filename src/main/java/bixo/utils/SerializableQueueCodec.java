@@ -0,0 +1,41 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+
+/**
+ * Codec that uses standard Java serialization, so it works for any element. This is
+ * what DiskQueue uses by default.
+ *
+ */
+public class SerializableQueueCodec<E extends Serializable> extends BaseQueueCodec<E> {
+
+    @Override
+    public void write(E element, ObjectOutput out) throws IOException {
+        out.writeObject(element);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E read(ObjectInput in) throws IOException, ClassNotFoundException {
+        return (E)in.readObject();
+    }
+}
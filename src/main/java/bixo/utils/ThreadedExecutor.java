@@ -16,20 +16,34 @@
  */
 package bixo.utils;
 
+import java.lang.reflect.Method;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A wrapper for ThreadPoolExecutor that implements a specific behavior we need in Bixo.
  * When execute() is called, it succeeds unless all of the threads are busy and the
  * specified timeout is exceeded (no threads finish up in that amount of time).
+ * 
+ * In virtual thread mode (only available when running on a JDK that supports them),
+ * each command runs on its own virtual thread, and the <maxThreads> limit is enforced
+ * by a semaphore instead of by the pool size. So you can use a much larger value for
+ * <maxThreads> without paying the memory cost of platform threads.
  *
  */
 public class ThreadedExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThreadedExecutor.class);
     
     public static final long MAX_POLL_TIME = 1000L;
     
@@ -59,12 +73,64 @@ public class ThreadedExecutor {
     }
 
 
+    /**
+     * Wrapper for commands run in virtual thread mode, which releases the
+     * permit acquired in execute() once the command is done.
+     */
+    private class PermitReleasingRunnable implements Runnable {
+        
+        private Runnable _command;
+        
+        public PermitReleasingRunnable(Runnable command) {
+            _command = command;
+        }
+        
+        @Override
+        public void run() {
+            _activeCount.incrementAndGet();
+            
+            try {
+                _command.run();
+            } finally {
+                _activeCount.decrementAndGet();
+                _permits.release();
+            }
+        }
+    }
+
     private long _requestTimeout;
     private ThreadPoolExecutor _pool;
     
+    // Only used in virtual thread mode.
+    private ExecutorService _virtualExecutor;
+    private Semaphore _permits;
+    private AtomicInteger _activeCount;
+    
     public ThreadedExecutor(int maxThreads, long requestTimeout) {
+        this(maxThreads, requestTimeout, false);
+    }
+    
+    /**
+     * Create an executor that runs at most <maxThreads> commands at the same time.
+     * 
+     * @param maxThreads Max number of commands that can be active.
+     * @param requestTimeout Max time (in milliseconds) to wait in execute() for a command to finish.
+     * @param useVirtualThreads Run each command on a virtual thread, if the JDK supports it.
+     */
+    public ThreadedExecutor(int maxThreads, long requestTimeout, boolean useVirtualThreads) {
         _requestTimeout = requestTimeout;
         
+        if (useVirtualThreads) {
+            _virtualExecutor = makeVirtualThreadExecutor();
+            if (_virtualExecutor != null) {
+                _permits = new Semaphore(maxThreads, true);
+                _activeCount = new AtomicInteger(0);
+                return;
+            }
+            
+            LOGGER.warn("Virtual threads not supported by this JDK, using platform threads");
+        }
+        
         // With the "always offer with a timeout" queue, the maximumPoolSize should always
         // be set to the same as the corePoolSize, as otherwise things get very inefficient
         // since each execute() call will will delay by <timeout> even if we could add more
@@ -84,7 +150,33 @@ public class ThreadedExecutor {
      * @throws RejectedExecutionException
      */
     public void execute(Runnable command) throws RejectedExecutionException {
-        _pool.execute(command);
+        if (_virtualExecutor == null) {
+            _pool.execute(command);
+            return;
+        }
+        
+        try {
+            if (!_permits.tryAcquire(_requestTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("No permit available after " + _requestTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for permit");
+        }
+        
+        try {
+            _virtualExecutor.execute(new PermitReleasingRunnable(command));
+        } catch (RejectedExecutionException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return true if commands are being run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return _virtualExecutor != null;
     }
     
     
@@ -94,7 +186,11 @@ public class ThreadedExecutor {
      * @return count of active threads
      */
     public int getActiveCount() {
-        return _pool.getActiveCount();
+        if (_virtualExecutor == null) {
+            return _pool.getActiveCount();
+        } else {
+            return _activeCount.get();
+        }
     }
     
     /**
@@ -104,15 +200,17 @@ public class ThreadedExecutor {
      * @throws InterruptedException 
      */
     public boolean terminate(long terminationTimeout) throws InterruptedException {
+        ExecutorService executor = (_virtualExecutor == null) ? _pool : _virtualExecutor;
         
         // First just wait for threads to terminate naturally.
-        _pool.shutdown();
-        if (_pool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
+        executor.shutdown();
+        if (executor.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
             return true;
         }
         
-        // We need to do a hard shutdown
-        List<Runnable> remainingTasks = _pool.shutdownNow();
+        // We need to do a hard shutdown. This interrupts all active threads, which
+        // works the same way for virtual threads.
+        List<Runnable> remainingTasks = executor.shutdownNow();
         if (remainingTasks.size() != 0) {
             // Houston, we have a problem. Since ThreadedExecutor isn't multi-threaded, we should
             // never hit the one edge case where this _might_ be true (execute was called, waiting
@@ -122,4 +220,35 @@ public class ThreadedExecutor {
         
         return false;
     }
+    
+    /**
+     * Wait for commands that were interrupted by a hard shutdown in terminate() to finish.
+     * 
+     * @param timeout Max time (in milliseconds) to wait
+     * @return true if all commands have finished
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        ExecutorService executor = (_virtualExecutor == null) ? _pool : _virtualExecutor;
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Use reflection to get a virtual-thread-per-task executor, since we still
+     * have to compile (and run) on JDKs that don't support virtual threads.
+     * 
+     * @return executor, or null if not supported.
+     */
+    private static ExecutorService makeVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            // Could be UnsupportedOperationException (wrapped), if preview features aren't enabled.
+            LOGGER.debug("Can't create virtual thread executor", e);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.datum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import bixo.hadoop.DiskBytesWritable;
+
+public class ContentBytesTest {
+
+    private static byte[] makeContent(int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte)i;
+        }
+        
+        return result;
+    }
+    
+    private static byte[] serialize(ContentBytes content) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        content.write(dos);
+        dos.close();
+        return bos.toByteArray();
+    }
+    
+    @Test
+    public void testSpilledContent() throws Exception {
+        byte[] expected = makeContent(100000);
+        
+        DiskBytesWritable spilled = new DiskBytesWritable();
+        spilled.append(expected, 0, 30000);
+        spilled.append(expected, 30000, expected.length - 30000);
+        assertTrue(spilled.isSpilled());
+        
+        ContentBytes content = new ContentBytes(spilled);
+        assertTrue(content.isSpilled());
+        assertEquals(expected.length, content.getLength());
+        
+        // Serialized format must be the same as for in-memory content.
+        byte[] serialized = serialize(content);
+        assertTrue(content.isSpilled());
+        assertArrayEquals(serialize(new ContentBytes(expected)), serialized);
+        
+        ContentBytes copy = new ContentBytes();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(serialized)));
+        assertFalse(copy.isSpilled());
+        assertArrayEquals(expected, copy.getBytes());
+        
+        assertArrayEquals(expected, IOUtils.toByteArray(content.getInputStream()));
+        
+        // Asking for the bytes loads them into memory.
+        assertArrayEquals(expected, content.getBytes());
+        assertFalse(content.isSpilled());
+        
+        content.dispose();
+        assertArrayEquals(expected, content.getBytes());
+    }
+    
+    @Test
+    public void testDiskBytesWritableSerialization() throws Exception {
+        byte[] expected = makeContent(20000);
+
+        DiskBytesWritable spilled = new DiskBytesWritable(new byte[1000]);
+        spilled.setSize(0);
+        spilled.append(expected);
+        assertEquals(expected.length, spilled.getSize());
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        spilled.write(new DataOutputStream(bos));
+        
+        DiskBytesWritable copy = new DiskBytesWritable();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertArrayEquals(expected, copy.get());
+        
+        spilled.dispose();
+        copy.dispose();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.BaseFetchException;
+import bixo.utils.ConfigUtils;
+import cascading.flow.FlowProcess;
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.LoggingFlowProcess;
+
+public class FetchTaskTest {
+
+    @SuppressWarnings("serial")
+    private static class EchoFetcher extends BaseFetcher {
+
+        public EchoFetcher(FetcherPolicy fetcherPolicy) {
+            super(1, fetcherPolicy, ConfigUtils.BIXO_TEST_AGENT);
+        }
+
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            return new FetchedDatum(scoredUrl);
+        }
+
+        @Override
+        public void abort() {
+            // Do nothing
+        }
+    }
+    
+    private static class TestFetchMgr implements IFetchMgr {
+        
+        @SuppressWarnings("rawtypes")
+        private LoggingFlowProcess _process = new LoggingFlowProcess(FlowProcess.NULL);
+        private List<Tuple> _results = new ArrayList<Tuple>();
+        private List<String> _finished = new ArrayList<String>();
+        private FetchTask _delayedTask;
+        private long _delay;
+        
+        @SuppressWarnings("rawtypes")
+        @Override
+        public LoggingFlowProcess getProcess() {
+            return _process;
+        }
+
+        @Override
+        public void collect(Tuple tuple) {
+            _results.add(tuple);
+        }
+
+        @Override
+        public void finished(String ref) {
+            _finished.add(ref);
+        }
+
+        @Override
+        public void resumeLater(FetchTask task, long delay) {
+            _delayedTask = task;
+            _delay = delay;
+        }
+        
+        public FetchTask getDelayedTask() {
+            FetchTask result = _delayedTask;
+            _delayedTask = null;
+            return result;
+        }
+    }
+    
+    private static List<ScoredUrlDatum> makeUrls(int numUrls) {
+        List<ScoredUrlDatum> result = new ArrayList<ScoredUrlDatum>();
+        for (int i = 0; i < numUrls; i++) {
+            result.add(new ScoredUrlDatum("http://domain.com/page" + i + ".html"));
+        }
+        
+        return result;
+    }
+    
+    private static BaseFetcher makeFetcher(long minPageFetchInterval) {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.seMinPageFetchInterval(minPageFetchInterval);
+        return new EchoFetcher(policy);
+    }
+    
+    @Test
+    public void testNoDelay() throws Exception {
+        TestFetchMgr mgr = new TestFetchMgr();
+        FetchTask task = new FetchTask(mgr, makeFetcher(0), makeUrls(3), "domain.com");
+        task.run();
+        
+        assertEquals(3, mgr._results.size());
+        assertEquals(1, mgr._finished.size());
+        assertNull(mgr.getDelayedTask());
+    }
+    
+    @Test
+    public void testResumingAfterDelay() throws Exception {
+        TestFetchMgr mgr = new TestFetchMgr();
+        FetchTask task = new FetchTask(mgr, makeFetcher(10 * 1000L), makeUrls(2), "domain.com");
+        
+        // We fetch one page, and then hand the task back instead of sleeping.
+        task.run();
+        assertEquals(1, mgr._results.size());
+        assertEquals(0, mgr._finished.size());
+        assertSame(task, mgr.getDelayedTask());
+        assertTrue((mgr._delay > 0) && (mgr._delay <= 10 * 1000L));
+        
+        // We still delay after the last page.
+        task.run();
+        assertEquals(2, mgr._results.size());
+        assertEquals(0, mgr._finished.size());
+        assertSame(task, mgr.getDelayedTask());
+        
+        task.run();
+        assertEquals(2, mgr._results.size());
+        assertEquals(1, mgr._finished.size());
+        assertNull(mgr.getDelayedTask());
+    }
+    
+    @Test
+    public void testSkippingRemaining() throws Exception {
+        TestFetchMgr mgr = new TestFetchMgr();
+        FetchTask task = new FetchTask(mgr, makeFetcher(10 * 1000L), makeUrls(3), "domain.com");
+        
+        task.run();
+        assertSame(task, mgr.getDelayedTask());
+
+        task.skipRemaining();
+        assertEquals(3, mgr._results.size());
+        assertEquals(1, mgr._finished.size());
+        
+        Tuple lastResult = mgr._results.get(2);
+        assertTrue(lastResult.getObject(lastResult.size() - 1) instanceof AbortedFetchException);
+    }
+}
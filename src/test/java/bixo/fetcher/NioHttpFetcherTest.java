@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.fetcher.simulation.SimulationWebServer;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.ConfigUtils;
+
+public class NioHttpFetcherTest extends SimulationWebServer {
+
+    @Test
+    public final void testSimpleFetch() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        try {
+            ScoredUrlDatum scoredUrl = new ScoredUrlDatum(url);
+            scoredUrl.setPayloadValue("payload-field-1", 1);
+            FetchedDatum result = fetcher.get(scoredUrl);
+
+            assertEquals(url, result.getFetchedUrl());
+            assertEquals("text/html", result.getHeaders().getFirst(HttpHeaderNames.CONTENT_TYPE));
+            assertTrue(result.getContentLength() > 0);
+            assertEquals("127.0.0.1", result.getHostAddress());
+            assertEquals(1, result.getPayloadValue("payload-field-1"));
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testHostResolver() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        final AtomicInteger numLookups = new AtomicInteger();
+        fetcher.setHostResolver(new BaseHostResolver() {
+
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                numLookups.incrementAndGet();
+                return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+            }
+        });
+
+        try {
+            // This host only exists for our resolver.
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://bixo-test-host:8089/simple-page.html"));
+            assertTrue(result.getContentLength() > 0);
+            assertTrue(numLookups.get() > 0);
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMissingPage() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/no-such-page.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (HttpFetchException e) {
+            assertEquals(404, e.getHttpStatus());
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testTruncation() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(1000);
+        fetcher.setMaxContentSize("image/png", 1500);
+
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/karlie.html"));
+            assertEquals(1000, result.getContentLength());
+
+            // Make sure the connection is still usable after truncating.
+            result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/karlie.html"));
+            assertEquals(1000, result.getContentLength());
+
+            try {
+                fetcher.get(new ScoredUrlDatum("http://localhost:8089/bixolabs_mining.png"));
+                fail("Aborted fetch exception not thrown");
+            } catch (AbortedFetchException e) {
+                assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+            }
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testCompleteResponse() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/karlie.html";
+
+        try {
+            // Reading exactly Content-Length bytes is a normal, complete response, so we get
+            // all of the content, and the pooled connection keeps working.
+            for (int i = 0; i < 3; i++) {
+                FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+                int contentLength = Integer.parseInt(result.getHeaders().getFirst(HttpHeaderNames.CONTENT_LENGTH));
+                assertEquals(contentLength, result.getContentLength());
+            }
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testSlowServerTermination() throws Exception {
+        Server server = startServer(new RandomResponseHandler(20000, 2 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(20000);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/test.html"));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.SLOW_RESPONSE_RATE, e.getAbortReason());
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMimeTypeFiltering() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/plain");
+        policy.setValidMimeTypes(validMimeTypes);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testRedirects() throws Exception {
+        Server server = startServer(new RedirectResponseHandler("/base", "http://localhost:8089/simple-page.html"), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/base"));
+            assertEquals("http://localhost:8089/simple-page.html", result.getFetchedUrl());
+            assertNull(result.getNewBaseUrl());
+            assertEquals(1, result.getNumRedirects());
+        } finally {
+            fetcher.close();
+        }
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRedirectMode(RedirectMode.FOLLOW_NONE);
+        fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            fetcher.get(new ScoredUrlDatum("http://localhost:8089/base"));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("http://localhost:8089/simple-page.html", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED, e.getReason());
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+}
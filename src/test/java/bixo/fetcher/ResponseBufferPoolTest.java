@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ResponseBufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        ResponseBufferPool pool = new ResponseBufferPool(1, 100, 1000);
+        
+        byte[] buffer = pool.acquire(Integer.MAX_VALUE);
+        assertEquals(100, buffer.length);
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(Integer.MAX_VALUE));
+        assertEquals(1, pool.getHits());
+        
+        // Nothing in the pool now, so we get a new buffer, sized by the max.
+        byte[] smallBuffer = pool.acquire(10);
+        assertEquals(10, smallBuffer.length);
+        assertEquals(2, pool.getMisses());
+    }
+    
+    @Test
+    public void testGrowing() {
+        ResponseBufferPool pool = new ResponseBufferPool(1, 100, 1000);
+        
+        byte[] buffer = pool.acquire(1500);
+        buffer[99] = 1;
+        
+        buffer = pool.grow(buffer, 100, 1500);
+        assertEquals(200, buffer.length);
+        assertEquals(1, buffer[99]);
+        
+        buffer = pool.grow(buffer, 200, 300);
+        assertEquals(300, buffer.length);
+        
+        // A grown buffer is reused, as long as it's not too big.
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(1500));
+        
+        byte[] bigBuffer = pool.grow(new byte[800], 800, 2000);
+        assertEquals(1600, bigBuffer.length);
+        pool.release(bigBuffer);
+        assertNotSame(bigBuffer, pool.acquire(1500));
+    }
+}
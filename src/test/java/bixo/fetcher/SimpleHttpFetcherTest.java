@@ -44,9 +44,11 @@ import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.RedirectMode;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
@@ -147,6 +149,31 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    private class ConditionalResponseHandler extends AbstractHandler {
+        
+        private String _etag;
+        
+        public ConditionalResponseHandler(String etag) {
+            _etag = etag;
+        }
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws HttpException, IOException {
+            if (_etag.equals(request.getHeader(HttpHeaderNames.IF_NONE_MATCH))) {
+                response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+                response.setHeader(HttpHeaderNames.ETAG, _etag);
+                return;
+            }
+            
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setHeader(HttpHeaderNames.ETAG, _etag);
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
     @Test
     public final void testConnectionTimeout() throws Exception {
         Server server = startServer(new ResourcesResponseHandler(), 8089);
@@ -163,6 +190,31 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
     
+    @Test
+    public final void testConditionalGet() throws Exception {
+        Server server = startServer(new ConditionalResponseHandler("\"abc\""), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/page.html";
+        
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals("\"abc\"", result.getHeaders().getFirst(HttpHeaderNames.ETAG));
+            
+            ScoredUrlDatum scoredUrl = new ScoredUrlDatum(url);
+            scoredUrl.setPayloadValue(ScoredUrlDatum.ETAG_PAYLOAD_KEY, "\"abc\"");
+            
+            try {
+                fetcher.get(scoredUrl);
+                fail("Exception not thrown");
+            } catch (HttpFetchException e) {
+                assertEquals(HttpStatus.SC_NOT_MODIFIED, e.getHttpStatus());
+                assertEquals(UrlStatus.UNMODIFIED, e.mapToUrlStatus());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
     @Test
     public final void testStaleConnection() throws Exception {
         Server server = startServer(new ResourcesResponseHandler(), 8089);
@@ -254,6 +306,54 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    @Test
+    public final void testAbortedFetch() throws Exception {
+        // Need to read in lots of data that we get very slowly
+        Server server = startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+
+        // Set no response rate, so that doesn't trigger an exception
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+
+        final BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        final String[] failMsg = new String[1];
+        
+        Thread t = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                String url = "http://localhost:8089/test.html";
+                try {
+                    fetcher.get(new ScoredUrlDatum(url));
+                    failMsg[0] = "No exception thrown, should have thrown an aborted by interrupt exception";
+                } catch (AbortedFetchException e) {
+                    if (e.getAbortReason() != AbortedFetchReason.INTERRUPTED) {
+                        failMsg[0] = "Wrong abort exception thrown, should have thrown an aborted by interrupt exception";
+                    }
+                } catch (BaseFetchException e) {
+                    failMsg[0] = "Wrong exception thrown, should have thrown an aborted by interrupt exception";
+                }
+            }
+        });
+        
+        t.start();
+        
+        // Give the fetch time to start reading the response, which would take 10 seconds.
+        Thread.sleep(1000L);
+        
+        long startTime = System.currentTimeMillis();
+        fetcher.abort();
+        t.join(5 * 1000L);
+        
+        assertTrue("Fetch wasn't aborted", !t.isAlive());
+        assertTrue(System.currentTimeMillis() - startTime < 5 * 1000L);
+        server.stop();
+        
+        if (failMsg[0] != null) {
+            fail(failMsg[0]);
+        }
+    }
+
     @Test
     public final void testNotTerminatingSlowServers() throws Exception {
         // Return 1K bytes at 2K bytes/second - would normally trigger an
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.utils.DiskQueue;
+
+public class FetchSetSchedulerTest {
+
+    private static class MapReadyTimes implements FetchSetScheduler.ReadyTimeSource {
+
+        private Map<String, Long> _readyTimes = new HashMap<String, Long>();
+
+        public void set(String ref, long readyTime) {
+            _readyTimes.put(ref, readyTime);
+        }
+
+        @Override
+        public long getReadyTime(String ref) {
+            Long result = _readyTimes.get(ref);
+            return result == null ? 0 : result;
+        }
+    }
+
+    private static FetchSetDatum makeFetchSet(String ref, int numUrls, long fetchTime) {
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>(numUrls);
+        for (int i = 0; i < numUrls; i++) {
+            urls.add(new ScoredUrlDatum("http://" + ref + "/page-" + i, ref, UrlStatus.UNFETCHED, 1.0));
+        }
+
+        return new FetchSetDatum(urls, fetchTime, 0, ref.hashCode(), ref);
+    }
+
+    @Test
+    public void testOrderingByReadyTimeAndSize() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        readyTimes.set("later.com", 5000);
+
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100);
+        scheduler.add(makeFetchSet("later.com", 10, 0));
+        scheduler.add(makeFetchSet("small.com", 1, 0));
+        scheduler.add(makeFetchSet("big.com", 5, 0));
+
+        assertEquals(3, scheduler.size());
+        assertEquals("big.com", scheduler.pollReady(1000).getGroupingRef());
+        assertEquals("small.com", scheduler.pollReady(1000).getGroupingRef());
+
+        // later.com isn't ready until 5000.
+        assertNull(scheduler.pollReady(1000));
+        assertEquals(5000, scheduler.getNextReadyTime());
+        assertEquals("later.com", scheduler.pollReady(5000).getGroupingRef());
+        assertTrue(scheduler.isEmpty());
+        assertEquals(Long.MAX_VALUE, scheduler.getNextReadyTime());
+    }
+
+    @Test
+    public void testPerRefFifo() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100);
+
+        scheduler.add(makeFetchSet("domain.com", 1, 100));
+        scheduler.add(makeFetchSet("domain.com", 10, 200));
+        assertTrue(scheduler.hasQueued("domain.com"));
+
+        // Even though the second set is bigger, the first one has to go first.
+        assertEquals(100, scheduler.pollReady(0).getFetchTime());
+
+        // Now the ref is active, so nothing is ready.
+        readyTimes.set("domain.com", Long.MAX_VALUE);
+        assertNull(scheduler.pollReady(1000));
+
+        // When it's done, it becomes pending, and we have to tell the scheduler.
+        readyTimes.set("domain.com", 2000);
+        scheduler.release("domain.com");
+        assertNull(scheduler.pollReady(1000));
+        assertEquals(200, scheduler.pollReady(2000).getFetchTime());
+        assertFalse(scheduler.hasQueued("domain.com"));
+    }
+
+    @Test
+    public void testActiveRefSortsLast() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100);
+
+        scheduler.add(makeFetchSet("active.com", 10, 0));
+        scheduler.add(makeFetchSet("idle.com", 1, 0));
+
+        // active.com becomes active after it's been queued.
+        readyTimes.set("active.com", Long.MAX_VALUE);
+        assertEquals("idle.com", scheduler.pollReady(0).getGroupingRef());
+        assertNull(scheduler.pollReady(0));
+
+        // But it's still returned if we don't care about being ready.
+        assertEquals("active.com", scheduler.poll().getGroupingRef());
+    }
+
+    @Test
+    public void testOverflow() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 2);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.add(makeFetchSet("domain-" + i + ".com", 1, i));
+        }
+
+        assertEquals(10, scheduler.size());
+
+        for (int i = 0; i < 10; i++) {
+            FetchSetDatum datum = scheduler.pollReady(0);
+            assertEquals("domain-" + i + ".com", datum.getGroupingRef());
+        }
+
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testUrlLimit() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100, 10, DiskQueue.NO_BYTES_LIMIT);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.add(makeFetchSet("domain-" + i + ".com", 4, i));
+            assertTrue(scheduler.getUrlsInMemory() <= 10);
+        }
+
+        assertEquals(10, scheduler.size());
+        assertEquals(8, scheduler.getUrlsInMemory());
+
+        for (int i = 0; i < 10; i++) {
+            FetchSetDatum datum = scheduler.pollReady(0);
+            assertEquals("domain-" + i + ".com", datum.getGroupingRef());
+            assertTrue(scheduler.getUrlsInMemory() <= 10);
+        }
+
+        assertTrue(scheduler.isEmpty());
+        assertEquals(0, scheduler.getUrlsInMemory());
+    }
+
+    @Test
+    public void testUrlLimitWithInterleavedAdds() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100, 10, DiskQueue.NO_BYTES_LIMIT);
+
+        // The overflow queue is always busy, and its head often has to wait for room.
+        int numAdded = 0;
+        int numPolled = 0;
+        for (int i = 0; i < 20; i++) {
+            scheduler.add(makeFetchSet("domain-" + numAdded + ".com", 4, numAdded));
+            numAdded += 1;
+            scheduler.add(makeFetchSet("domain-" + numAdded + ".com", 4, numAdded));
+            numAdded += 1;
+
+            FetchSetDatum datum = scheduler.pollReady(0);
+            assertEquals("domain-" + numPolled + ".com", datum.getGroupingRef());
+            numPolled += 1;
+
+            assertEquals(numAdded - numPolled, scheduler.size());
+            assertTrue(scheduler.getUrlsInMemory() <= 10);
+        }
+
+        while (numPolled < numAdded) {
+            FetchSetDatum datum = scheduler.pollReady(0);
+            assertEquals("domain-" + numPolled + ".com", datum.getGroupingRef());
+            numPolled += 1;
+        }
+
+        assertTrue(scheduler.isEmpty());
+        assertEquals(0, scheduler.getUrlsInMemory());
+    }
+
+    @Test
+    public void testByteLimit() {
+        MapReadyTimes readyTimes = new MapReadyTimes();
+        FetchSetScheduler scheduler = new FetchSetScheduler(readyTimes, 100, Integer.MAX_VALUE, 2000);
+
+        // Fetch sets with lots of URLs are bigger, so fewer of them fit.
+        for (int i = 0; i < 20; i++) {
+            scheduler.add(makeFetchSet("domain-" + i + ".com", 1 + (i % 10), i));
+            assertTrue(scheduler.getBytesInMemory() <= 2000);
+        }
+
+        assertEquals(20, scheduler.size());
+        assertTrue(scheduler.getBytesInMemory() > 0);
+
+        for (int i = 0; i < 20; i++) {
+            FetchSetDatum datum = scheduler.pollReady(0);
+            assertEquals("domain-" + i + ".com", datum.getGroupingRef());
+            assertTrue(scheduler.getBytesInMemory() <= 2000);
+        }
+
+        assertTrue(scheduler.isEmpty());
+        assertEquals(0, scheduler.getBytesInMemory());
+    }
+}
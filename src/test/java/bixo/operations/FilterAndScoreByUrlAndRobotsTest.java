@@ -64,6 +64,16 @@ public class FilterAndScoreByUrlAndRobotsTest {
         return iterValues;
     }
     
+    private List<TupleEntry> getGroupedurlDatumList(String domain, int numUrls) {
+        List<TupleEntry> iterValues = new ArrayList<TupleEntry>();
+        for (int i = 0; i < numUrls; i++) {
+            String url = domain + "/page-" + i + ".html";
+            iterValues.add(new GroupedUrlDatum(url, domain).getTupleEntry());
+        }
+        
+        return iterValues;
+    }
+    
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Test
     public void testUsingAllThreads() throws Exception {
@@ -149,4 +159,45 @@ public class FilterAndScoreByUrlAndRobotsTest {
         }
     }
 
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testStreamingBigGroup() throws Exception {
+        final int numUrls = 250;
+        
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new UserAgent("testAgent", "crawler@domain.com", "http://www.domain.com"));
+        BaseScoreGenerator scorer = new FixedScoreGenerator(1.0);
+        BaseRobotsParser parser = new SimpleRobotRulesParser();
+        FilterAndScoreByUrlAndRobots op = new FilterAndScoreByUrlAndRobots(fetcher, parser, scorer);
+        
+        FlowProcess fp = Mockito.mock(NullFlowProcess.class);
+        
+        OperationCall<NullContext> oc = Mockito.mock(OperationCall.class);
+        BufferCall<NullContext> bc = Mockito.mock(BufferCall.class);
+        
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        
+        Mockito.when(bc.getGroup()).thenReturn(new TupleEntry(new Tuple("http://localhost:8089")));
+        Mockito.when(bc.getArgumentsIterator()).thenReturn(getGroupedurlDatumList("http://localhost:8089", numUrls).iterator());
+        Mockito.when(bc.getOutputCollector()).thenReturn(collector);
+        
+        TestWebServer server = null;
+        
+        try {
+            final String disallowAllRobots = "User-agent: *" + CRLF
+            + "Disallow: /";
+
+            server = new TestWebServer(new StringResponseHandler("text/plain", disallowAllRobots), 8089);
+            op.prepare(fp, oc);
+
+            // Since the group is bigger than the lookahead, all of the URLs get
+            // processed before operate() returns.
+            op.operate(fp, bc);
+            Mockito.verify(collector, Mockito.times(numUrls)).add(Mockito.argThat(new MatchBlockedByRobotsKey()));
+            
+            op.flush(fp, oc);
+        } finally {
+            server.stop();
+        }
+    }
+
 }
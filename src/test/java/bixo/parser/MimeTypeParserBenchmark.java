@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.fetcher.HttpHeaderNames;
+
+/**
+ * Measure SimpleParser throughput over the mixed HTML/PDF/XML documents in
+ * the parser-corpus test resources, with and without picking the Tika parser
+ * from the declared mime type.
+ *
+ * Usage: MimeTypeParserBenchmark [num rounds] [passes per round]
+ *
+ */
+public class MimeTypeParserBenchmark {
+
+    private static final String CORPUS_DIR = "/parser-corpus/";
+    
+    public static void main(String[] args) throws Exception {
+        int numRounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int numPasses = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+        List<FetchedDatum> corpus = loadCorpus();
+        
+        for (int round = 0; round < numRounds; round++) {
+            long autoDetectTime = parseCorpus(corpus, numPasses, false);
+            long declaredTime = parseCorpus(corpus, numPasses, true);
+            
+            int numDocs = corpus.size() * numPasses;
+            System.out.println(String.format("Round %d: auto-detect %d docs/s, declared mime type %d docs/s",
+                            round, perSecond(numDocs, autoDetectTime), perSecond(numDocs, declaredTime)));
+        }
+    }
+
+    private static long parseCorpus(List<FetchedDatum> corpus, int numPasses, boolean useDeclaredMimeType) throws Exception {
+        ParserPolicy policy = new ParserPolicy();
+        policy.setUseDeclaredMimeType(useDeclaredMimeType);
+        SimpleParser parser = new SimpleParser(policy);
+        
+        try {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numPasses; i++) {
+                for (FetchedDatum fetchedDatum : corpus) {
+                    parser.parse(fetchedDatum);
+                }
+            }
+            
+            return System.nanoTime() - startTime;
+        } finally {
+            parser.close();
+        }
+    }
+    
+    private static List<FetchedDatum> loadCorpus() throws Exception {
+        List<FetchedDatum> result = new ArrayList<FetchedDatum>();
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(getResource("corpus.txt"), "UTF-8"));
+        
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+                
+                String[] fields = line.split("\t");
+                String url = "http://domain.com/" + fields[0];
+                String contentType = fields[1];
+                
+                HttpHeaders headers = new HttpHeaders();
+                headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+                
+                InputStream is = getResource(fields[0]);
+                try {
+                    ContentBytes content = new ContentBytes(IOUtils.toByteArray(is));
+                    result.add(new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        
+        return result;
+    }
+    
+    private static InputStream getResource(String name) {
+        InputStream result = MimeTypeParserBenchmark.class.getResourceAsStream(CORPUS_DIR + name);
+        if (result == null) {
+            throw new IllegalStateException("Missing corpus file: " + name);
+        }
+        
+        return result;
+    }
+    
+    private static long perSecond(int count, long nanoseconds) {
+        return (count * 1000000000L) / Math.max(1, nanoseconds);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class ParseWorkerPoolTest {
+
+    /**
+     * Simulate a parser that's hung, and ignores interrupts, until it's released.
+     */
+    private static class HungParse implements Callable<String> {
+        private CountDownLatch _release = new CountDownLatch(1);
+        
+        @Override
+        public String call() throws Exception {
+            while (true) {
+                try {
+                    _release.await();
+                    return "released";
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        }
+        
+        public void release() {
+            _release.countDown();
+        }
+    }
+    
+    private static class QuickParse implements Callable<String> {
+        
+        @Override
+        public String call() throws Exception {
+            return Thread.currentThread().getName();
+        }
+    }
+    
+    @Test
+    public void testReusingThreads() throws Exception {
+        ParseWorkerPool pool = new ParseWorkerPool(1, 1);
+        
+        String threadName = pool.submit(new QuickParse(), 1000L).get();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(threadName, pool.submit(new QuickParse(), 1000L).get());
+        }
+        
+        pool.close();
+    }
+    
+    @Test
+    public void testTimeout() throws Exception {
+        ParseWorkerPool pool = new ParseWorkerPool(1, 1);
+        
+        HungParse hung = new HungParse();
+        Future<String> result = pool.submit(hung, 200L);
+        
+        try {
+            result.get();
+            fail("Should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        
+        assertEquals(1, pool.getNumTimeouts());
+        assertEquals(1, pool.getNumQuarantined());
+        assertEquals(1, pool.getNumHung());
+        
+        // We've got a replacement worker.
+        assertEquals(1, pool.getNumWorkers());
+        String threadName = pool.submit(new QuickParse(), 1000L).get();
+        
+        // Once the hung thread is done, it goes away.
+        hung.release();
+        long endTime = System.currentTimeMillis() + 5000L;
+        while ((pool.getNumHung() > 0) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+        
+        assertEquals(0, pool.getNumHung());
+        assertEquals(threadName, pool.submit(new QuickParse(), 1000L).get());
+        pool.close();
+    }
+    
+    @Test
+    public void testMaxQuarantined() throws Exception {
+        ParseWorkerPool pool = new ParseWorkerPool(1, 1);
+        
+        HungParse hung1 = new HungParse();
+        HungParse hung2 = new HungParse();
+        Future<String> result1 = pool.submit(hung1, 100L);
+        Future<String> result2 = pool.submit(hung2, 100L);
+        
+        try {
+            result1.get();
+            fail("Should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        
+        try {
+            result2.get();
+            fail("Should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        
+        // The second hung thread can't be replaced.
+        assertEquals(0, pool.getNumWorkers());
+        assertEquals(2, pool.getNumHung());
+        
+        try {
+            pool.submit(new QuickParse(), 1000L);
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        // Once one of the hung threads exits, we can replace it.
+        hung1.release();
+        long endTime = System.currentTimeMillis() + 5000L;
+        while ((pool.getNumWorkers() == 0) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+        
+        assertEquals(1, pool.getNumWorkers());
+        pool.submit(new QuickParse(), 1000L).get();
+        
+        hung2.release();
+        pool.close();
+    }
+    
+    @Test
+    public void testClose() throws Exception {
+        ParseWorkerPool pool = new ParseWorkerPool(2, 1);
+        pool.close();
+        
+        try {
+            pool.submit(new QuickParse(), 1000L);
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+    }
+}
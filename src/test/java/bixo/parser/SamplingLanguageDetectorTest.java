@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SamplingLanguageDetectorTest {
+
+    private static final String ENGLISH_PARAGRAPH =
+        "The crawler fetches pages from many different web sites at the same time, but it is careful " +
+        "to be polite to each one of them. It waits between requests to the same server, and it " +
+        "follows the rules that the owner of the site has put in the robots file. After a page has " +
+        "been fetched, the parser extracts the text, the title, and all of the links that it can find, " +
+        "so that the next round of the crawl knows which pages should be visited. This is how we are " +
+        "able to build a large collection of documents without causing problems for anyone. ";
+    
+    private static String makeEnglishText(int minLength) {
+        StringBuilder result = new StringBuilder();
+        while (result.length() < minLength) {
+            result.append(ENGLISH_PARAGRAPH);
+        }
+        
+        return result.toString();
+    }
+    
+    @Test
+    public void testMaxChars() throws Exception {
+        // Never confident enough to stop early.
+        SamplingLanguageDetector detector = new SamplingLanguageDetector(4096, 1.0);
+        detector.addText(makeEnglishText(10000));
+        
+        assertTrue(detector.isDone());
+        assertEquals(4096, detector.getNumChars());
+        assertEquals("en", detector.getLanguage());
+    }
+    
+    @Test
+    public void testStopsWhenConfident() throws Exception {
+        String text = makeEnglishText(50 * 1024);
+        SamplingLanguageDetector detector = new SamplingLanguageDetector(100 * 1024, 0.0);
+        
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i += 100) {
+            detector.characters(chars, i, Math.min(100, chars.length - i));
+        }
+        
+        assertTrue(detector.isDone());
+        assertTrue(detector.getNumChars() < text.length());
+        assertEquals("en", detector.getLanguage());
+        
+        double confidence = detector.getConfidence();
+        assertTrue(confidence > 0.0);
+        assertTrue(confidence <= 1.0);
+    }
+    
+    @Test
+    public void testNoText() throws Exception {
+        SamplingLanguageDetector detector = new SamplingLanguageDetector();
+        assertFalse(detector.isDone());
+        assertEquals("", detector.getLanguage());
+        assertEquals(0.0, detector.getConfidence(), 0.0);
+    }
+    
+    @Test
+    public void testReset() throws Exception {
+        SamplingLanguageDetector detector = new SamplingLanguageDetector(1000, 1.0);
+        detector.addText(makeEnglishText(5000));
+        assertTrue(detector.isDone());
+        
+        detector.reset();
+        assertFalse(detector.isDone());
+        assertEquals(0, detector.getNumChars());
+        assertEquals("", detector.getLanguage());
+    }
+}
@@ -387,6 +387,40 @@ public class SimpleParserTest {
         Assert.assertEquals(0, parsedDatum.getOutlinks().length);
     }
     
+    @Test
+    public void testUseDeclaredMimeType() throws Exception {
+        String html = readFromFile("parser-files/simple-content.html");
+        
+        String url = "http://domain.com/simple-content.html";
+        String contentType = "text/html; charset=utf-8";
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+        FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+        
+        ParserPolicy policy = new ParserPolicy();
+        policy.setUseDeclaredMimeType(true);
+        SimpleParser parser = new SimpleParser(policy);
+        ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+        
+        Assert.assertEquals("Simple", parsedDatum.getTitle());
+        compareTermsInStrings("Simple Content", parsedDatum.getParsedText());
+        
+        // A PDF that the server says is HTML should get parsed as a PDF.
+        url = "http://domain.com/fetch-policy.pdf";
+        contentType = "text/html";
+        headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        InputStream is = SimpleParserTest.class.getResourceAsStream("/parser-corpus/fetch-policy.pdf");
+        content = new ContentBytes(IOUtils.toByteArray(is));
+        is.close();
+        fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+        
+        parsedDatum = parser.parse(fetchedDatum);
+        Assert.assertTrue(parsedDatum.getParsedText().contains("Fetch policy notes"));
+        parser.close();
+    }
+    
     @Test
     public void testLanguageDetectionHttpHeader() throws Exception {
 		// Read in test data from test/resources
@@ -411,6 +445,7 @@ public class SimpleParserTest {
 		
 		compareTermsInStrings("Simple Content", parsedDatum.getParsedText());
 		Assert.assertEquals("en", parsedDatum.getLanguage());
+		Assert.assertEquals(1.0, parsedDatum.getLanguageConfidence(), 0.0);
 
     }
     
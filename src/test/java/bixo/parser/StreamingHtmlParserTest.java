@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.fetcher.HttpHeaderNames;
+
+public class StreamingHtmlParserTest {
+
+    // Documents that StreamingHtmlParser has to parse the same way as SimpleParser.
+    private static final String[] GOLDEN_CORPUS = {
+        "parser-files/all-link-types.html",
+        "parser-files/base-url.html",
+        "parser-files/lang-dc.html",
+        "parser-files/lang-http-equiv.html",
+        "parser-files/meta-nofollow.html",
+        "parser-files/relative-urls.html",
+        "parser-files/simple-content.html",
+        "parser-corpus/article.html",
+        "parser-corpus/links.html",
+        "parser-corpus/markup.html",
+    };
+    
+    @Test
+    public void testGoldenCorpusDefaultLinks() throws Exception {
+        compareParsers(new ParserPolicy());
+    }
+    
+    @Test
+    public void testGoldenCorpusAllLinks() throws Exception {
+        compareParsers(new ParserPolicy(ParserPolicy.DEFAULT_MAX_PARSE_DURATION,
+                                        BaseLinkExtractor.ALL_LINK_TAGS,
+                                        BaseLinkExtractor.ALL_LINK_ATTRIBUTE_TYPES));
+    }
+    
+    @Test
+    public void testLinks() throws Exception {
+        FetchedDatum fetchedDatum = makeFetchedDatum("parser-corpus/markup.html", "text/html; charset=utf-8");
+        
+        StreamingHtmlParser parser = new StreamingHtmlParser();
+        ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+        
+        Assert.assertEquals("Markup & entities", parsedDatum.getTitle());
+        
+        // Nothing from comments or scripts, entities get decoded, and relative URLs are resolved.
+        Outlink[] outlinks = parsedDatum.getOutlinks();
+        Assert.assertEquals(4, outlinks.length);
+        Assert.assertEquals("http://domain.com/menu.html?type=fish&size=large", outlinks[0].getToUrl());
+        Assert.assertEquals("Fish menu", outlinks[0].getAnchor());
+        Assert.assertEquals("http://domain.com/about/", outlinks[1].getToUrl());
+        Assert.assertEquals("About us", outlinks[1].getAnchor());
+        Assert.assertEquals("http://domain.com/contact.html", outlinks[2].getToUrl());
+        Assert.assertEquals("mailto:info@domain.com", outlinks[3].getToUrl());
+        
+        Assert.assertEquals("Bixo Labs", parsedDatum.getParsedMeta().get("author"));
+    }
+    
+    @Test
+    public void testNonHtmlContent() throws Exception {
+        FetchedDatum fetchedDatum = makeFetchedDatum("parser-corpus/quarterly-report.pdf", "application/pdf");
+        
+        StreamingHtmlParser parser = new StreamingHtmlParser();
+        ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+        Assert.assertTrue(parsedDatum.getParsedText().contains("Quarterly crawl report"));
+        parser.close();
+    }
+    
+    private void compareParsers(ParserPolicy policy) throws Exception {
+        SimpleParser tikaParser = new SimpleParser(policy);
+        StreamingHtmlParser streamingParser = new StreamingHtmlParser(policy);
+        
+        for (String file : GOLDEN_CORPUS) {
+            FetchedDatum fetchedDatum = makeFetchedDatum(file, "text/html; charset=utf-8");
+            assertSameParse(file, tikaParser.parse(fetchedDatum), streamingParser.parse(fetchedDatum));
+        }
+        
+        tikaParser.close();
+        streamingParser.close();
+    }
+    
+    private void assertSameParse(String file, ParsedDatum expected, ParsedDatum actual) {
+        Assert.assertEquals(file, expected.getUrl(), actual.getUrl());
+        Assert.assertEquals(file, expected.getTitle(), actual.getTitle());
+        Assert.assertEquals(file, expected.getLanguage(), actual.getLanguage());
+        
+        // Tika adds extra whitespace around blocks, so we compare the terms.
+        Assert.assertArrayEquals(file, getTerms(expected.getParsedText()), getTerms(actual.getParsedText()));
+        
+        Outlink[] expectedLinks = expected.getOutlinks();
+        Outlink[] actualLinks = actual.getOutlinks();
+        Assert.assertArrayEquals(file, expectedLinks, actualLinks);
+        for (int i = 0; i < expectedLinks.length; i++) {
+            Assert.assertEquals(file, expectedLinks[i].getRelAttributes(), actualLinks[i].getRelAttributes());
+        }
+        
+        // The content type and encoding depend on how the charset was detected, and
+        // Tika adds some values of its own (e.g. X-Parsed-By), so we check the rest of our values.
+        Map<String, String> expectedMeta = expected.getParsedMeta();
+        for (Map.Entry<String, String> entry : actual.getParsedMeta().entrySet()) {
+            String key = entry.getKey();
+            if (!key.equals("Content-Type") && !key.equals("Content-Encoding")) {
+                Assert.assertEquals(file + ": " + key, expectedMeta.get(key), entry.getValue());
+            }
+        }
+    }
+    
+    private static String[] getTerms(String text) {
+        return text.trim().split("[ \\n\\r\\t]+");
+    }
+    
+    private static FetchedDatum makeFetchedDatum(String file, String contentType) throws Exception {
+        InputStream is = StreamingHtmlParserTest.class.getResourceAsStream("/" + file);
+        byte[] bytes = IOUtils.toByteArray(is);
+        is.close();
+        
+        String url = "http://domain.com/" + file.substring(file.lastIndexOf('/') + 1);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        return new FetchedDatum(url, url, System.currentTimeMillis(), headers, new ContentBytes(bytes), contentType, 0);
+    }
+}
@@ -18,7 +18,9 @@ package bixo.pipes;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.archive.io.ArchiveReader;
@@ -30,44 +32,49 @@ import org.junit.Test;
 
 import bixo.config.BixoPlatform;
 import bixo.config.BixoPlatform.Platform;
+import bixo.config.ParserPolicy;
 import bixo.datum.ContentBytes;
 import bixo.datum.FetchedDatum;
 import bixo.datum.HttpHeaders;
 import bixo.datum.ParsedDatum;
+import bixo.parser.BaseParser;
 import bixo.parser.SimpleParser;
 import cascading.CascadingTestCase;
 import cascading.flow.Flow;
 import cascading.flow.FlowConnector;
+import cascading.flow.FlowException;
 import cascading.pipe.Pipe;
 import cascading.tap.SinkMode;
 import cascading.tap.Tap;
 import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.TupleEntryIterator;
 
 import com.scaleunlimited.cascading.BasePath;
 
 @SuppressWarnings("serial")
 public class ParsePipeTest extends CascadingTestCase {
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-	@Test
-    public void testParserPipe() throws Exception {
-
-        BixoPlatform platform = new BixoPlatform(ParsePipeTest.class, Platform.Local);
+    private static class ErrorParser extends BaseParser {
 
-        Pipe pipe = new Pipe("parse_source");
-        ParsePipe parserPipe = new ParsePipe(pipe, new SimpleParser());
-        BasePath inputPath = platform.makePath("build/test/ParserPipeTest/in");
-        Tap in = platform.makeTap(platform.makeBinaryScheme(FetchedDatum.FIELDS), inputPath);
-        BasePath outputPath = platform.makePath("build/test/ParserPipeTest/out");
-        Tap out = platform.makeTap(platform.makeBinaryScheme(ParsedDatum.FIELDS), outputPath, SinkMode.REPLACE);
+        public ErrorParser() {
+            super(new ParserPolicy());
+        }
+        
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            throw new AssertionError("Simulated parser error");
+        }
+    }
 
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private List<String> writeInput(BixoPlatform platform, Tap in) throws Exception {
         TupleEntryCollector write = in.openForWrite(platform.makeFlowProcess());
-
+        List<String> result = new ArrayList<String>();
+        
         ArchiveReader archiveReader = ArchiveReaderFactory.get("src/test/resources/someHtml.arc");
         Iterator<ArchiveRecord> iterator = archiveReader.iterator();
         int max = 300;
         int count = 0;
-        int validRecords = 0;
         while (count++ < max && iterator.hasNext()) {
             ArchiveRecord archiveRecord = iterator.next();
             ArchiveRecordHeader header = archiveRecord.getHeader();
@@ -81,7 +88,7 @@ public class ParsePipeTest extends CascadingTestCase {
             }
 
             if (protocol.equals("http")) {
-                validRecords += 1;
+                result.add(url);
                 int contentOffset = header.getContentBegin();
                 long totalLength = header.getLength();
                 int contentLength = (int) totalLength - contentOffset;
@@ -108,22 +115,106 @@ public class ParsePipeTest extends CascadingTestCase {
         }
 
         write.close();
+        return result;
+    }
+    
+    // Currently many of the docs fail parsing:
+    // http://webtools.uiuc.edu/calendar/RSS?calId=504
+    // http://www.cs.uiuc.edu/rss/cs-news.rss
+    // http://fsl.cs.uiuc.edu/opensearch_desc.php
+    // http://choices.cs.uiuc.edu/cache/computer-cover_files/r5tann01
+    // http://choices.cs.uiuc.edu/cache/computer-cover_files/r5tann02
+    // http://srg.cs.uiuc.edu/scgo/bfg_files/filelist.xml
+    // http://srg.cs.uiuc.edu/scgo/bfg_files/pres.xml
+    // http://fmc.cs.uiuc.edu/bg
+    // TODO - dump out individual files, and figure out what's wrong with them.
+    private static final int INVALID_DOCS = 12;
+    
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testParserPipe() throws Exception {
+
+        BixoPlatform platform = new BixoPlatform(ParsePipeTest.class, Platform.Local);
+
+        Pipe pipe = new Pipe("parse_source");
+        ParsePipe parserPipe = new ParsePipe(pipe, new SimpleParser());
+        BasePath inputPath = platform.makePath("build/test/ParserPipeTest/in");
+        Tap in = platform.makeTap(platform.makeBinaryScheme(FetchedDatum.FIELDS), inputPath);
+        BasePath outputPath = platform.makePath("build/test/ParserPipeTest/out");
+        Tap out = platform.makeTap(platform.makeBinaryScheme(ParsedDatum.FIELDS), outputPath, SinkMode.REPLACE);
+
+        int validRecords = writeInput(platform, in).size();
+        
         FlowConnector flowConnector = platform.makeFlowConnector();
         Flow flow = flowConnector.connect(in, out, parserPipe);
         flow.complete();
         
-        // Currently many of the docs fail parsing:
-        // http://webtools.uiuc.edu/calendar/RSS?calId=504
-        // http://www.cs.uiuc.edu/rss/cs-news.rss
-        // http://fsl.cs.uiuc.edu/opensearch_desc.php
-        // http://choices.cs.uiuc.edu/cache/computer-cover_files/r5tann01
-        // http://choices.cs.uiuc.edu/cache/computer-cover_files/r5tann02
-        // http://srg.cs.uiuc.edu/scgo/bfg_files/filelist.xml
-        // http://srg.cs.uiuc.edu/scgo/bfg_files/pres.xml
-        // http://fmc.cs.uiuc.edu/bg
-        // TODO - dump out individual files, and figure out what's wrong with them.
-        final int invalidDocs = 12;
-        validateLength(flow, validRecords - invalidDocs);
+        validateLength(flow, validRecords - INVALID_DOCS);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testMultiThreadedParserPipe() throws Exception {
+
+        BixoPlatform platform = new BixoPlatform(ParsePipeTest.class, Platform.Local);
+
+        Pipe pipe = new Pipe("parse_source");
+        ParsePipe parserPipe = new ParsePipe(pipe, new SimpleParser(), 4, true);
+        BasePath inputPath = platform.makePath("build/test/ParserPipeTest/testMultiThreadedParserPipe/in");
+        Tap in = platform.makeTap(platform.makeBinaryScheme(FetchedDatum.FIELDS), inputPath);
+        BasePath outputPath = platform.makePath("build/test/ParserPipeTest/testMultiThreadedParserPipe/out");
+        Tap out = platform.makeTap(platform.makeBinaryScheme(ParsedDatum.FIELDS), outputPath, SinkMode.REPLACE);
+
+        List<String> urls = writeInput(platform, in);
+        
+        FlowConnector flowConnector = platform.makeFlowConnector();
+        Flow flow = flowConnector.connect(in, out, parserPipe);
+        flow.complete();
+        
+        validateLength(flow, urls.size() - INVALID_DOCS);
+        
+        // Results should be in the same order as the input.
+        Iterator<String> urlIter = urls.iterator();
+        TupleEntryIterator results = out.openForRead(platform.makeFlowProcess());
+        while (results.hasNext()) {
+            String parsedUrl = new ParsedDatum(results.next()).getUrl();
+            
+            boolean found = false;
+            while (!found && urlIter.hasNext()) {
+                found = urlIter.next().equals(parsedUrl);
+            }
+            
+            assertTrue("Result out of order: " + parsedUrl, found);
+        }
+        
+        results.close();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testMultiThreadedParserError() throws Exception {
+
+        BixoPlatform platform = new BixoPlatform(ParsePipeTest.class, Platform.Local);
+
+        Pipe pipe = new Pipe("parse_source");
+        ParsePipe parserPipe = new ParsePipe(pipe, new ErrorParser(), 4, true);
+        BasePath inputPath = platform.makePath("build/test/ParserPipeTest/testMultiThreadedParserError/in");
+        Tap in = platform.makeTap(platform.makeBinaryScheme(FetchedDatum.FIELDS), inputPath);
+        BasePath outputPath = platform.makePath("build/test/ParserPipeTest/testMultiThreadedParserError/out");
+        Tap out = platform.makeTap(platform.makeBinaryScheme(ParsedDatum.FIELDS), outputPath, SinkMode.REPLACE);
+
+        writeInput(platform, in);
+        
+        // An Error in a worker has to fail the flow, not leave it waiting for results.
+        FlowConnector flowConnector = platform.makeFlowConnector();
+        Flow flow = flowConnector.connect(in, out, parserPipe);
+        
+        try {
+            flow.complete();
+            fail("Flow should have failed");
+        } catch (FlowException e) {
+            // Expected
+        }
     }
 
 }
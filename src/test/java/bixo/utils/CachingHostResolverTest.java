@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+
+    @SuppressWarnings("serial")
+    private static class CountingResolver extends BaseHostResolver {
+
+        private AtomicInteger _numLookups = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            _numLookups.incrementAndGet();
+
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            }
+
+            return new InetAddress[] { InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte)host.length()}) };
+        }
+
+        public int getNumLookups() {
+            return _numLookups.get();
+        }
+    }
+
+    @Test
+    public void testCaching() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+
+        assertEquals("10.0.0.10", resolver.resolve("domain.com")[0].getHostAddress());
+        assertEquals("10.0.0.10", resolver.resolve("domain.com")[0].getHostAddress());
+        assertEquals(1, counter.getNumLookups());
+        assertEquals(1, resolver.getCacheHits());
+        assertEquals(1, resolver.getCacheMisses());
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should have thrown exception");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+        }
+
+        assertEquals(1, counter.getNumLookups());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 10, 0, 0);
+
+        resolver.resolve("domain.com");
+        resolver.resolve("domain.com");
+        assertEquals(2, counter.getNumLookups());
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 2, 60 * 1000L, 60 * 1000L);
+
+        resolver.resolve("domain1.com");
+        resolver.resolve("domain2.com");
+        resolver.resolve("domain1.com");
+        resolver.resolve("domain3.com");
+        assertEquals(2, resolver.size());
+
+        // domain2.com was least recently used, so it's gone.
+        resolver.resolve("domain1.com");
+        assertEquals(3, counter.getNumLookups());
+        resolver.resolve("domain2.com");
+        assertEquals(4, counter.getNumLookups());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+
+        resolver.prefetch(Arrays.asList("domain1.com", "domain2.com", "unknown.com"));
+        resolver.resolve("domain1.com");
+        resolver.resolve("domain2.com");
+
+        try {
+            resolver.resolve("unknown.com");
+            fail("Should have thrown exception");
+        } catch (UnknownHostException e) {
+            // Valid
+        }
+
+        assertEquals(3, counter.getNumLookups());
+        resolver.close();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File cacheFile = File.createTempFile("host-cache", ".txt");
+        cacheFile.delete();
+
+        try {
+            CountingResolver counter = new CountingResolver();
+            CachingHostResolver resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+            resolver.setCacheFile(cacheFile);
+            resolver.resolve("domain.com");
+
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should have thrown exception");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+
+            resolver.close();
+
+            counter = new CountingResolver();
+            resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+            resolver.setCacheFile(cacheFile);
+
+            InetAddress[] addresses = resolver.resolve("domain.com");
+            assertEquals("domain.com", addresses[0].getHostName());
+            assertEquals("10.0.0.10", addresses[0].getHostAddress());
+
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should have thrown exception");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+
+            assertEquals(0, counter.getNumLookups());
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void testSharedOpenAndClose() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 10, 60 * 1000L, 60 * 1000L);
+
+        resolver.open();
+        resolver.open();
+        resolver.resolve("domain1.com");
+
+        // Only the last user's close() releases the resolver.
+        assertFalse(resolver.close());
+        resolver.resolve("domain1.com");
+        assertTrue(resolver.close());
+        assertEquals(1, resolver.getCacheHits());
+        assertEquals(1, resolver.getCacheMisses());
+
+        // Reopening it resets the counts, but keeps the cache.
+        resolver.open();
+        resolver.resolve("domain1.com");
+        assertTrue(resolver.close());
+        assertEquals(1, resolver.getCacheHits());
+        assertEquals(0, resolver.getCacheMisses());
+        assertEquals(1, counter.getNumLookups());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.GroupedUrlDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+
+import com.scaleunlimited.cascading.Payload;
+
+public class DatumQueueCodecTest {
+
+    private static class FetchTimeComparator implements Comparator<FetchSetDatum> {
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            if (o1.getFetchTime() < o2.getFetchTime()) {
+                return -1;
+            } else if (o1.getFetchTime() > o2.getFetchTime()) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+    
+    private static FetchSetDatum makeFetchSet(int index) {
+        List<ScoredUrlDatum> scoredUrls = new ArrayList<ScoredUrlDatum>();
+        for (int i = 0; i < 3; i++) {
+            String url = String.format("http://domain-%03d.com/page-%d.html", index, i);
+            ScoredUrlDatum datum = new ScoredUrlDatum(url, "domain-" + index, UrlStatus.UNFETCHED, 1.0 + i);
+            Payload payload = new Payload();
+            payload.put("key", "value-" + i);
+            datum.setPayload(payload);
+            scoredUrls.add(datum);
+        }
+        
+        FetchSetDatum result = new FetchSetDatum(scoredUrls, 1000L + index, 5000L, index, "domain-" + index);
+        result.setLastList(index == 0);
+        return result;
+    }
+    
+    @Test
+    public void testFetchSetDatums() throws Exception {
+        final int numElements = 100;
+        DiskQueue<FetchSetDatum> queue = new DiskQueue<FetchSetDatum>(numElements / 10, new FetchTimeComparator(),
+                        new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class));
+        queue.setCompressRuns(true);
+        
+        FetchSetDatum datums[] = new FetchSetDatum[numElements];
+        for (int i = 0; i < numElements; i++) {
+            datums[i] = makeFetchSet(i);
+        }
+        
+        // Add in reverse order, so that most of them have to come back from disk.
+        for (int i = numElements - 1; i >= 0; i--) {
+            queue.add(datums[i]);
+        }
+        
+        for (int i = 0; i < numElements; i++) {
+            FetchSetDatum datum = queue.poll();
+            assertEquals(datums[i], datum);
+            assertEquals("value-2", datum.getUrls().get(2).getPayload().get("key"));
+        }
+        
+        assertNull(queue.poll());
+    }
+    
+    @Test(expected = InvalidParameterException.class)
+    public void testDatumWithoutTupleConstructor() throws Exception {
+        new DatumQueueCodec<GroupedUrlDatum>(GroupedUrlDatum.class);
+    }
+}
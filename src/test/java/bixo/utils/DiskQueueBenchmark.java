@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Measure add/poll throughput for a DiskQueue that holds all of its elements
+ * in memory, for a range of queue sizes.
+ *
+ * Usage: DiskQueueBenchmark [num rounds] [queue size...]
+ *
+ */
+public class DiskQueueBenchmark {
+
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+
+    private static class LongComparator implements Comparator<Long> {
+
+        @Override
+        public int compare(Long o1, Long o2) {
+            return o1.compareTo(o2);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numRounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int size : sizes) {
+            Random rand = new Random(1L);
+            Long[] values = new Long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = rand.nextLong();
+            }
+
+            for (int round = 0; round < numRounds; round++) {
+                DiskQueue<Long> queue = new DiskQueue<Long>(size, new LongComparator());
+
+                long startTime = System.nanoTime();
+                for (Long value : values) {
+                    queue.add(value);
+                }
+
+                long addTime = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                long lastValue = Long.MIN_VALUE;
+                while (!queue.isEmpty()) {
+                    long value = queue.poll();
+                    if (value < lastValue) {
+                        throw new IllegalStateException("Elements returned out of order");
+                    }
+
+                    lastValue = value;
+                }
+
+                long pollTime = System.nanoTime() - startTime;
+
+                System.out.println(String.format("Size %d, round %d: add %d/ms, poll %d/ms",
+                                size, round, perMillisecond(size, addTime), perMillisecond(size, pollTime)));
+            }
+        }
+    }
+
+    private static long perMillisecond(int count, long nanoseconds) {
+        return (count * 1000000L) / Math.max(1, nanoseconds);
+    }
+}
@@ -22,7 +22,11 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
@@ -104,12 +108,190 @@ public class DiskQueueTest {
         
         assertEquals("one", queue.remove());
         assertTrue(queue.offer("four"));
-        assertEquals("two", queue.remove());
-        assertEquals("three", queue.remove());
+        
+        // Elements come back in sorted order, even though "two" and "three" were
+        // written to disk before "four" was added.
         assertEquals("four", queue.remove());
+        assertEquals("three", queue.remove());
+        assertEquals("two", queue.remove());
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testSortedAfterSpilling() {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new IntegerComparator());
+        
+        // Enough elements that we get lots of runs, which have to be merged.
+        Random rand = new Random(137);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(queue.offer(rand.nextInt(100000)));
+        }
+        
+        assertEquals(10000, queue.size());
+        
+        int lastValue = -1;
+        for (int i = 0; i < 10000; i++) {
+            int value = queue.remove().intValue();
+            assertTrue(value >= lastValue);
+            lastValue = value;
+        }
+        
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testMixedReadsAndWrites() {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new IntegerComparator());
+        List<Integer> expected = new ArrayList<Integer>();
+        
+        Random rand = new Random(137);
+        for (int i = 0; i < 10000; i++) {
+            if (!expected.isEmpty() && (rand.nextInt(10) < 4)) {
+                Integer lowest = Collections.min(expected);
+                assertEquals(lowest, queue.remove());
+                expected.remove(lowest);
+            } else {
+                Integer value = rand.nextInt(1000);
+                assertTrue(queue.offer(value));
+                expected.add(value);
+            }
+            
+            assertEquals(expected.size(), queue.size());
+        }
+        
+        queue.clear();
+    }
+    
+    @Test
+    public void testCompressedRuns() {
+        DiskQueue<String> queue = new DiskQueue<String>(10, new StringComparator());
+        queue.setCompressRuns(true);
+        
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(String.format("http://domain-%04d.com/page.html", 999 - i)));
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.format("http://domain-%04d.com/page.html", i), queue.remove());
+        }
+        
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testCustomCodec() {
+        BaseQueueCodec<Integer> codec = new BaseQueueCodec<Integer>() {
+
+            @Override
+            public void write(Integer element, ObjectOutput out) throws IOException {
+                out.writeInt(element);
+            }
+
+            @Override
+            public Integer read(ObjectInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+        
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new IntegerComparator(), codec);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(new Integer(999 - i)));
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, queue.remove().intValue());
+        }
+    }
+    
+    @Test
+    public void testNoThrashingWhileGrowing() {
+        final AtomicInteger numWrites = new AtomicInteger();
+        BaseQueueCodec<Integer> codec = new BaseQueueCodec<Integer>() {
+
+            @Override
+            public void write(Integer element, ObjectOutput out) throws IOException {
+                numWrites.incrementAndGet();
+                out.writeInt(element);
+            }
+
+            @Override
+            public Integer read(ObjectInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+        
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(1000, new IntegerComparator(), codec);
+        
+        // Two offers for every poll, so the queue keeps growing after it starts spilling.
+        Random rand = new Random(137);
+        int numOffers = 0;
+        int lastValue = -1;
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(queue.offer(lastValue + 1 + rand.nextInt(10000)));
+            assertTrue(queue.offer(lastValue + 1 + rand.nextInt(10000)));
+            numOffers += 2;
+            
+            int value = queue.remove().intValue();
+            assertTrue(value >= lastValue);
+            lastValue = value;
+        }
+        
+        assertEquals(numOffers - 20000, queue.size());
+        
+        // Refilling the memory queue all the way up meant that the next offer spilled
+        // half of it again, so we'd wind up with hundreds of writes per offer.
+        assertTrue("Too many writes: " + numWrites.get(), numWrites.get() < numOffers * 2);
+        queue.clear();
+    }
+    
+    @Test
+    public void testByteLimit() {
+        DiskQueue<String> queue = new DiskQueue<String>(1000, 1000, new StringComparator(), new SerializableQueueCodec<String>());
+        
+        // Each string is a bit more than 100 bytes, so only a few fit in memory.
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(String.format("%03d-%0100d", 99 - i, 0)));
+        }
+        
+        // One element that's bigger than the limit still fits.
+        assertTrue(queue.offer(String.format("%03d-%02000d", 100, 0)));
+        assertEquals(101, queue.size());
+        
+        for (int i = 0; i <= 100; i++) {
+            assertTrue(queue.remove().startsWith(String.format("%03d-", i)));
+        }
+        
         assertNull(queue.poll());
     }
     
+    @Test
+    public void testIterator() {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(4, new IntegerComparator());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(new Integer(i)));
+        }
+        
+        assertEquals(0, queue.remove().intValue());
+        assertEquals(1, queue.remove().intValue());
+        
+        List<Integer> values = new ArrayList<Integer>();
+        for (Integer value : queue) {
+            values.add(value);
+        }
+        
+        Collections.sort(values);
+        assertEquals(98, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(i + 2, values.get(i).intValue());
+        }
+        
+        // Iterating doesn't change what's in the queue.
+        assertEquals(98, queue.size());
+        assertTrue(queue.contains(new Integer(99)));
+        assertEquals(2, queue.remove().intValue());
+        queue.clear();
+    }
+    
     @Test
     public void testLotsOfOperations() {
         DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new IntegerComparator());
@@ -288,11 +470,31 @@ public class DiskQueueTest {
         assertEquals(i1.get(), queue.peek().get());
 
         // Change the value of the first item, and verify that we now
-        // get the new lowest value.
+        // get the new lowest value once the queue has been reordered.
         i1.set(100);
+        queue.reorder();
         assertEquals(i2.get(), queue.peek().get());
     }
     
+    @Test
+    public void testRandomOrder() throws Exception {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(1000, new IntegerComparator());
+        
+        Random rand = new Random(137);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(rand.nextInt(10000)));
+        }
+        
+        int lastValue = -1;
+        for (int i = 0; i < 1000; i++) {
+            int value = queue.remove().intValue();
+            assertTrue(value >= lastValue);
+            lastValue = value;
+        }
+        
+        assertNull(queue.poll());
+    }
+    
     @Test
     public void testPeeking() throws Exception {
         DiskQueue<AtomicInteger> queue = new DiskQueue<AtomicInteger>(3, new AtomicIntegerComparator());
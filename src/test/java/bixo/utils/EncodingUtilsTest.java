@@ -16,8 +16,12 @@
  */
 package bixo.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -39,35 +43,54 @@ public class EncodingUtilsTest {
     
     @Test
     public void testDeflate() throws Exception {
+        // compressed.zip was created with Perl's Compress::Zlib compress(), so it's
+        // zlib-wrapped data, which is what HTTP says "deflate" means.
+        InputStream is = EncodingUtilsTest.class.getResourceAsStream("/compressed.zip");
+        byte[] buffer = new byte[4096];
+        int length = is.read(buffer);
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        byte[] uncompressed = EncodingUtils.processDeflateEncoded(compressed);
+        
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.\n",
+                        new String(uncompressed, "us-ascii"));
+    }
+    
+    @Test
+    public void testRawDeflate() throws Exception {
+        // Some servers send raw deflate data, without the zlib wrapper.
+        byte[] expected = "Now is the time for all good men to come to the aid of their country.".getBytes("us-ascii");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater);
+        dos.write(expected);
+        dos.close();
+        deflater.end();
+        
+        Assert.assertArrayEquals(expected, EncodingUtils.processDeflateEncoded(bos.toByteArray()));
+    }
+    
+    @Test
+    public void testDecodingStream() throws Exception {
+        InputStream is = EncodingUtils.getDecodingStream(EncodingUtilsTest.class.getResourceAsStream("/compressed.gz"), "gzip");
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
+                        IOUtils.toString(is, "us-ascii"));
+        is.close();
+        
+        is = EncodingUtils.getDecodingStream(EncodingUtilsTest.class.getResourceAsStream("/compressed.zip"), "deflate");
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.\n",
+                        IOUtils.toString(is, "us-ascii"));
+        is.close();
+        
+        // Unknown encodings are passed through as-is.
+        is = EncodingUtils.getDecodingStream(EncodingUtilsTest.class.getResourceAsStream("/compressed.txt"), "br");
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
+                        IOUtils.toString(is, "us-ascii").trim());
+        is.close();
         
-// TODO KKr I used the following command to create /compressed.zip:
-//
-// perl -MCompress::Zlib -e 'undef $/; print compress(<>)' < compressed.txt > compressed.zip
-//
-// Using the following command uncompresses it into a file identical to the original compressed.txt:
-//
-// perl -MCompress::Zlib -e 'undef $/; print uncompress(<>)' < compressed.zip > compressed2.txt
-//
-// Unfortunately, this test causes InflaterInputStream.read() to throw: 
-//
-// java.util.zip.ZipException: invalid stored block lengths
-//
-// I've removed deflate from SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING for now.
-// This shouldn't be much of an issue, though, as nearly all web sites that
-// support deflate will also support gzip. They're motivated to do so, since
-// Explorer screwed up its deflate support by using RFC 1251 instead of RFC 1250.
-// The real blame should go to the HTTP 1.1 standard (RFC 2616), which created
-// confusion by naming it "deflate" instead of "zlib".
-// (see http://www.zlib.net/zlib_faq.html#faq39).
-//
-//        InputStream is = EncodingUtilsTest.class.getResourceAsStream("/compressed.zip");
-//        byte[] buffer = new byte[4096];
-//        int length = is.read(buffer);
-//        byte[] compressed = new byte[length];
-//        System.arraycopy(buffer, 0, compressed, 0, length);
-//        byte[] uncompressed = EncodingUtils.processDeflateEncoded(compressed);
-//        
-//        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
-//                        new String(uncompressed, "us-ascii"));
+        Assert.assertTrue(EncodingUtils.isSupportedEncoding("x-gzip"));
+        Assert.assertTrue(EncodingUtils.isSupportedEncoding("deflate"));
+        Assert.assertFalse(EncodingUtils.isSupportedEncoding("identity"));
+        Assert.assertFalse(EncodingUtils.isSupportedEncoding(null));
     }
 }
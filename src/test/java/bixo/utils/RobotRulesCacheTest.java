@@ -0,0 +1,171 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRules;
+import crawlercommons.robots.SimpleRobotRules.RobotRulesMode;
+
+public class RobotRulesCacheTest {
+
+    private static BaseRobotRules makeRules(boolean deferVisits) {
+        SimpleRobotRules result = new SimpleRobotRules(RobotRulesMode.ALLOW_SOME);
+        result.addRule("/private", false);
+        result.setCrawlDelay(5000);
+        result.setDeferVisits(deferVisits);
+        return result;
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache();
+        cache.open();
+
+        assertNull(cache.getRules("http://domain.com"));
+        cache.putRules("http://domain.com", makeRules(false));
+
+        BaseRobotRules rules = cache.getRules("http://domain.com");
+        assertNotNull(rules);
+        assertEquals(5000, rules.getCrawlDelay());
+        assertFalse(rules.isAllowed("http://domain.com/private/page.html"));
+        assertTrue(rules.isAllowed("http://domain.com/public/page.html"));
+
+        // Different protocol, so different entry.
+        assertNull(cache.getRules("https://domain.com"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(null, 0);
+        cache.open();
+
+        cache.putRules("http://domain.com", makeRules(false));
+        assertNull(cache.getRules("http://domain.com"));
+    }
+
+    @Test
+    public void testDeferredRulesNotCached() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache();
+        cache.open();
+
+        cache.putRules("http://domain.com", makeRules(false));
+        cache.putRules("http://deferred.com", makeRules(true));
+
+        assertNotNull(cache.getRules("http://domain.com"));
+        assertNull(cache.getRules("http://deferred.com"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSharingBetweenLoops() throws Exception {
+        File cacheDir = new File("build/test/RobotRulesCacheTest/testSharingBetweenLoops");
+        FileUtils.deleteDirectory(cacheDir);
+
+        // Two tasks in the first loop, each of which writes its partition's file.
+        RobotRulesCache cache1 = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache1.open(0, 2);
+        cache1.putRules("http://domain1.com", makeRules(false));
+
+        RobotRulesCache cache2 = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache2.open(1, 2);
+        cache2.putRules("http://domain2.com", makeRules(false));
+
+        cache1.close();
+        cache2.close();
+        assertEquals(2, countCacheFiles(cacheDir));
+
+        // In the next loop, each task only loads the rules for its partition.
+        RobotRulesCache cache = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache.open(1, 2);
+        assertEquals(1, cache.size());
+        assertNull(cache.getRules("http://domain1.com"));
+
+        BaseRobotRules rules = cache.getRules("http://domain2.com");
+        assertNotNull(rules);
+        assertEquals(5000, rules.getCrawlDelay());
+        assertFalse(rules.isAllowed("http://domain2.com/private/page.html"));
+
+        // New rules get added to the partition's file, instead of a new file.
+        cache.putRules("http://domain3.com", makeRules(false));
+        cache.close();
+        assertEquals(2, countCacheFiles(cacheDir));
+
+        cache = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache.open(1, 2);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.getRules("http://domain3.com"));
+        cache.close();
+    }
+
+    @Test
+    public void testChangingNumPartitions() throws Exception {
+        File cacheDir = new File("build/test/RobotRulesCacheTest/testChangingNumPartitions");
+        FileUtils.deleteDirectory(cacheDir);
+
+        RobotRulesCache cache1 = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache1.open(0, 2);
+        cache1.putRules("http://domain1.com", makeRules(false));
+        cache1.close();
+
+        RobotRulesCache cache2 = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache2.open(1, 2);
+        cache2.putRules("http://domain2.com", makeRules(false));
+        cache2.close();
+
+        // With a different number of partitions, we don't know which domains we'll get, so
+        // we load everything, but only save what we used.
+        RobotRulesCache cache = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache.open(0, 1);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.getRules("http://domain2.com"));
+        cache.close();
+        assertEquals(3, countCacheFiles(cacheDir));
+
+        // Now we have a file for our partition, so that's all we load.
+        cache = new RobotRulesCache(cacheDir.getAbsolutePath());
+        cache.open(0, 1);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.getRules("http://domain2.com"));
+        cache.close();
+    }
+
+    private static int countCacheFiles(File cacheDir) {
+        int numCacheFiles = 0;
+        for (String fileName : cacheDir.list()) {
+            if (fileName.startsWith("robots-rules-")) {
+                numCacheFiles += 1;
+            }
+        }
+
+        return numCacheFiles;
+    }
+}
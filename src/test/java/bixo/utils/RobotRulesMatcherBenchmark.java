@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.util.Random;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRulesParser;
+
+/**
+ * Compare the time to check lots of URLs against a long robots.txt, using
+ * BaseRobotRules.isAllowed() vs. a RobotRulesMatcher.
+ *
+ * Usage: RobotRulesMatcherBenchmark [num rules] [num urls] [num rounds]
+ *
+ */
+public class RobotRulesMatcherBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numRules = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int numUrls = (args.length > 1) ? Integer.parseInt(args[1]) : 50000;
+        int numRounds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        Random rand = new Random(1L);
+
+        StringBuilder robotsTxt = new StringBuilder("User-agent: *\n");
+        for (int i = 0; i < numRules; i++) {
+            String directive = rand.nextBoolean() ? "Disallow" : "Allow";
+            if ((i % 10) == 0) {
+                robotsTxt.append(String.format("%s: /dir-%d/*.pdf$\n", directive, i));
+            } else {
+                robotsTxt.append(String.format("%s: /dir-%d/sub-%d/\n", directive, rand.nextInt(numRules), i));
+            }
+        }
+
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        BaseRobotRules rules = parser.parseContent("http://www.domain.com/robots.txt", robotsTxt.toString().getBytes("UTF-8"), "text/plain", "benchmark");
+
+        String[] urls = new String[numUrls];
+        for (int i = 0; i < numUrls; i++) {
+            urls[i] = String.format("http://www.domain.com/dir-%d/sub-%d/page-%d.html", rand.nextInt(numRules), rand.nextInt(numRules), i);
+        }
+
+        for (int round = 0; round < numRounds; round++) {
+            long startTime = System.nanoTime();
+            int numAllowed = 0;
+            for (String url : urls) {
+                if (rules.isAllowed(url)) {
+                    numAllowed += 1;
+                }
+            }
+
+            long rulesTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            RobotRulesMatcher matcher = RobotRulesMatcher.compile(rules);
+            int numMatcherAllowed = 0;
+            for (String url : urls) {
+                if (matcher.isAllowed(url)) {
+                    numMatcherAllowed += 1;
+                }
+            }
+
+            long matcherTime = System.nanoTime() - startTime;
+
+            if (numAllowed != numMatcherAllowed) {
+                throw new IllegalStateException(String.format("Allowed counts differ: %d vs %d", numAllowed, numMatcherAllowed));
+            }
+
+            System.out.println(String.format("Round %d: isAllowed %dms, matcher (incl. compile) %dms, %d of %d allowed",
+                            round, rulesTime / 1000000, matcherTime / 1000000, numAllowed, numUrls));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009-2015 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRulesParser;
+
+public class RobotRulesMatcherTest {
+    private static final String CRLF = "\r\n";
+
+    private static BaseRobotRules parse(String robotsTxt) throws Exception {
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        return parser.parseContent("http://www.domain.com/robots.txt", robotsTxt.getBytes("UTF-8"), "text/plain", "testAgent");
+    }
+
+    @Test
+    public void testSameResultsAsRules() throws Exception {
+        final String robotsTxt = "User-agent: *" + CRLF
+            + "Disallow: /private" + CRLF
+            + "Allow: /private/public" + CRLF
+            + "Disallow: /*.pdf$" + CRLF
+            + "Disallow: /search?" + CRLF
+            + "Allow: /*/open/" + CRLF
+            + "Disallow: /dir/" + CRLF
+            + "Disallow: /a*b$" + CRLF
+            + "Disallow: /x*y*$" + CRLF
+            + "Disallow: /Admin" + CRLF
+            + "Disallow: /*.PDF$" + CRLF;
+
+        BaseRobotRules rules = parse(robotsTxt);
+        RobotRulesMatcher matcher = RobotRulesMatcher.compile(rules);
+
+        String[] paths = {
+            "", "/", "/robots.txt", "/index.html",
+            "/private", "/privateer.html", "/private/page.html", "/private/public/page.html",
+            "/doc.pdf", "/doc.pdf?x=y", "/dir/doc.pdf", "/pdf",
+            "/search", "/search?q=bixo", "/search/page.html",
+            "/dir/", "/dir/page.html", "/dir/open/page.html", "/other/open/page.html",
+            "/a%20b.html", "/private%2Fpage.html", "/page.html#fragment",
+            
+            // SimpleRobotRules doesn't backtrack for wildcards.
+            "/ab", "/axb", "/axbxb", "/ab.b", "/doc.pdf.pdf", "/x", "/xy", "/xay", "/xyz",
+            
+            // Rules and paths are case-sensitive.
+            "/Private/page.html", "/PRIVATE", "/private/Public/page.html", "/Dir/page.html",
+            "/admin", "/Admin", "/Admin/page.html", "/ADMIN/page.html",
+            "/doc.PDF", "/Doc.pdf", "/doc.Pdf", "/%41dmin/page.html",
+        };
+
+        for (String path : paths) {
+            String url = "http://www.domain.com" + path;
+            assertEquals(url, rules.isAllowed(url), matcher.isAllowed(url));
+        }
+    }
+
+    @Test
+    public void testPathChecks() throws Exception {
+        final String robotsTxt = "User-agent: *" + CRLF
+            + "Disallow: /private" + CRLF
+            + "Allow: /private/public" + CRLF
+            + "Disallow: /*.pdf$" + CRLF;
+
+        RobotRulesMatcher matcher = RobotRulesMatcher.compile(parse(robotsTxt));
+        assertTrue(matcher.isPathAllowed("/"));
+        assertFalse(matcher.isPathAllowed("/private/page.html"));
+        assertTrue(matcher.isPathAllowed("/private/public/page.html"));
+        assertFalse(matcher.isPathAllowed("/private/public/doc.pdf"));
+        assertTrue(matcher.isPathAllowed("/doc.pdf?download=true"));
+    }
+
+    @Test
+    public void testAllowAllAndNone() throws Exception {
+        RobotRulesMatcher matcher = RobotRulesMatcher.compile(parse(""));
+        assertTrue(matcher.isAllowed("http://www.domain.com/private/page.html"));
+
+        matcher = RobotRulesMatcher.compile(parse("User-agent: *" + CRLF + "Disallow: /" + CRLF));
+        assertEquals(matcher.getRules().isAllowed("http://www.domain.com/page.html"), matcher.isAllowed("http://www.domain.com/page.html"));
+        assertFalse(matcher.isAllowed("http://www.domain.com/page.html"));
+    }
+}
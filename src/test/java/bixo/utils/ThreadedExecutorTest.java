@@ -17,6 +17,7 @@
 package bixo.utils;
 
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -169,4 +170,86 @@ public class ThreadedExecutorTest {
             Assert.fail("Termination was interrupted");
         }
     }
+    
+    @Test
+    public void testVirtualThreadRejection() {
+        final long timeoutInMS = 4;
+        
+        // If the JDK doesn't support virtual threads, we fall back to the regular
+        // thread pool, which must have the same behavior.
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, true);
+        
+        try {
+            Runnable cmd = new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutInMS * 5);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            };
+            
+            executor.execute(cmd);
+        } catch (RejectedExecutionException e) {
+            Assert.fail("Execution was rejected");
+        }
+        
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+    }
+    
+    @Test
+    public void testVirtualThreadConcurrencyLimit() throws InterruptedException {
+        final int maxThreads = 5;
+        final AtomicInteger active = new AtomicInteger(0);
+        final AtomicInteger maxActive = new AtomicInteger(0);
+        
+        ThreadedExecutor executor = new ThreadedExecutor(maxThreads, 1000L, true);
+        for (int i = 0; i < maxThreads * 10; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int curActive = active.incrementAndGet();
+                    synchronized (maxActive) {
+                        maxActive.set(Math.max(maxActive.get(), curActive));
+                    }
+                    
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        }
+        
+        Assert.assertTrue(executor.terminate(1000L));
+        Assert.assertTrue(maxActive.get() <= maxThreads);
+    }
+    
+    @Test
+    public void testVirtualThreadHardTermination() throws InterruptedException {
+        final long timeoutInMS = 50;
+
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, true);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(timeoutInMS * 10);
+                } catch (InterruptedException e) {
+                    // Terminate the run
+                }
+            }
+        });
+        
+        Assert.assertFalse(executor.terminate(timeoutInMS));
+    }
 }
@@ -137,6 +137,7 @@ public class FetchAndParseTool {
         		
         		ParsedDatum bpParsed = bpParser.parse(result);
         		ParsedDatum rawParsed = rawParser.parse(result);
+        		result.disposeContent();
         		
         		if (interactive) {
         		    while (true) {